@@ -2,6 +2,7 @@ plugins {
     id("com.github.johnrengelman.shadow") version "7.1.2"
     id("java")
     id("org.jetbrains.intellij") version "1.13.0"
+    id("me.champeau.jmh") version "0.6.8"
 }
 
 group = "com.igio90.intellij.openai"
@@ -15,6 +16,8 @@ repositories {
 dependencies {
     implementation("com.squareup.okhttp3:okhttp:4.10.0")
     implementation("org.json:json:20220924")
+
+    testImplementation("junit:junit:4.13.2")
 }
 
 // Configure Gradle IntelliJ Plugin
@@ -26,6 +29,19 @@ intellij {
     plugins.set(listOf("com.intellij.java"))
 }
 
+// Benchmarks in src/jmh, run with ./gradlew jmh
+jmh {
+    jmhVersion.set("1.36")
+    benchmarkMode.set(listOf("thrpt"))
+    timeUnit.set("s")
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    // allocation rate next to the throughput
+    profilers.set(listOf("gc"))
+    resultFormat.set("JSON")
+}
+
 tasks {
     // Set the JVM compatibility versions
     withType<JavaCompile> {
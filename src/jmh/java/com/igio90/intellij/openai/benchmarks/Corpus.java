@@ -0,0 +1,201 @@
+package com.igio90.intellij.openai.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * deterministic synthetic sources and the kind of edits the model sends back for them
+ */
+final class Corpus {
+    static final String JAVA = "java";
+    static final String PYTHON = "python";
+
+    private static final String[] NAMES = {
+            "value", "count", "index", "result", "buffer", "offset", "length", "items", "total", "cursor"
+    };
+    private static final String[] TYPES = {"int", "long", "String", "boolean", "double"};
+
+    private Corpus() {
+    }
+
+    /**
+     * @return a source file with the given number of methods
+     */
+    static String source(String language, int methods, long seed) {
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder();
+        boolean java = JAVA.equals(language);
+        if (java) {
+            builder.append("package com.example;\n\nimport java.util.List;\n\npublic class Sample {\n");
+            for (int i = 0; i < 4; i++) {
+                builder.append("    private ").append(pick(random, TYPES)).append(' ')
+                        .append(pick(random, NAMES)).append(i).append(";\n");
+            }
+            builder.append('\n');
+        } else {
+            builder.append("import os\nimport sys\n\n\nclass Sample:\n");
+        }
+        for (int i = 0; i < methods; i++) {
+            method(builder, random, java, i);
+        }
+        if (java) {
+            builder.append("}\n");
+        }
+        return builder.toString();
+    }
+
+    private static void method(StringBuilder builder, Random random, boolean java, int index) {
+        String name = pick(random, NAMES) + "Of" + index;
+        if (java) {
+            builder.append("    /**\n     * computes the ").append(name).append(" of the items\n     */\n");
+            builder.append("    public int ").append(name).append("(List<Integer> items, int limit) {\n");
+        } else {
+            builder.append("    def ").append(name).append("(self, items, limit):\n");
+            builder.append("        \"\"\"computes the ").append(name).append(" of the items\"\"\"\n");
+        }
+        int statements = 3 + random.nextInt(8);
+        for (int i = 0; i < statements; i++) {
+            statement(builder, random, java, "        ");
+        }
+        builder.append(java ? "        return limit;\n    }\n\n" : "        return limit\n\n");
+    }
+
+    private static void statement(StringBuilder builder, Random random, boolean java, String indent) {
+        String name = pick(random, NAMES);
+        int constant = random.nextInt(100);
+        switch (random.nextInt(4)) {
+            case 0:
+                builder.append(indent).append(java ? "int " : "").append(name).append(" = limit * ")
+                        .append(constant).append(java ? ";\n" : "\n");
+                break;
+            case 1:
+                if (java) {
+                    builder.append(indent).append("for (int item : items) {\n")
+                            .append(indent).append("    limit += item % ").append(constant + 1).append(";\n")
+                            .append(indent).append("}\n");
+                } else {
+                    builder.append(indent).append("for item in items:\n")
+                            .append(indent).append("    limit += item % ").append(constant + 1).append('\n');
+                }
+                break;
+            case 2:
+                if (java) {
+                    builder.append(indent).append("if (limit > ").append(constant).append(") {\n")
+                            .append(indent).append("    limit -= ").append(name.length()).append(";\n")
+                            .append(indent).append("}\n");
+                } else {
+                    builder.append(indent).append("if limit > ").append(constant).append(":\n")
+                            .append(indent).append("    limit -= ").append(name.length()).append('\n');
+                }
+                break;
+            default:
+                builder.append(indent).append(java ? "// " : "# ").append("keep the ").append(name)
+                        .append(" under ").append(constant).append('\n');
+                break;
+        }
+    }
+
+    /**
+     * lint style edit: indentation, trailing spaces, blank lines and operator spacing, no code changes
+     */
+    static String lint(String source, long seed) {
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder(source.length() + source.length() / 8);
+        for (String line : source.split("\n", -1)) {
+            int roll = random.nextInt(10);
+            if (roll == 0) {
+                line = line + "  ";
+            } else if (roll == 1 && line.startsWith("        ")) {
+                line = line.substring(2);
+            } else if (roll == 2) {
+                line = line.replace(" = ", "=").replace(" * ", "*");
+            } else if (roll == 3 && line.trim().isEmpty()) {
+                continue;
+            }
+            builder.append(line).append('\n');
+            if (roll == 4 && line.endsWith("}")) {
+                builder.append('\n');
+            }
+        }
+        builder.setLength(builder.length() - 1);
+        return builder.toString();
+    }
+
+    /**
+     * large rewrite: renamed identifiers, replaced statements and added methods
+     */
+    static String rewrite(String source, String language, long seed) {
+        Random random = new Random(seed);
+        boolean java = JAVA.equals(language);
+        StringBuilder builder = new StringBuilder(source.length() + source.length() / 4);
+        int added = 0;
+        for (String line : source.split("\n", -1)) {
+            int roll = random.nextInt(10);
+            if (roll < 2) {
+                line = line.replace("limit", "bound").replace("items", "values");
+            } else if (roll == 2 && line.startsWith("        ") && !line.trim().startsWith("return")) {
+                statement(builder, random, java, "        ");
+                continue;
+            } else if (roll == 3 && line.trim().startsWith(java ? "//" : "#")) {
+                continue;
+            }
+            builder.append(line).append('\n');
+            if (roll == 4 && line.equals(java ? "    }" : "") && random.nextInt(4) == 0) {
+                builder.append(java ? "\n" : "");
+                method(builder, random, java, 1000 + added++);
+            }
+        }
+        builder.setLength(builder.length() - 1);
+        return builder.toString();
+    }
+
+    /**
+     * unrelated small edits, as if the user kept typing while the request was in flight
+     */
+    static String drift(String source, long seed) {
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder(source);
+        for (int i = 0; i < 8; i++) {
+            int offset = random.nextInt(builder.length());
+            if (random.nextBoolean()) {
+                builder.insert(offset, pick(random, NAMES));
+            } else {
+                builder.delete(offset, Math.min(builder.length(), offset + 1 + random.nextInt(6)));
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return end offsets of the identifier, blank and symbol runs of a source, as the lexer would split it
+     */
+    static int[] tokenEnds(String source) {
+        int[] ends = new int[16];
+        int count = 0;
+        int offset = 0;
+        while (offset < source.length()) {
+            int kind = kind(source.charAt(offset));
+            int end = offset + 1;
+            while (kind != 2 && end < source.length() && kind(source.charAt(end)) == kind) {
+                end++;
+            }
+            if (count == ends.length) {
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            ends[count++] = end;
+            offset = end;
+        }
+        return Arrays.copyOf(ends, count);
+    }
+
+    private static int kind(char c) {
+        if (Character.isJavaIdentifierPart(c)) {
+            return 0;
+        }
+        return Character.isWhitespace(c) ? 1 : 2;
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+}
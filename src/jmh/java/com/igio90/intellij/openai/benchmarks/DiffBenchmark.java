@@ -0,0 +1,111 @@
+package com.igio90.intellij.openai.benchmarks;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * the diff work done on every response: the edit and lint results are diffed against the window they replace,
+ * cleaned up for the minimal document edits, and the changed lines are derived for highlighting
+ */
+@State(Scope.Benchmark)
+public class DiffBenchmark {
+    @Param({Corpus.JAVA, Corpus.PYTHON})
+    public String language;
+
+    @Param({"small", "large"})
+    public String size;
+
+    @Param({"lint", "rewrite"})
+    public String edit;
+
+    @Param({"MYERS", "PATIENCE", "HISTOGRAM"})
+    public diff_match_patch.LineAlgorithm algorithm;
+
+    private final diff_match_patch mDmp = new diff_match_patch();
+    private final diff_match_patch mParallelDmp = new diff_match_patch();
+    private String mBefore;
+    private String mAfter;
+    private LinkedList<diff_match_patch.Diff> mDiffs;
+    private int[] mBeforeTokens;
+    private int[] mAfterTokens;
+
+    @Setup
+    public void setUp() {
+        mBefore = Corpus.source(language, "small".equals(size) ? 10 : 400, 42);
+        mAfter = "lint".equals(edit) ? Corpus.lint(mBefore, 7) : Corpus.rewrite(mBefore, language, 7);
+        // no deadline, so runs are comparable whatever the machine
+        mDmp.Diff_Timeout = 0;
+        mDmp.Diff_LineAlgorithm = algorithm;
+        mParallelDmp.Diff_Timeout = 0;
+        mParallelDmp.Diff_LineAlgorithm = algorithm;
+        mParallelDmp.Diff_Pool = ForkJoinPool.commonPool();
+        mDiffs = mDmp.diff_main(mBefore, mAfter, false);
+        mBeforeTokens = Corpus.tokenEnds(mBefore);
+        mAfterTokens = Corpus.tokenEnds(mAfter);
+    }
+
+    @Benchmark
+    public LinkedList<diff_match_patch.Diff> diffMain() {
+        return mDmp.diff_main(mBefore, mAfter, true);
+    }
+
+    @Benchmark
+    public diff_match_patch.Diffs diffMainCompact() {
+        return mDmp.diff_mainCompact(mBefore, mAfter, true);
+    }
+
+    /**
+     * the large sources are split at their unique lines and diffed on the common pool
+     */
+    @Benchmark
+    public diff_match_patch.Diffs diffMainParallel() {
+        return mParallelDmp.diff_mainCompact(mBefore, mAfter, true);
+    }
+
+    /**
+     * the copy of the diff is part of the measure, cleanups work in place
+     */
+    @Benchmark
+    public LinkedList<diff_match_patch.Diff> cleanupSemantic() {
+        LinkedList<diff_match_patch.Diff> diffs = new LinkedList<>();
+        for (diff_match_patch.Diff diff : mDiffs) {
+            diffs.add(new diff_match_patch.Diff(diff.operation, diff.text));
+        }
+        mDmp.diff_cleanupSemantic(diffs);
+        return diffs;
+    }
+
+    /**
+     * what DocumentUtils computes before replacing a range
+     */
+    @Benchmark
+    public diff_match_patch.Diffs minimalEdits() {
+        diff_match_patch.Diffs diffs = mDmp.diff_mainCompact(mBefore, mAfter, true);
+        mDmp.diff_cleanupEfficiency(diffs);
+        return diffs;
+    }
+
+    /**
+     * what the code processor highlights after an edit
+     */
+    @Benchmark
+    public BitSet changedLines() {
+        return mDmp.diff_changedLines(mBefore, mAfter);
+    }
+
+    /**
+     * the intra-line ranges highlighted next to the changed lines, diffing token codes
+     */
+    @Benchmark
+    public diff_match_patch.Diffs changedTokens() {
+        return mDmp.diff_mainTokens(mBefore, mBeforeTokens, mAfter, mAfterTokens);
+    }
+}
@@ -0,0 +1,120 @@
+package com.igio90.intellij.openai.benchmarks;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * the common prefix, suffix and overlap kernels which start every diff, against the char by char and substring
+ * versions they replaced, on a near identical edit as the model sends back for a small fix
+ */
+@State(Scope.Benchmark)
+public class KernelBenchmark {
+    @Param({"small", "large"})
+    public String size;
+
+    private final Kernels mDmp = new Kernels();
+    private String mBefore;
+    private String mAfter;
+    private String mHead;
+    private String mTail;
+
+    @Setup
+    public void setUp() {
+        mBefore = Corpus.source(Corpus.JAVA, "small".equals(size) ? 10 : 400, 42);
+        // a single character fixed in the middle
+        int middle = mBefore.length() / 2;
+        mAfter = mBefore.substring(0, middle) + '#' + mBefore.substring(middle + 1);
+        // the end of one overlapping the start of the other by a third
+        mHead = mBefore.substring(0, mBefore.length() * 2 / 3);
+        mTail = mBefore.substring(mBefore.length() / 3);
+    }
+
+    @Benchmark
+    public int commonPrefix() {
+        return mDmp.diff_commonPrefix(mBefore, mAfter);
+    }
+
+    @Benchmark
+    public int commonPrefixCharAt() {
+        int n = Math.min(mBefore.length(), mAfter.length());
+        for (int i = 0; i < n; i++) {
+            if (mBefore.charAt(i) != mAfter.charAt(i)) {
+                return i;
+            }
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int commonSuffix() {
+        return mDmp.diff_commonSuffix(mBefore, mAfter);
+    }
+
+    @Benchmark
+    public int commonSuffixCharAt() {
+        int length1 = mBefore.length();
+        int length2 = mAfter.length();
+        int n = Math.min(length1, length2);
+        for (int i = 1; i <= n; i++) {
+            if (mBefore.charAt(length1 - i) != mAfter.charAt(length2 - i)) {
+                return i - 1;
+            }
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int commonOverlap() {
+        return mDmp.diff_commonOverlap(mHead, mTail);
+    }
+
+    /**
+     * the upstream version, cutting a substring for every candidate
+     */
+    @Benchmark
+    public int commonOverlapSubstring() {
+        String text1 = mHead;
+        String text2 = mTail;
+        int text1Length = text1.length();
+        int text2Length = text2.length();
+        if (text1Length == 0 || text2Length == 0) {
+            return 0;
+        }
+        if (text1Length > text2Length) {
+            text1 = text1.substring(text1Length - text2Length);
+        } else if (text1Length < text2Length) {
+            text2 = text2.substring(0, text1Length);
+        }
+        int textLength = Math.min(text1Length, text2Length);
+        if (text1.equals(text2)) {
+            return textLength;
+        }
+        int best = 0;
+        int length = 1;
+        while (true) {
+            int found = text2.indexOf(text1.substring(textLength - length));
+            if (found == -1) {
+                return best;
+            }
+            length += found;
+            if (found == 0 || text1.substring(textLength - length).equals(text2.substring(0, length))) {
+                best = length;
+                length++;
+            }
+        }
+    }
+
+    /**
+     * exposes the protected overlap kernel
+     */
+    private static final class Kernels extends diff_match_patch {
+        @Override
+        protected int diff_commonOverlap(String text1, String text2) {
+            return super.diff_commonOverlap(text1, text2);
+        }
+    }
+}
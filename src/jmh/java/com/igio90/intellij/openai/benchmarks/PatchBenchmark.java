@@ -0,0 +1,82 @@
+package com.igio90.intellij.openai.benchmarks;
+
+import name.fraser.neil.plaintext.diff_match_patch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.LinkedList;
+
+/**
+ * re-applying a response to a document which drifted while the request was in flight, and the fuzzy matching
+ * that anchors it
+ */
+@State(Scope.Benchmark)
+public class PatchBenchmark {
+    @Param({Corpus.JAVA, Corpus.PYTHON})
+    public String language;
+
+    @Param({"small", "large"})
+    public String size;
+
+    @Param({"lint", "rewrite"})
+    public String edit;
+
+    private final diff_match_patch mDmp = new diff_match_patch();
+    private String mBefore;
+    private String mAfter;
+    private String mDrifted;
+    private LinkedList<diff_match_patch.Patch> mPatches;
+    private String mPattern;
+    private String mLongPattern;
+    private int mPatternLocation;
+
+    @Setup
+    public void setUp() {
+        mBefore = Corpus.source(language, "small".equals(size) ? 10 : 400, 42);
+        mAfter = "lint".equals(edit) ? Corpus.lint(mBefore, 7) : Corpus.rewrite(mBefore, language, 7);
+        mDrifted = Corpus.drift(mBefore, 11);
+        mDmp.Diff_Timeout = 0;
+        mPatches = mDmp.patch_make(mBefore, mAfter);
+
+        // patterns fitting one and two words of bitap state which no longer match exactly, expected a bit off
+        // their place
+        int start = mBefore.length() / 2;
+        mPattern = mBefore.substring(start, start + 30).replace('e', 'a');
+        mLongPattern = mBefore.substring(start, start + 120).replace('e', 'a');
+        mPatternLocation = start + 40;
+    }
+
+    @Benchmark
+    public LinkedList<diff_match_patch.Patch> patchMake() {
+        return mDmp.patch_make(mBefore, mAfter);
+    }
+
+    /**
+     * patch_apply deep copies the patches, so they can be shared between invocations
+     */
+    @Benchmark
+    public Object[] patchApply() {
+        return mDmp.patch_apply(mPatches, mDrifted);
+    }
+
+    /**
+     * what the processors write back when the user edited the window during the request
+     */
+    @Benchmark
+    public LinkedList<diff_match_patch.Merge> mergeDrifted() {
+        return mDmp.merge_main(mBefore, mDrifted, mAfter);
+    }
+
+    @Benchmark
+    public int matchMain() {
+        return mDmp.match_main(mBefore, mPattern, mPatternLocation);
+    }
+
+    @Benchmark
+    public int matchMainLong() {
+        return mDmp.match_main(mBefore, mLongPattern, mPatternLocation);
+    }
+}
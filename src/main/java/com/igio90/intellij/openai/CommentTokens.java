@@ -0,0 +1,212 @@
+package com.igio90.intellij.openai;
+
+import com.intellij.lang.CodeDocumentationAwareCommenter;
+import com.intellij.lang.Commenter;
+import com.intellij.lang.Language;
+import com.intellij.lang.LanguageCommenters;
+import com.intellij.lang.LanguageParserDefinitions;
+import com.intellij.lang.ParserDefinition;
+import com.intellij.openapi.editor.DefaultLanguageHighlighterColors;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.openapi.editor.ex.util.LexerEditorHighlighter;
+import com.intellij.openapi.editor.highlighter.EditorHighlighter;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.fileTypes.SyntaxHighlighter;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.psi.tree.TokenSet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+final class CommentTokens {
+    private static final Map<Language, CommentTokens> sCache = new ConcurrentHashMap<>();
+
+    private final String mLinePrefix;
+    private final String mBlockPrefix;
+    private final String mBlockSuffix;
+    private final TokenSet mCommentTokens;
+    private final Map<IElementType, Boolean> mIsComment = new ConcurrentHashMap<>();
+
+    private CommentTokens(Language language) {
+        Commenter commenter = LanguageCommenters.INSTANCE.forLanguage(language);
+        mLinePrefix = commenter == null ? null : trimToNull(commenter.getLineCommentPrefix());
+        mBlockPrefix = commenter == null ? null : trimToNull(commenter.getBlockCommentPrefix());
+        mBlockSuffix = commenter == null ? null : trimToNull(commenter.getBlockCommentSuffix());
+
+        TokenSet commentTokens = TokenSet.EMPTY;
+        ParserDefinition parserDefinition = LanguageParserDefinitions.INSTANCE.forLanguage(language);
+        if (parserDefinition != null) {
+            commentTokens = TokenSet.orSet(commentTokens, parserDefinition.getCommentTokens());
+        }
+        if (commenter instanceof CodeDocumentationAwareCommenter) {
+            CodeDocumentationAwareCommenter docCommenter = (CodeDocumentationAwareCommenter) commenter;
+            List<IElementType> types = new ArrayList<>();
+            for (IElementType type : new IElementType[]{
+                    docCommenter.getLineCommentTokenType(),
+                    docCommenter.getBlockCommentTokenType(),
+                    docCommenter.getDocumentationCommentTokenType()
+            }) {
+                if (type != null) {
+                    types.add(type);
+                }
+            }
+            commentTokens = TokenSet.orSet(commentTokens, TokenSet.create(types.toArray(IElementType[]::new)));
+        }
+        mCommentTokens = commentTokens;
+
+        if (mBlockSuffix != null) {
+            TriggerRecognizer.registerClosingChar(mBlockSuffix.charAt(mBlockSuffix.length() - 1));
+        }
+    }
+
+    static CommentTokens forLanguage(Language language) {
+        return sCache.computeIfAbsent(language, CommentTokens::new);
+    }
+
+    /**
+     * looks up the highlighter token under the caret and, if it is a comment, matches the trigger keywords
+     * against the comment body on the caret line. languages without a commenter fall back to the fixed markers
+     */
+    static boolean recognize(
+            Document document,
+            CharSequence text,
+            int lineStart,
+            int lineEnd,
+            int caret,
+            TriggerRecognizer.Match out
+    ) {
+        EditorHighlighter highlighter = getHighlighter(document);
+        if (highlighter == null) {
+            return TriggerRecognizer.recognize(text, lineStart, lineEnd, out);
+        }
+
+        // the lexer highlighter is a prioritized document listener, it already re-lexed this change
+        HighlighterIterator iterator = highlighter.createIterator(Math.max(lineStart, caret - 1));
+        if (iterator.atEnd()) {
+            return false;
+        }
+
+        IElementType tokenType = iterator.getTokenType();
+        CommentTokens comments = forLanguage(tokenType.getLanguage());
+        if (!comments.hasCommentSyntax()) {
+            return TriggerRecognizer.recognize(text, lineStart, lineEnd, out);
+        }
+        if (!comments.isComment(tokenType, highlighter)) {
+            return false;
+        }
+
+        int tokenStart = iterator.getStart();
+        int tokenEnd = iterator.getEnd();
+        int start = Math.max(tokenStart, lineStart);
+        int end = Math.min(tokenEnd, lineEnd);
+
+        if (start == tokenStart) {
+            start = comments.skipPrefix(text, start, end);
+        } else {
+            // continuation line of a block comment, i.e. ` * code ...`
+            start = skipLeadingStars(text, start, end);
+        }
+
+        String closing = null;
+        if (end == tokenEnd && comments.mBlockSuffix != null && endsWith(text, start, end, comments.mBlockSuffix)) {
+            if (caret >= end) {
+                // the user just closed the comment, the suffix terminates the trigger
+                closing = comments.mBlockSuffix;
+            } else {
+                end -= comments.mBlockSuffix.length();
+            }
+        }
+
+        return TriggerRecognizer.recognizeBody(text, start, end, closing, out);
+    }
+
+    private static EditorHighlighter getHighlighter(Document document) {
+        for (Editor editor : EditorFactory.getInstance().getEditors(document)) {
+            if (editor instanceof EditorEx) {
+                return ((EditorEx) editor).getHighlighter();
+            }
+        }
+        return null;
+    }
+
+    private boolean hasCommentSyntax() {
+        return mLinePrefix != null || mBlockPrefix != null || mCommentTokens.getTypes().length > 0;
+    }
+
+    private boolean isComment(IElementType tokenType, EditorHighlighter highlighter) {
+        if (mCommentTokens.contains(tokenType)) {
+            return true;
+        }
+        if (!(highlighter instanceof LexerEditorHighlighter)) {
+            return false;
+        }
+        // highlighting lexers may split comments further (i.e. javadoc), ask the highlighter how it paints the token
+        SyntaxHighlighter syntaxHighlighter = ((LexerEditorHighlighter) highlighter).getSyntaxHighlighter();
+        return mIsComment.computeIfAbsent(tokenType, type -> {
+            for (TextAttributesKey key : syntaxHighlighter.getTokenHighlights(type)) {
+                for (TextAttributesKey k = key; k != null; k = k.getFallbackAttributeKey()) {
+                    if (k == DefaultLanguageHighlighterColors.LINE_COMMENT
+                            || k == DefaultLanguageHighlighterColors.BLOCK_COMMENT
+                            || k == DefaultLanguageHighlighterColors.DOC_COMMENT) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        });
+    }
+
+    private int skipPrefix(CharSequence text, int start, int end) {
+        // longest prefix first, so `/**` and `///` are consumed entirely
+        int skipped = start;
+        if (mBlockPrefix != null && startsWith(text, start, end, mBlockPrefix)) {
+            skipped = start + mBlockPrefix.length();
+        } else if (mLinePrefix != null && startsWith(text, start, end, mLinePrefix)) {
+            skipped = start + mLinePrefix.length();
+        }
+        while (skipped < end && skipped > start && text.charAt(skipped) == text.charAt(skipped - 1)) {
+            skipped++;
+        }
+        return skipped;
+    }
+
+    private static int skipLeadingStars(CharSequence text, int start, int end) {
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (start < end && text.charAt(start) == '*') {
+            start++;
+        }
+        return start;
+    }
+
+    private static boolean startsWith(CharSequence text, int start, int end, String str) {
+        if (end - start < str.length()) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            if (text.charAt(start + i) != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean endsWith(CharSequence text, int start, int end, String str) {
+        return end - start >= str.length() && startsWith(text, end - str.length(), end, str);
+    }
+
+    private static String trimToNull(String str) {
+        if (str == null) {
+            return null;
+        }
+        str = str.trim();
+        return str.isEmpty() ? null : str;
+    }
+}
@@ -2,20 +2,18 @@ package com.igio90.intellij.openai;
 
 import com.igio90.intellij.openai.processors.Processors;
 import com.igio90.intellij.openai.utils.DocumentUtils;
-import com.intellij.ide.util.PropertiesComponent;
+import com.igio90.intellij.openai.utils.Prefs;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.command.undo.UndoManager;
 import com.intellij.openapi.editor.Document;
-import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.event.DocumentListener;
-import com.intellij.openapi.fileEditor.FileEditorManager;
-import com.intellij.openapi.progress.ProgressIndicator;
-import com.intellij.openapi.progress.Task;
-import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.progress.PerformInBackgroundOption;
+import com.intellij.openapi.progress.TaskInfo;
+import com.intellij.openapi.progress.impl.BackgroundableProcessIndicator;
+import com.intellij.openapi.util.Disposer;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Map;
-
 public class Listener implements DocumentListener {
     public static final int PROMPT_TYPE_NONE = -1;
     public static final int PROMPT_TYPE_CODE = 0;
@@ -23,6 +21,8 @@ public class Listener implements DocumentListener {
     public static final int PROMPT_TYPE_STYLE = 2;
 
     private final UndoManager mUndoManager;
+    // documentChanged is only dispatched on the edt, a single match can be recycled
+    private final TriggerRecognizer.Match mMatch = new TriggerRecognizer.Match();
 
     public Listener() {
         mUndoManager = UndoManager.getInstance(DocumentUtils.getProject());
@@ -34,6 +34,9 @@ public class Listener implements DocumentListener {
 
     @Override
     public void documentChanged(@NotNull DocumentEvent event) {
+        // still typing, deletions and undos included
+        TriggerScheduler.documentChanged(event.getDocument());
+
         if (event.getNewLength() <= event.getOldLength()) {
             // can we assume the user deleted or cut out some text and thus the real intention is not to query ai?
             return;
@@ -44,99 +47,26 @@ public class Listener implements DocumentListener {
         }
 
         Document document = event.getDocument();
-        int offset = event.getOffset();
-        int length = event.getNewLength();
-        TextRange insertedRange = new TextRange(offset, offset + length);
-        int lineNum = document.getLineNumber(insertedRange.getStartOffset());
+        CharSequence text = document.getImmutableCharSequence();
+        int lineNum = document.getLineNumber(event.getOffset());
         int lineOffset = document.getLineStartOffset(lineNum);
         int lineEndOffset = document.getLineEndOffset(lineNum);
-        String lineText = document.getText(
-                new TextRange(lineOffset, lineEndOffset)
-        ).trim();
-
-        // Check if the inserted text is a comment
-        Map<String, String> commentMarkers = Map.of(
-                "//", "C,C++,Java,JavaScript,Rust,Go,Scala,Kotlin,Dart,Swift,TypeScript",
-                "#", "Python,Ruby",
-                "--", "SQL,Lua,Ada",
-                "%", "LaTeX",
-                "<!--", "HTML,XML",
-                "-->", "HTML,XML",
-                "*", "SCSS,Sass,CSS,Less"
-        );
-
-        String[] words = lineText.split("\\s+");
-        if (words.length < 2) {
-            return;
-        }
-
-        String commentMarker = words[0];
-        if (!commentMarkers.containsKey(commentMarker)) {
-            return;
-        }
-
-        String commentKeyword = words[1];
-        String endStr = null;
-
-        int promptType = PROMPT_TYPE_NONE;
-        switch (commentKeyword) {
-            case "code":
-            case "add":
-                promptType = PROMPT_TYPE_CODE;
-                break;
-            case "document":
-                promptType = PROMPT_TYPE_DOC;
-                break;
-        }
-
-        if (promptType == PROMPT_TYPE_NONE) {
-            if (words.length < 3) {
-                return;
-            }
-
-            if (commentKeyword.equals("generate") || commentKeyword.equals("create")) {
-                switch (words[2]) {
-                    case "code":
-                        promptType = PROMPT_TYPE_CODE;
-                        break;
-                    case "doc":
-                        promptType = PROMPT_TYPE_DOC;
-                        break;
-                }
-            } else if (commentKeyword.equals("apply")) {
-                switch (words[2]) {
-                    case "lint":
-                    case "style":
-                        promptType = PROMPT_TYPE_STYLE;
-                        break;
-                }
-            }
-        } else {
-            endStr = ".";
-        }
-
-        if (promptType == PROMPT_TYPE_NONE) {
+        int caret = Math.min(event.getOffset() + event.getNewLength(), lineEndOffset);
+        if (!TriggerRecognizer.isCandidate(text, lineOffset, caret)) {
             return;
         }
 
-        if (commentMarker.equals("<!--")) {
-            // in those comment cases, endStr has to be replaced with what ends the comment for the current code lang
-            endStr = "-->";
-        }
-
-        if (endStr != null && !words[words.length - 1].endsWith(endStr)) {
+        if (!CommentTokens.recognize(document, text, lineOffset, lineEndOffset, caret, mMatch)) {
             return;
         }
 
+        int promptType = mMatch.promptType;
         String query = "";
         if (promptType == PROMPT_TYPE_CODE) {
-            query = lineText.substring(lineText.indexOf(words[2]), lineText.length() - 1).trim();
-            if (query.isBlank()) {
-                return;
-            }
+            query = text.subSequence(mMatch.queryStart, mMatch.queryEnd).toString();
         }
 
-        String apiKey = PropertiesComponent.getInstance().getValue("openai_api_key", "");
+        String apiKey = Prefs.API_KEY.getValue();
         if (apiKey.isBlank()) {
             DocumentUtils.replaceTextAtLine(
                     document,
@@ -152,10 +82,10 @@ public class Listener implements DocumentListener {
             return;
         }
 
-        process(document, lineNum, promptType, query);
+        TriggerScheduler.forDocument(document).schedule(lineNum, promptType, query);
     }
 
-    private void process(Document document, int lineNum, int promptType, String query) {
+    static void process(Document document, int lineNum, int promptType, String query) {
         String label = "";
         switch (promptType) {
             case PROMPT_TYPE_CODE:
@@ -169,49 +99,95 @@ public class Listener implements DocumentListener {
                 break;
         }
 
-        String finalLabel = label;
-        new Task.Backgroundable(DocumentUtils.getProject(), finalLabel) {
-            @Override
-            public void run(@NotNull ProgressIndicator indicator) {
-                Processors.OnProcessFinished onProcessFinished = () -> {
-                    indicator.setIndeterminate(false);
-                    // document.setReadOnly(false);
-                };
-
-                indicator.setText(finalLabel);
-                indicator.setFraction(0);
-                indicator.setIndeterminate(true);
-
-                DocumentUtils.replaceTextAtLine(document, lineNum, "// " + finalLabel, "code gen");
-                // document.setReadOnly(true);
-
-                switch (promptType) {
-                    case PROMPT_TYPE_CODE:
-                        Processors.getInstance().processCode(
-                            document, lineNum, query, onProcessFinished
-                        );
-                        break;
-                    case PROMPT_TYPE_DOC:
-                        Processors.getInstance().processDoc(
-                            document, lineNum, onProcessFinished
-                        );
-                        break;
-                    case PROMPT_TYPE_STYLE:
-                        Processors.getInstance().processLint(
-                            document, lineNum, onProcessFinished
-                        );
-                        break;
-                }
-
-                while (indicator.isIndeterminate()) {
-                    // this will wait until the indicator is set to not indeterminate and prevent it from disappear
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
+        String placeholder = "// " + label;
+        RequestIndicator indicator = new RequestIndicator(label);
+        indicator.setText(label);
+        indicator.setIndeterminate(true);
+        indicator.start();
+
+        Processors.RequestHandle request;
+        switch (promptType) {
+            case PROMPT_TYPE_CODE:
+                request = Processors.getInstance().processCode(document, lineNum, query, placeholder);
+                break;
+            case PROMPT_TYPE_DOC:
+                request = Processors.getInstance().processDoc(document, lineNum, placeholder);
+                break;
+            default:
+                request = Processors.getInstance().processLint(document, lineNum, placeholder);
+                break;
+        }
+
+        indicator.setRequest(request);
+        // no thread waits on the request, the indicator goes away once the completion fires however it ends
+        request.getCompletion().whenComplete((result, error) ->
+                ApplicationManager.getApplication().invokeLater(indicator::finish)
+        );
+    }
+
+    private static class RequestIndicator extends BackgroundableProcessIndicator {
+        private final TaskInfo mInfo;
+        private volatile Processors.RequestHandle mRequest;
+
+        RequestIndicator(String title) {
+            this(new RequestInfo(title));
+        }
+
+        private RequestIndicator(TaskInfo info) {
+            super(DocumentUtils.getProject(), info, PerformInBackgroundOption.ALWAYS_BACKGROUND);
+            mInfo = info;
+        }
+
+        void setRequest(Processors.RequestHandle request) {
+            mRequest = request;
+            if (isCanceled()) {
+                request.cancel();
             }
-        }.queue();
+        }
+
+        @Override
+        public void cancel() {
+            super.cancel();
+            Processors.RequestHandle request = mRequest;
+            if (request != null) {
+                request.cancel();
+            }
+        }
+
+        void finish() {
+            if (isRunning()) {
+                stop();
+            }
+            finish(mInfo);
+            Disposer.dispose(this);
+        }
+    }
+
+    private static class RequestInfo implements TaskInfo {
+        private final String mTitle;
+
+        RequestInfo(String title) {
+            mTitle = title;
+        }
+
+        @Override
+        public @NotNull String getTitle() {
+            return mTitle;
+        }
+
+        @Override
+        public String getCancelText() {
+            return "Cancel";
+        }
+
+        @Override
+        public String getCancelTooltipText() {
+            return "Cancel";
+        }
+
+        @Override
+        public boolean isCancellable() {
+            return true;
+        }
     }
-}
\ No newline at end of file
+}
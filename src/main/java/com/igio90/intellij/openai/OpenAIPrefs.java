@@ -1,28 +1,33 @@
 package com.igio90.intellij.openai;
 
-import com.intellij.ide.util.PropertiesComponent;
+import com.igio90.intellij.openai.utils.Prefs;
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
 
 public class OpenAIPrefs extends AnAction {
     @Override
     public void actionPerformed(@NotNull AnActionEvent e) {
         SettingsDialog dialog = new SettingsDialog();
         dialog.setVisible(true);
-        PropertiesComponent.getInstance().setValue("openai_api_key", dialog.getApiKey());
+        if (dialog.isConfirmed()) {
+            dialog.apply();
+        }
     }
 
     public static class SettingsDialog extends JDialog {
-        private final JTextField mApiKeyField;
+        private final List<Prefs.Entry> mEntries = Prefs.getEntries();
+        private final List<JTextField> mFields = new ArrayList<>();
 
-        private String mApiKey;
+        private boolean mConfirmed;
 
         public SettingsDialog() {
-            setTitle("API Key");
-            setSize(400, 150);
+            setTitle("OpenAI Preferences");
+            setSize(480, 150 + 30 * (mEntries.size() - 1));
             setModal(true);
 
             // Create a panel to hold the UI components
@@ -33,13 +38,27 @@ public class OpenAIPrefs extends AnAction {
             layout.setAutoCreateGaps(true);
             layout.setAutoCreateContainerGaps(true);
 
-            // Add a label for the API key field
-            JLabel apiKeyLabel = new JLabel("API Key:");
-            mApiKeyField = new JTextField();
-            mApiKeyField.setText(PropertiesComponent.getInstance().getValue("openai_api_key", ""));
+            // Add a label and a field for each preference
+            GroupLayout.ParallelGroup labelsGroup = layout.createParallelGroup(GroupLayout.Alignment.LEADING);
+            GroupLayout.ParallelGroup fieldsGroup = layout.createParallelGroup(GroupLayout.Alignment.LEADING);
+            GroupLayout.SequentialGroup rowsGroup = layout.createSequentialGroup();
+            for (Prefs.Entry entry : mEntries) {
+                JLabel label = new JLabel(entry.getLabel());
+                JTextField field = new JTextField();
+                field.setText(entry.getValue());
+                mFields.add(field);
+
+                labelsGroup.addComponent(label);
+                fieldsGroup.addComponent(field);
+                rowsGroup.addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+                        .addComponent(label)
+                        .addComponent(field)
+                );
+            }
+
             JButton okButton = new JButton("OK");
             okButton.addActionListener(e -> {
-                mApiKey = mApiKeyField.getText();
+                mConfirmed = true;
                 dispose();
             });
             JButton cancelButton = new JButton("Cancel");
@@ -48,9 +67,9 @@ public class OpenAIPrefs extends AnAction {
             layout.setHorizontalGroup(
                     layout.createParallelGroup(GroupLayout.Alignment.LEADING)
                             .addGroup(layout.createSequentialGroup()
-                                    .addComponent(apiKeyLabel)
+                                    .addGroup(labelsGroup)
                                     .addPreferredGap(LayoutStyle.ComponentPlacement.RELATED)
-                                    .addComponent(mApiKeyField)
+                                    .addGroup(fieldsGroup)
                             )
                             .addGroup(layout.createSequentialGroup()
                                     .addGap(0, 0, Short.MAX_VALUE)
@@ -62,10 +81,7 @@ public class OpenAIPrefs extends AnAction {
 
             layout.setVerticalGroup(
                     layout.createSequentialGroup()
-                            .addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
-                                    .addComponent(apiKeyLabel)
-                                    .addComponent(mApiKeyField)
-                            )
+                            .addGroup(rowsGroup)
                             .addGroup(layout.createParallelGroup(GroupLayout.Alignment.BASELINE)
                                     .addComponent(okButton)
                                     .addComponent(cancelButton)
@@ -78,8 +94,14 @@ public class OpenAIPrefs extends AnAction {
             setLocationRelativeTo(null);
         }
 
-        public String getApiKey() {
-            return mApiKey;
+        public boolean isConfirmed() {
+            return mConfirmed;
+        }
+
+        public void apply() {
+            for (int i = 0; i < mEntries.size(); i++) {
+                mEntries.get(i).setValue(mFields.get(i).getText());
+            }
         }
     }
 }
@@ -0,0 +1,259 @@
+package com.igio90.intellij.openai;
+
+import com.intellij.lang.Commenter;
+import com.intellij.lang.Language;
+import com.intellij.lang.LanguageCommenters;
+
+import java.util.Arrays;
+
+final class TriggerRecognizer {
+    private static final int NO_TERMINATOR = 0;
+    private static final int TERMINATOR_DOT = 1;
+
+    private static final String COMMENT_END = "-->";
+
+    private static final String[] MARKERS = {
+            "//", "#", "--", "%", "<!--", "-->", "*"
+    };
+    private static final int MARKER_COMMENT_START = 4;
+
+    // a single space in a phrase matches any run of whitespace
+    private static final String[] KEYWORDS = {
+            "code", "add", "document",
+            "generate code", "create code",
+            "generate doc", "create doc",
+            "apply lint", "apply style"
+    };
+    private static final int[] KEYWORD_PROMPT_TYPES = {
+            Listener.PROMPT_TYPE_CODE, Listener.PROMPT_TYPE_CODE, Listener.PROMPT_TYPE_DOC,
+            Listener.PROMPT_TYPE_CODE, Listener.PROMPT_TYPE_CODE,
+            Listener.PROMPT_TYPE_DOC, Listener.PROMPT_TYPE_DOC,
+            Listener.PROMPT_TYPE_STYLE, Listener.PROMPT_TYPE_STYLE
+    };
+    private static final int[] KEYWORD_TERMINATORS = {
+            TERMINATOR_DOT, TERMINATOR_DOT, TERMINATOR_DOT,
+            TERMINATOR_DOT, TERMINATOR_DOT,
+            NO_TERMINATOR, NO_TERMINATOR,
+            NO_TERMINATOR, NO_TERMINATOR
+    };
+
+    private static final Trie MARKER_TRIE = new Trie();
+    private static final Trie KEYWORD_TRIE = new Trie();
+    private static final boolean[] LAST_CHARS = new boolean[128];
+
+    static {
+        for (int i = 0; i < MARKERS.length; i++) {
+            MARKER_TRIE.add(MARKERS[i], i, 0);
+        }
+        for (int i = 0; i < KEYWORDS.length; i++) {
+            String phrase = KEYWORDS[i];
+            KEYWORD_TRIE.add(phrase, KEYWORD_PROMPT_TYPES[i], KEYWORD_TERMINATORS[i]);
+            if (KEYWORD_TERMINATORS[i] == NO_TERMINATOR) {
+                LAST_CHARS[phrase.charAt(phrase.length() - 1)] = true;
+            }
+        }
+        LAST_CHARS['.'] = true;
+        LAST_CHARS['>'] = true;
+        LAST_CHARS['/'] = true;
+        // block comment suffixes of every language, those of languages loaded later are registered by CommentTokens
+        for (Language language : Language.getRegisteredLanguages()) {
+            Commenter commenter = LanguageCommenters.INSTANCE.forLanguage(language);
+            String suffix = commenter == null ? null : commenter.getBlockCommentSuffix();
+            suffix = suffix == null ? "" : suffix.trim();
+            if (!suffix.isEmpty()) {
+                registerClosingChar(suffix.charAt(suffix.length() - 1));
+            }
+        }
+    }
+
+    private TriggerRecognizer() {
+    }
+
+    static final class Match {
+        int promptType;
+        int queryStart;
+        int queryEnd;
+    }
+
+    /**
+     * cheap pre-filter: a line can only be a trigger if the last non blank char before the caret closes a keyword
+     */
+    static void registerClosingChar(char c) {
+        if (c < 128) {
+            LAST_CHARS[c] = true;
+        }
+    }
+
+    static boolean isCandidate(CharSequence text, int lineStart, int lineEnd) {
+        int last = skipWhitespaceBackward(text, lineStart, lineEnd);
+        if (last < lineStart) {
+            return false;
+        }
+        char c = text.charAt(last);
+        return c < 128 && LAST_CHARS[c];
+    }
+
+    static boolean recognize(CharSequence text, int lineStart, int lineEnd, Match out) {
+        int pos = skipWhitespace(text, lineStart, lineEnd);
+
+        long marker = MARKER_TRIE.match(text, pos, lineEnd);
+        if (marker < 0) {
+            return false;
+        }
+        String closing = MARKER_TRIE.accept(marker) == MARKER_COMMENT_START ? COMMENT_END : null;
+        return recognizeBody(text, Trie.end(marker), lineEnd, closing, out);
+    }
+
+    /**
+     * matches the keywords in a comment body. when closing is given, it terminates the trigger instead of the keyword terminator
+     */
+    static boolean recognizeBody(CharSequence text, int start, int end, String closing, Match out) {
+        int pos = skipWhitespace(text, start, end);
+
+        long keyword = KEYWORD_TRIE.match(text, pos, end);
+        if (keyword < 0) {
+            return false;
+        }
+        int keywordEnd = Trie.end(keyword);
+        int promptType = KEYWORD_TRIE.accept(keyword);
+
+        int last = skipWhitespaceBackward(text, keywordEnd, end);
+        int queryEnd = last + 1;
+        if (closing != null) {
+            int length = closing.length();
+            if (last - length + 1 < keywordEnd || !regionMatches(text, last - length + 1, closing)) {
+                return false;
+            }
+            queryEnd = last - length + 1;
+        } else if (KEYWORD_TRIE.flags(keyword) == TERMINATOR_DOT) {
+            if (last < keywordEnd || text.charAt(last) != '.') {
+                return false;
+            }
+            queryEnd = last;
+        }
+
+        int queryStart = skipWhitespace(text, keywordEnd, queryEnd);
+        queryEnd = skipWhitespaceBackward(text, queryStart, queryEnd) + 1;
+        if (promptType == Listener.PROMPT_TYPE_CODE && queryEnd <= queryStart) {
+            return false;
+        }
+
+        out.promptType = promptType;
+        out.queryStart = queryStart;
+        out.queryEnd = Math.max(queryStart, queryEnd);
+        return true;
+    }
+
+    private static int skipWhitespace(CharSequence text, int start, int end) {
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int skipWhitespaceBackward(CharSequence text, int start, int end) {
+        int pos = end - 1;
+        while (pos >= start && Character.isWhitespace(text.charAt(pos))) {
+            pos--;
+        }
+        return pos;
+    }
+
+    private static boolean regionMatches(CharSequence text, int start, String str) {
+        for (int i = 0; i < str.length(); i++) {
+            if (text.charAt(start + i) != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Trie {
+        private static final int ALPHABET = 128;
+        private static final int WHITESPACE = ' ';
+
+        private int[][] mNext = new int[8][];
+        private int[] mAccept = new int[8];
+        private int[] mFlags = new int[8];
+        private int mSize;
+
+        Trie() {
+            newState();
+        }
+
+        static int end(long match) {
+            return (int) match;
+        }
+
+        int accept(long match) {
+            return mAccept[(int) (match >>> 32)];
+        }
+
+        int flags(long match) {
+            return mFlags[(int) (match >>> 32)];
+        }
+
+        void add(String phrase, int accept, int flags) {
+            int state = 0;
+            for (int i = 0; i < phrase.length(); i++) {
+                char c = phrase.charAt(i);
+                int next = mNext[state][c];
+                if (next == 0) {
+                    next = newState();
+                    mNext[state][c] = next;
+                }
+                state = next;
+            }
+            mAccept[state] = accept;
+            mFlags[state] = flags;
+        }
+
+        /**
+         * walks the longest phrase starting at start which is followed by whitespace or end
+         * @return the accepting state and the end offset of the phrase packed in a long, or -1
+         */
+        long match(CharSequence text, int start, int end) {
+            int state = 0;
+            int pos = start;
+            long match = -1;
+            while (pos < end) {
+                char c = text.charAt(pos);
+                int next;
+                if (Character.isWhitespace(c)) {
+                    if (mAccept[state] >= 0) {
+                        match = pack(state, pos);
+                    }
+                    next = mNext[state][WHITESPACE];
+                    if (next == 0) {
+                        return match;
+                    }
+                    pos = skipWhitespace(text, pos, end);
+                } else {
+                    next = c < ALPHABET ? mNext[state][c] : 0;
+                    if (next == 0) {
+                        return match;
+                    }
+                    pos++;
+                }
+                state = next;
+            }
+            return mAccept[state] >= 0 ? pack(state, pos) : match;
+        }
+
+        private static long pack(int state, int pos) {
+            return ((long) state << 32) | pos;
+        }
+
+        private int newState() {
+            if (mSize == mNext.length) {
+                int capacity = mSize * 2;
+                mNext = Arrays.copyOf(mNext, capacity);
+                mAccept = Arrays.copyOf(mAccept, capacity);
+                mFlags = Arrays.copyOf(mFlags, capacity);
+            }
+            mNext[mSize] = new int[ALPHABET];
+            mAccept[mSize] = -1;
+            return mSize++;
+        }
+    }
+}
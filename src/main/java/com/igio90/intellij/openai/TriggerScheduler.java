@@ -0,0 +1,148 @@
+package com.igio90.intellij.openai;
+
+import com.igio90.intellij.openai.processors.Processors;
+import com.igio90.intellij.openai.utils.Prefs;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.RangeMarker;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.UserDataHolderEx;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * holds triggers of a document until the user stops typing for the configured quiet period, any edit of the
+ * document restarts it. a trigger on a line which already has one pending replaces it, so a burst of edits costs
+ * one request
+ */
+final class TriggerScheduler {
+    private static final Key<TriggerScheduler> KEY = Key.create("openai.trigger.scheduler");
+
+    private final Document mDocument;
+    // only touched on the edt
+    private final List<PendingTrigger> mPending = new ArrayList<>();
+    private Future<?> mFlush;
+    // bumped by every schedule, a flush already posted to the edt for an older one is stale
+    private long mGeneration;
+
+    private TriggerScheduler(Document document) {
+        mDocument = document;
+    }
+
+    static TriggerScheduler forDocument(Document document) {
+        TriggerScheduler scheduler = document.getUserData(KEY);
+        if (scheduler == null) {
+            scheduler = ((UserDataHolderEx) document).putUserDataIfAbsent(KEY, new TriggerScheduler(document));
+        }
+        return scheduler;
+    }
+
+    int getQueueDepth() {
+        return mPending.size();
+    }
+
+    /**
+     * restarts the quiet period of the document triggers, if any, must be called on the edt for every change
+     */
+    static void documentChanged(Document document) {
+        TriggerScheduler scheduler = document.getUserData(KEY);
+        if (scheduler != null && !scheduler.mPending.isEmpty()) {
+            scheduler.restartQuietPeriod();
+        }
+    }
+
+    void schedule(int lineNum, int promptType, String query) {
+        int lineStart = mDocument.getLineStartOffset(lineNum);
+        int lineEnd = mDocument.getLineEndOffset(lineNum);
+
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            PendingTrigger pending = mPending.get(i);
+            if (!pending.mMarker.isValid() || getLineNumber(pending) == lineNum) {
+                remove(i);
+            }
+        }
+
+        RangeMarker marker = mDocument.createRangeMarker(lineStart, lineEnd);
+        String lineText = mDocument.getImmutableCharSequence().subSequence(lineStart, lineEnd).toString();
+        mPending.add(new PendingTrigger(marker, lineText, promptType, query));
+        Processors.getInstance().addPendingTriggers(1);
+        restartQuietPeriod();
+    }
+
+    private void restartQuietPeriod() {
+        if (mFlush != null) {
+            mFlush.cancel(false);
+        }
+        long generation = ++mGeneration;
+        mFlush = AppExecutorUtil.getAppScheduledExecutorService().schedule(
+                () -> ApplicationManager.getApplication().invokeLater(() -> flush(generation)),
+                Math.max(0, Prefs.DEBOUNCE_MS.getLong()),
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    private void flush(long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        mFlush = null;
+        List<PendingTrigger> pending = new ArrayList<>(mPending);
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            remove(i);
+        }
+
+        CharSequence text = mDocument.getImmutableCharSequence();
+        for (PendingTrigger trigger : pending) {
+            if (!trigger.mMarker.isValid()) {
+                continue;
+            }
+            int lineNum = getLineNumber(trigger);
+            int lineStart = mDocument.getLineStartOffset(lineNum);
+            int lineEnd = mDocument.getLineEndOffset(lineNum);
+            // the line has been edited again without producing a new trigger, the request would be thrown away
+            if (!contentEquals(text, lineStart, lineEnd, trigger.mLineText)) {
+                continue;
+            }
+            Listener.process(mDocument, lineNum, trigger.mPromptType, trigger.mQuery);
+        }
+    }
+
+    private void remove(int index) {
+        mPending.remove(index).mMarker.dispose();
+        Processors.getInstance().addPendingTriggers(-1);
+    }
+
+    private int getLineNumber(PendingTrigger pending) {
+        return mDocument.getLineNumber(pending.mMarker.getStartOffset());
+    }
+
+    private static boolean contentEquals(CharSequence text, int start, int end, String str) {
+        if (end - start != str.length()) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            if (text.charAt(start + i) != str.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class PendingTrigger {
+        private final RangeMarker mMarker;
+        private final String mLineText;
+        private final int mPromptType;
+        private final String mQuery;
+
+        private PendingTrigger(RangeMarker marker, String lineText, int promptType, String query) {
+            mMarker = marker;
+            mLineText = lineText;
+            mPromptType = promptType;
+            mQuery = query;
+        }
+    }
+}
@@ -1,37 +1,83 @@
 package com.igio90.intellij.openai.processors;
 
 import com.igio90.intellij.openai.utils.DocumentUtils;
+import com.igio90.intellij.openai.utils.Prefs;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.RangeMarker;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import name.fraser.neil.plaintext.diff_match_patch;
+import okhttp3.Call;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okio.BufferedSource;
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-abstract class BaseProcessor extends Thread {
+abstract class BaseProcessor implements Runnable, Processors.RequestHandle {
     private final Document mDocument;
     private final int mLineNum;
     private final int mCurrentIndent;
     private final String mQuery;
     private final String mLanguage;
-    private final Processors.OnProcessFinished mOnProcessFinished;
+    private final CompletableFuture<Void> mCompletion = new CompletableFuture<>();
 
-    BaseProcessor(Document document, int lineNum, @NotNull Processors.OnProcessFinished onProcessFinished) {
-        this(document, lineNum, 0, null, null, onProcessFinished);
+    // the trigger line, any edit to it makes the result useless
+    private volatile RangeMarker mTriggerLine;
+    private volatile Call mCall;
+    private volatile boolean mCancelled;
+    private volatile ContextWindow mContextWindow;
+
+    // streaming state, only touched on the edt
+    private boolean mWriting;
+    private boolean mStreamStarted;
+    private final String mStreamGroupId = "openai-stream-" + System.identityHashCode(this);
+
+    private final DocumentListener mTriggerLineListener = new DocumentListener() {
+        @Override
+        public void beforeDocumentChange(@NotNull DocumentEvent event) {
+            RangeMarker triggerLine = mTriggerLine;
+            if (!mWriting && triggerLine != null && touches(event, triggerLine)) {
+                cancel();
+            }
+        }
+
+        @Override
+        public void documentChanged(@NotNull DocumentEvent event) {
+            RangeMarker triggerLine = mTriggerLine;
+            if (triggerLine != null && !triggerLine.isValid()) {
+                cancel();
+            }
+        }
+    };
+
+    BaseProcessor(Document document, int lineNum) {
+        this(document, lineNum, 0, null, null);
     }
 
-    BaseProcessor(Document document, int lineNum, int currentIndent, String query, String language, @NotNull Processors.OnProcessFinished onProcessFinished) {
+    BaseProcessor(Document document, int lineNum, int currentIndent, String query, String language) {
         mDocument = document;
         mLineNum = lineNum;
         mCurrentIndent = currentIndent;
         mQuery = query;
         mLanguage = language;
-        mOnProcessFinished = onProcessFinished;
+        // however the request ends, nothing is written past it
+        mCompletion.whenComplete(
+                (result, error) -> ApplicationManager.getApplication().invokeLater(this::stopTracking)
+        );
     }
 
     String getQuery() {
@@ -47,6 +93,10 @@ abstract class BaseProcessor extends Thread {
     }
 
     int getLineNum() {
+        RangeMarker triggerLine = mTriggerLine;
+        if (triggerLine != null && triggerLine.isValid()) {
+            return mDocument.getLineNumber(triggerLine.getStartOffset());
+        }
         return mLineNum;
     }
 
@@ -54,60 +104,577 @@ abstract class BaseProcessor extends Thread {
         return mCurrentIndent;
     }
 
+    /**
+     * @return one of the ProcessorExecutor priorities, lower runs first
+     */
+    abstract int getPriority();
+
     protected abstract String getUrl();
 
     protected abstract JSONObject getRequestObject();
 
     protected abstract void onResponse(String content);
 
-    protected String getDocumentTextWithoutTriggerLine() {
-        List<String> lines = new ArrayList<>(List.of(getDocument().getText().split("\n")));
-        lines.remove(getLineNum());
-        return String.join("\n", lines);
+    /**
+     * streaming processors get the completion written chunk by chunk at the trigger line instead of onResponse
+     */
+    protected boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * called on the edt once the whole stream has been written between firstLine and lastLine
+     */
+    protected void onStreamFinished(String content, int firstLine, int lastLine) {
+    }
+
+    /**
+     * requests which may be answered by the completion of a similarly worded one return their query here
+     */
+    protected SimilarityCache.Query getSimilarityQuery() {
+        return null;
+    }
+
+    /**
+     * @return the line whose enclosing declaration is sent when the document exceeds the context budget
+     */
+    protected int getContextAnchorLine(int triggerLine) {
+        return triggerLine;
+    }
+
+    /**
+     * @return whether declarations referenced from the context window are sent along with it
+     */
+    protected boolean needsReferences() {
+        return true;
+    }
+
+    /**
+     * built once per request from the worker thread
+     */
+    ContextWindow getContextWindow() {
+        if (mContextWindow == null) {
+            int triggerLine = getLineNum();
+            mContextWindow = ContextWindow.build(
+                    DocumentUtils.getProject(),
+                    mDocument,
+                    triggerLine,
+                    getContextAnchorLine(triggerLine),
+                    Prefs.CONTEXT_TOKEN_BUDGET.getInt(),
+                    needsReferences()
+            );
+        }
+        return mContextWindow;
+    }
+
+    /**
+     * replaces the context window, trigger line included, with content. edits made to the window while the request
+     * was in flight are merged with it, conflicting ones are left between conflict markers
+     */
+    void replaceContextWindow(String content, String actionName) {
+        ContextWindow window = getContextWindow();
+        CharSequence text = window.getText();
+        boolean textEndsWithNewLine = text.length() > 0 && text.charAt(text.length() - 1) == '\n';
+        String result = content;
+        if (!window.isWholeDocument() && content.endsWith("\n") && !textEndsWithNewLine) {
+            // the window ends before a line break which is kept
+            result = content.substring(0, content.length() - 1);
+        }
+        // diffed here against the window as sent, the edt only writes the changed regions
+        DocumentUtils.Edits edits = DocumentUtils.computeMinimalEdits(
+                window.getSnapshotRangeText(), result, window.getSnapshot().getModificationStamp()
+        );
+        String replacement = result;
+        DocumentUtils.replaceRange(
+                getDocument(),
+                this::claimContextWindow,
+                edits,
+                actionName,
+                () -> mergeUserEdits(window, replacement, actionName),
+                this::markWritten
+        );
+    }
+
+    /**
+     * three way merge of the window as sent, as it is now and as returned, on a pooled thread. only the changed
+     * regions of the merged window are written on the edt, merging again if the document changed in between
+     */
+    private void mergeUserEdits(ContextWindow window, String content, String actionName) {
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            if (mCancelled) {
+                return;
+            }
+            DocumentSnapshot[] current = new DocumentSnapshot[1];
+            TextRange[] ranges = new TextRange[2];
+            ApplicationManager.getApplication().runReadAction(() -> {
+                current[0] = DocumentSnapshot.take(mDocument);
+                ContextWindow contextWindow = mContextWindow;
+                ranges[0] = contextWindow == null ? null : contextWindow.getRange();
+                ranges[1] = getTriggerLineRange();
+            });
+            TextRange range = ranges[0];
+            TextRange triggerLine = ranges[1];
+            if (range == null) {
+                markDropped();
+                return;
+            }
+
+            CharSequence text = current[0].getText().subSequence(range.getStartOffset(), range.getEndOffset());
+            // the window as sent has no trigger line, one the window no longer holds leaves nothing to take out
+            String currentText = text.toString();
+            if (triggerLine != null && range.contains(triggerLine)) {
+                currentText = withoutLine(
+                        text,
+                        triggerLine.getStartOffset() - range.getStartOffset(),
+                        triggerLine.getEndOffset() - range.getStartOffset()
+                );
+            }
+            diff_match_patch dmp = new diff_match_patch();
+            dmp.Diff_Timeout = Math.max(0, Prefs.DIFF_TIMEOUT_MS.getLong()) / 1000f;
+            dmp.Diff_LineAlgorithm = Prefs.DIFF_ALGORITHM.getEnum(diff_match_patch.LineAlgorithm.class);
+            int conflicts = 0;
+            StringBuilder builder = new StringBuilder(content.length());
+            for (diff_match_patch.Merge merge : dmp.merge_main(window.getText().toString(), currentText, content)) {
+                if (!merge.isConflict()) {
+                    builder.append(merge.text);
+                    continue;
+                }
+                conflicts++;
+                builder.append("<<<<<<< yours\n");
+                appendLines(builder, merge.text1);
+                builder.append("=======\n");
+                appendLines(builder, merge.text2);
+                builder.append(">>>>>>> openai\n");
+            }
+            String merged = builder.toString();
+
+            int conflictCount = conflicts;
+            DocumentUtils.replaceRange(
+                    mDocument,
+                    () -> {
+                        TextRange claimed = claimContextWindow();
+                        if (claimed != null && conflictCount > 0) {
+                            DocumentUtils.showStatus(
+                                    "OpenAI: " + conflictCount + " conflicts with your edits, marked in the file"
+                            );
+                        }
+                        return claimed;
+                    },
+                    DocumentUtils.computeMinimalEdits(text, merged, current[0].getModificationStamp()),
+                    actionName,
+                    () -> mergeUserEdits(window, content, actionName),
+                    this::markWritten
+            );
+        });
+    }
+
+    /**
+     * @return text without the line [lineStart, lineEnd), left out the same way as the trigger line of a window
+     */
+    private static String withoutLine(CharSequence text, int lineStart, int lineEnd) {
+        if (lineEnd < text.length()) {
+            return new StringBuilder(text).delete(lineStart, lineEnd + 1).toString();
+        }
+        // the line break before the last line goes with it
+        return text.subSequence(0, Math.max(0, lineStart - 1)).toString();
+    }
+
+    private static void appendLines(StringBuilder builder, String lines) {
+        builder.append(lines);
+        if (!lines.isEmpty() && !lines.endsWith("\n")) {
+            builder.append('\n');
+        }
+    }
+
+    /**
+     * replaces the trigger line with a placeholder, starts tracking it and then sends the request
+     */
+    void begin(String placeholder) {
+        DocumentUtils.replaceTextAtLine(
+                mDocument,
+                () -> {
+                    if (mCancelled) {
+                        return -1;
+                    }
+                    return mLineNum;
+                },
+                placeholder,
+                "code gen",
+                true
+        );
+        ApplicationManager.getApplication().invokeLater(() -> {
+            if (mCancelled) {
+                mCompletion.cancel(false);
+                return;
+            }
+            int lineNum = Math.min(mLineNum, mDocument.getLineCount() - 1);
+            mTriggerLine = mDocument.createRangeMarker(
+                    mDocument.getLineStartOffset(lineNum),
+                    mDocument.getLineEndOffset(lineNum)
+            );
+            mDocument.addDocumentListener(mTriggerLineListener);
+            try {
+                Processors.getInstance().getExecutor().execute(this);
+            } catch (RejectedExecutionException e) {
+                fail(e);
+            }
+        });
+    }
+
+    @Override
+    public void cancel() {
+        mCancelled = true;
+        Call call = mCall;
+        if (call != null) {
+            call.cancel();
+        }
+        // nothing is written once cancelled, so waiters need not wait for the call or the queue
+        mCompletion.cancel(false);
+        Processors.getInstance().getExecutor().remove(this);
+    }
+
+    @Override
+    public CompletableFuture<Void> getCompletion() {
+        return mCompletion;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * completes the request, must be called on the edt once the result has been written
+     */
+    void markWritten() {
+        mCompletion.complete(null);
+    }
+
+    /**
+     * fails the request when its result is not written for any other reason than a cancellation
+     */
+    private void markDropped() {
+        if (!mCancelled) {
+            mCompletion.completeExceptionally(
+                    new IllegalStateException("the result has no place left in the document")
+            );
+        }
+    }
+
+    /**
+     * stops tracking the trigger line, must be called on the edt right before writing the result
+     * @return the current trigger line or -1 if the request has been cancelled
+     */
+    int claimTriggerLine() {
+        if (mCancelled) {
+            return -1;
+        }
+        int lineNum = getLineNum();
+        stopTracking();
+        return lineNum;
+    }
+
+    boolean claimDocument() {
+        return claimTriggerLine() >= 0;
+    }
+
+    /**
+     * @return the current range of the context window or null if the request has been cancelled
+     */
+    TextRange claimContextWindow() {
+        ContextWindow window = mContextWindow;
+        TextRange range = window == null || mCancelled ? null : window.getRange();
+        if (range == null || claimTriggerLine() < 0) {
+            markDropped();
+            return null;
+        }
+        return range;
+    }
+
+    private TextRange getTriggerLineRange() {
+        RangeMarker triggerLine = mTriggerLine;
+        return triggerLine != null && triggerLine.isValid() ? triggerLine.getTextRange() : null;
+    }
+
+    private void stopTracking() {
+        RangeMarker triggerLine = mTriggerLine;
+        if (triggerLine != null) {
+            mTriggerLine = null;
+            mDocument.removeDocumentListener(mTriggerLineListener);
+            triggerLine.dispose();
+        }
+        ContextWindow window = mContextWindow;
+        if (window != null) {
+            window.dispose();
+        }
+    }
+
+    private static boolean touches(DocumentEvent event, RangeMarker triggerLine) {
+        int start = triggerLine.getStartOffset();
+        int end = triggerLine.getEndOffset();
+        int changeStart = event.getOffset();
+        int changeEnd = changeStart + event.getOldLength();
+        if (changeEnd < start || changeStart > end) {
+            return false;
+        }
+        if (event.getOldLength() == 0) {
+            // new lines opened right before or after the trigger line leave it untouched
+            CharSequence inserted = event.getNewFragment();
+            if (changeStart == end && inserted.length() > 0 && inserted.charAt(0) == '\n') {
+                return false;
+            }
+            if (changeStart == start && inserted.length() > 0 && inserted.charAt(inserted.length() - 1) == '\n') {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public void run() {
+        try {
+            // requests cancelled while queued never reach the network
+            if (!mCancelled) {
+                request();
+            }
+            // otherwise completed by the write of the result on the edt
+            if (mCancelled) {
+                mCompletion.cancel(false);
+            }
+        } catch (Throwable e) {
+            if (mCancelled) {
+                mCompletion.cancel(false);
+                return;
+            }
+
+            e.printStackTrace();
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable e) {
+        String[] errorMessage = String.valueOf(e.getMessage()).split("\n");
+
+        // queued after the chunks of a failed stream, whose lines go but the first, which gets the error
+        ApplicationManager.getApplication().invokeLater(this::removeStreamedLines);
+        DocumentUtils.replaceTextAtLine(
+                getDocument(),
+                this::claimTriggerLine,
+                "// failed to generate code... error: " + String.join("\n// ", errorMessage),
+                "code gen",
+                true
+        );
+        mCompletion.completeExceptionally(e);
+    }
+
+    private void removeStreamedLines() {
+        RangeMarker streamed = mTriggerLine;
+        if (mCancelled || !mStreamStarted || streamed == null || !streamed.isValid()) {
+            return;
+        }
+        int start = mDocument.getLineEndOffset(mDocument.getLineNumber(streamed.getStartOffset()));
+        int end = mDocument.getLineEndOffset(mDocument.getLineNumber(streamed.getEndOffset()));
+        if (start >= end) {
+            return;
+        }
+        mWriting = true;
+        try {
+            WriteCommandAction.runWriteCommandAction(
+                    DocumentUtils.getProject(), "code gen", mStreamGroupId, () -> mDocument.deleteString(start, end)
+            );
+        } finally {
+            mWriting = false;
+        }
+    }
+
+    private void request() throws IOException {
         String apiKey = Processors.getInstance().getOpenAIApiKey();
 
         String requestUrl = getUrl();
         JSONObject object = getRequestObject();
 
+        ResponseCache cache = Processors.getInstance().getResponseCache();
+        String cacheKey = ResponseCache.key(requestUrl, object);
+        String cached = cache.get(cacheKey);
+        SimilarityCache.Query similarityQuery = cached == null ? getSimilarityQuery() : null;
+        if (similarityQuery != null) {
+            cached = Processors.getInstance().getSimilarityCache().get(
+                    similarityQuery, Prefs.SIMILARITY_THRESHOLD.getDouble()
+            );
+            if (cached != null) {
+                DocumentUtils.showStatus("OpenAI: served from the cache of a similar prompt");
+            }
+        }
+        if (cached != null) {
+            if (isStreaming()) {
+                flushStream(cached);
+            }
+            deliver(cached);
+            return;
+        }
+
         Request request = new Request.Builder()
                 .url(requestUrl)
                 .addHeader("Content-Type", "application/json")
                 .addHeader("Authorization", "Bearer " + apiKey)
                 .post(RequestBody.create(object.toString(), MediaType.parse("application/json")))
                 .build();
-        try {
-            Response response = Processors.getInstance().getClient().newCall(request).execute();
+
+        Call call = Processors.getInstance().getClient().newCall(request);
+        mCall = call;
+        if (mCancelled) {
+            call.cancel();
+        }
+        String content;
+        try (Response response = call.execute()) {
             if (!response.isSuccessful() || response.body() == null) {
-                DocumentUtils.replaceTextAtLine(
-                        getDocument(),
-                        getLineNum(),
-                        "// failed to generate code... http response code: " + response.code(),
-                        "code gen"
-                );
-                return;
+                throw new IOException("http response code: " + response.code());
             }
-            object = new JSONObject(response.body().string());
-            JSONArray choices = object.getJSONArray("choices");
-            onResponse(
-                    choices.getJSONObject(0).getString("text").replaceAll("^\\n+", "")
-            );
-        } catch (Throwable e) {
-            e.printStackTrace();
+            if (isStreaming()) {
+                content = readStream(response.body().source());
+            } else {
+                JSONArray choices = new JSONObject(response.body().string()).getJSONArray("choices");
+                content = choices.getJSONObject(0).getString("text").replaceAll("^\\n+", "");
+            }
+        }
+        if (mCancelled) {
+            return;
+        }
 
-            String[] errorMessage = e.getMessage().split("\n");
+        cache.put(cacheKey, content);
+        if (similarityQuery != null) {
+            Processors.getInstance().getSimilarityCache().put(similarityQuery, content);
+        }
+        deliver(content);
+    }
 
-            DocumentUtils.replaceTextAtLine(
-                    getDocument(),
-                    getLineNum(),
-                    "// failed to generate code... error: " + String.join("\n// ", errorMessage),
-                    "code gen"
+    private void deliver(String content) {
+        if (mCancelled) {
+            return;
+        }
+        if (isStreaming()) {
+            finishStream(content);
+        } else {
+            onResponse(content);
+        }
+    }
+
+    /**
+     * writes the stream to the document while reading it, every STREAM_FLUSH_MS on a timer so text stalled between
+     * two chunks still shows up
+     * @return the whole completion text
+     */
+    private String readStream(BufferedSource source) throws IOException {
+        long flushInterval = Math.max(0, Prefs.STREAM_FLUSH_MS.getLong());
+        StringBuilder content = new StringBuilder();
+        // guarded by itself, drained by the timer and by this thread
+        StringBuilder pending = new StringBuilder();
+        ScheduledFuture<?> flush = null;
+        if (flushInterval > 0) {
+            flush = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(
+                    () -> drainStream(pending), flushInterval, flushInterval, TimeUnit.MILLISECONDS
             );
         }
+        boolean done = false;
+
+        try {
+            while (!mCancelled) {
+                String line = source.readUtf8Line();
+                if (line == null) {
+                    break;
+                }
+                if (!line.startsWith("data:")) {
+                    continue;
+                }
+                String data = line.substring(5).trim();
+                if (data.equals("[DONE]")) {
+                    done = true;
+                    break;
+                }
+
+                String text = new JSONObject(data).getJSONArray("choices").getJSONObject(0).optString("text", "");
+                if (content.length() == 0) {
+                    text = text.replaceAll("^\\n+", "");
+                }
+                content.append(text);
+                synchronized (pending) {
+                    pending.append(text);
+                }
+                if (flush == null) {
+                    drainStream(pending);
+                }
+            }
+        } finally {
+            if (flush != null) {
+                flush.cancel(false);
+            }
+        }
+
+        if (!done && !mCancelled) {
+            synchronized (pending) {
+                // waits for a running drain, so its chunk is queued before the failure cleans up
+                pending.setLength(0);
+            }
+            // a cut off completion must neither be kept nor cached
+            throw new IOException("stream closed before the end of the completion");
+        }
+        drainStream(pending);
+        return content.toString();
+    }
+
+    /**
+     * posts the pending text, under its lock so chunks reach the edt in order
+     */
+    private void drainStream(StringBuilder pending) {
+        synchronized (pending) {
+            if (pending.length() > 0 && !mCancelled) {
+                flushStream(pending.toString());
+                pending.setLength(0);
+            }
+        }
+    }
 
-        mOnProcessFinished.onProcessFinished();
+    private void finishStream(String content) {
+        ApplicationManager.getApplication().invokeLater(() -> {
+            RangeMarker streamed = mTriggerLine;
+            if (mCancelled) {
+                return;
+            }
+            if (!mStreamStarted) {
+                // an empty completion, nothing to write
+                markWritten();
+                return;
+            }
+            if (streamed == null || !streamed.isValid()) {
+                markDropped();
+                return;
+            }
+            int firstLine = mDocument.getLineNumber(streamed.getStartOffset());
+            int lastLine = mDocument.getLineNumber(streamed.getEndOffset());
+            stopTracking();
+            onStreamFinished(content, firstLine, lastLine);
+            markWritten();
+        });
+    }
+
+    private void flushStream(String chunk) {
+        ApplicationManager.getApplication().invokeLater(() -> {
+            RangeMarker region = mTriggerLine;
+            if (mCancelled || region == null || !region.isValid()) {
+                return;
+            }
+            mWriting = true;
+            try {
+                RangeMarker streamed = DocumentUtils.writeStreamChunk(
+                        mDocument, region, chunk, !mStreamStarted, mStreamGroupId, "code gen"
+                );
+                if (streamed != region) {
+                    mTriggerLine = streamed;
+                    region.dispose();
+                }
+                mStreamStarted = true;
+            } finally {
+                mWriting = false;
+            }
+        });
     }
 }
@@ -1,28 +1,25 @@
 package com.igio90.intellij.openai.processors;
 
 import com.igio90.intellij.openai.utils.DocumentUtils;
+import com.igio90.intellij.openai.utils.Prefs;
 import com.intellij.openapi.application.ApplicationManager;
-import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.editor.Document;
-import com.intellij.openapi.editor.Editor;
-import com.intellij.openapi.editor.event.CaretEvent;
-import com.intellij.openapi.editor.event.CaretListener;
-import com.intellij.openapi.editor.markup.RangeHighlighter;
-import com.intellij.openapi.fileEditor.FileEditorManager;
-import com.intellij.ui.JBColor;
-import com.intellij.util.ThrowableRunnable;
-import com.intellij.util.ui.UIUtil;
 import name.fraser.neil.plaintext.diff_match_patch;
-import org.jetbrains.annotations.NotNull;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 
 class CodeProcessor extends BaseProcessor {
-    CodeProcessor(Document document, int lineNum, int currentIndent, String query, String language, Processors.OnProcessFinished onProcessFinished) {
-        super(document, lineNum, currentIndent, query, language, onProcessFinished);
+    CodeProcessor(Document document, int lineNum, int currentIndent, String query, String language) {
+        super(document, lineNum, currentIndent, query, language);
+    }
+
+    @Override
+    int getPriority() {
+        return ProcessorExecutor.PRIORITY_CODE;
     }
 
     @Override
@@ -34,23 +31,49 @@ class CodeProcessor extends BaseProcessor {
         }
     }
 
+    @Override
+    protected boolean isStreaming() {
+        // the edits endpoint has no streaming
+        return getCurrentIndent() == 0 && Prefs.STREAM_COMPLETIONS.getBoolean();
+    }
+
+    @Override
+    protected SimilarityCache.Query getSimilarityQuery() {
+        // edits depend on the whole document, only plain completions can be shared between prompts
+        if (getCurrentIndent() != 0 || !Prefs.SIMILARITY_CACHE.getBoolean()) {
+            return null;
+        }
+        return new SimilarityCache.Query(getQuery(), getLanguage(), Models.COMPLETION);
+    }
+
     @Override
     protected JSONObject getRequestObject() {
         JSONObject object = new JSONObject();
         if (getCurrentIndent() == 0) {
-            object.put("prompt", "generate " + getLanguage() + " code based on this prompt: " + getQuery());
-            object.put("stream", false);
+            String prompt = "generate " + getLanguage() + " code based on this prompt: " + getQuery();
+            int maxTokens = Models.requireCompletionBudget(Models.COMPLETION, prompt);
+
+            object.put("prompt", prompt);
+            object.put("stream", isStreaming());
             object.put("temperature", 0.2);
-            object.put("max_tokens", 2048);
-            object.put("model", "text-davinci-003");
+            object.put("max_tokens", maxTokens);
+            object.put("model", Models.COMPLETION);
             object.put("n", 1);
         } else {
-            String documentText = getDocumentTextWithoutTriggerLine();
+            ContextWindow window = getContextWindow();
+            String instruction = getQuery();
+            String withReferences = instruction + "\n\nthe code uses these declarations, do not output them:\n"
+                    + window.getReferences();
+            if (!window.getReferences().isEmpty() && Models.fitsEdit(Models.EDIT, window.getText(), withReferences)) {
+                instruction = withReferences;
+            } else {
+                Models.requireEdit(Models.EDIT, window.getText(), instruction);
+            }
 
-            object.put("input", documentText);
-            object.put("instruction", getQuery());
+            object.put("input", window.getText().toString());
+            object.put("instruction", instruction);
             object.put("temperature", 0.2);
-            object.put("model", "code-davinci-edit-001");
+            object.put("model", Models.EDIT);
             object.put("n", 1);
         }
         return object;
@@ -58,87 +81,96 @@ class CodeProcessor extends BaseProcessor {
 
     @Override
     protected void onResponse(String content) {
-        String contentBefore = getDocumentTextWithoutTriggerLine();
-
-        List<Integer> changedLines = new ArrayList<>();
-        LinkedList<diff_match_patch.Diff> diffs = new diff_match_patch().diff_main(contentBefore, content);
-        int lineNum = 0;
-        for (diff_match_patch.Diff diff : diffs) {
-            String[] lines = diff.text.split("\n");
-            System.out.println("diff - op:" + diff.operation.name() + " " + diff.text);
-            for (int i = 0; i < lines.length; i++) {
-                if (diff.operation != diff_match_patch.Operation.EQUAL) {
-                    changedLines.add(lineNum);
-                }
-                if (i < lines.length - 1) {
-                    lineNum++;
-                }
-            }
-        }
-        if (changedLines.size() > 1) {
-            // unsure if this is correct, but I saw it always highlight an extra line
-            changedLines.remove(changedLines.size() - 1);
-        }
-
         if (getCurrentIndent() == 0) {
+            // a completion replaces the trigger line, everything it writes is new
+            int[] writtenLine = {-1};
             DocumentUtils.replaceTextAtLine(
                     getDocument(),
-                    getLineNum(),
+                    () -> {
+                        writtenLine[0] = claimTriggerLine();
+                        return writtenLine[0];
+                    },
                     content,
-                    "code gen"
-            );
-        } else {
-            DocumentUtils.replaceAllText(
-                    getDocument(),
-                    content,
-                    "code gen"
+                    "code gen",
+                    true,
+                    this::markWritten
             );
+            int lineCount = content.split("\n", -1).length;
+            ApplicationManager.getApplication().invokeLater(() -> {
+                if (isCancelled() || writtenLine[0] < 0) {
+                    return;
+                }
+                BitSet changedLines = new BitSet();
+                changedLines.set(0, lineCount);
+                highlightChangedLines(changedLines, Collections.emptyList(), writtenLine[0]);
+            });
+            return;
         }
 
-        ArrayList<RangeHighlighter> highlighters = new ArrayList<>();
+        // the same string as the one sent
+        String contentBefore = getContextWindow().getText().toString();
+        int firstLine = getContextWindow().getStartLine();
+
+        diff_match_patch dmp = new diff_match_patch();
+        dmp.Diff_Timeout = Math.max(0, Prefs.DIFF_TIMEOUT_MS.getLong()) / 1000f;
+        dmp.Diff_LineAlgorithm = Prefs.DIFF_ALGORITHM.getEnum(diff_match_patch.LineAlgorithm.class);
+        BitSet changedLines = dmp.diff_changedLines(contentBefore, content);
+        List<int[]> changedTokens = getChangedTokens(dmp, contentBefore, content);
+
+        replaceContextWindow(content, "code gen");
+
         ApplicationManager.getApplication().invokeLater(() -> {
-            try {
-                WriteCommandAction.writeCommandAction(DocumentUtils.getProject()).run((ThrowableRunnable<Throwable>) () -> {
-                    if (!changedLines.isEmpty()) {
-                        for (int i=0;i<changedLines.size();i++) {
-                            int line = changedLines.get(i);
-                            if (i == 0) {
-                                DocumentUtils.moveCaret(
-                                        line, getDocument().getLineStartOffset(line)
-                                );
-                            }
-                            highlighters.add(
-                                    DocumentUtils.highlightRange(
-                                            getDocument(),
-                                            getDocument().getLineStartOffset(line),
-                                            getDocument().getLineEndOffset(line),
-                                            UIUtil.isUnderDarcula() ? DocumentUtils.DARK_GREEN : JBColor.GREEN
-                                    )
-                            );
-                        }
-                    }
-
-                    if (!highlighters.isEmpty()) {
-                        Editor editor = FileEditorManager.getInstance(DocumentUtils.getProject()).getSelectedTextEditor();
-                        editor.getCaretModel().addCaretListener(new CaretListener() {
-                            @Override
-                            public void caretPositionChanged(@NotNull CaretEvent event) {
-                                if (getDocument().getText().length() != contentBefore.length()) {
-                                    for (RangeHighlighter rangeHighlighter : highlighters) {
-                                        DocumentUtils.clearHighlightRange(
-                                                getDocument(),
-                                                rangeHighlighter
-                                        );
-                                    }
-                                }
-                                editor.getCaretModel().removeCaretListener(this);
-                            }
-                        });
-                    }
-                });
-            } catch (Throwable e) {
-                throw new RuntimeException(e);
+            if (isCancelled()) {
+                return;
             }
+            highlightChangedLines(changedLines, changedTokens, firstLine);
         });
     }
+
+    @Override
+    protected void onStreamFinished(String content, int firstLine, int lastLine) {
+        BitSet changedLines = new BitSet();
+        changedLines.set(0, lastLine - firstLine + 1);
+        highlightChangedLines(changedLines, Collections.emptyList(), firstLine);
+    }
+
+    /**
+     * diffs the lexer tokens of both contents, so changes within a line follow identifier and keyword boundaries.
+     * whole inserted lines are left to the line highlights
+     *
+     * @return ranges of content, relative to its start, of the tokens inserted within a line
+     */
+    private List<int[]> getChangedTokens(diff_match_patch dmp, String contentBefore, String content) {
+        diff_match_patch.Diffs diffs = dmp.diff_mainTokens(
+                contentBefore, DocumentUtils.tokenize(getDocument(), contentBefore),
+                content, DocumentUtils.tokenize(getDocument(), content)
+        );
+        List<int[]> changedTokens = new ArrayList<>();
+        int offset = 0;
+        for (int i = 0; i < diffs.size(); i++) {
+            diff_match_patch.Operation operation = diffs.operation(i);
+            if (operation == diff_match_patch.Operation.DELETE) {
+                continue;
+            }
+            int end = offset + diffs.length(i);
+            if (operation == diff_match_patch.Operation.INSERT) {
+                String inserted = content.substring(offset, end);
+                if (inserted.indexOf('\n') < 0 && !inserted.isBlank()) {
+                    changedTokens.add(new int[]{offset, end});
+                }
+            }
+            offset = end;
+        }
+        return changedTokens;
+    }
+
+    /**
+     * @param changedLines lines relative to firstLine
+     * @param changedTokens ranges relative to the start of firstLine
+     */
+    private void highlightChangedLines(BitSet changedLines, List<int[]> changedTokens, int firstLine) {
+        HighlightManager.forProject(DocumentUtils.getProject()).highlight(
+                getDocument(), changedLines, changedTokens, firstLine
+        );
+    }
 }
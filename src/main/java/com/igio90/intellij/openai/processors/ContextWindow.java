@@ -0,0 +1,305 @@
+package com.igio90.intellij.openai.processors;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.RangeMarker;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiCompiledElement;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiNameIdentifierOwner;
+import com.intellij.psi.PsiReference;
+import com.intellij.psi.util.PsiTreeUtil;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * the part of a document sent along with a request: the whole file when it fits the token budget, otherwise the
+ * declaration enclosing the anchor line, or the lines around it, plus the declarations it references
+ */
+final class ContextWindow {
+    // bounds the resolve work on large windows
+    private static final int MAX_REFERENCES = 64;
+
+    private final RangeMarker mRange;
+    private final int mStartLine;
+    private final int mEndLine;
+    private final int mTriggerLine;
+    private final boolean mWholeDocument;
+    private final DocumentSnapshot mSnapshot;
+    private final CharSequence mText;
+    private final String mReferences;
+
+    private ContextWindow(
+            RangeMarker range,
+            int startLine,
+            int endLine,
+            int triggerLine,
+            boolean wholeDocument,
+            DocumentSnapshot snapshot,
+            CharSequence text,
+            String references
+    ) {
+        mRange = range;
+        mStartLine = startLine;
+        mEndLine = endLine;
+        mTriggerLine = triggerLine;
+        mWholeDocument = wholeDocument;
+        mSnapshot = snapshot;
+        mText = text;
+        mReferences = references;
+    }
+
+    /**
+     * @return the window text without the trigger line, a view over the snapshot
+     */
+    CharSequence getText() {
+        return mText;
+    }
+
+    /**
+     * @return the window text as sent, trigger line included, a view over the snapshot
+     */
+    CharSequence getSnapshotRangeText() {
+        return mSnapshot.getText().subSequence(
+                mSnapshot.getLineStartOffset(mStartLine), mSnapshot.getLineEndOffset(mEndLine)
+        );
+    }
+
+    /**
+     * @return the document as it was when the window was built
+     */
+    DocumentSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * @return the text of declarations referenced from the window, empty if there are none
+     */
+    String getReferences() {
+        return mReferences;
+    }
+
+    int getStartLine() {
+        return mStartLine;
+    }
+
+    /**
+     * @return the trigger line relative to the window
+     */
+    int getTriggerLine() {
+        return mTriggerLine - mStartLine;
+    }
+
+    boolean isWholeDocument() {
+        return mWholeDocument;
+    }
+
+    /**
+     * @return the current range of the window in the document, trigger line included, or null if it is gone
+     */
+    TextRange getRange() {
+        return mRange.isValid() ? mRange.getTextRange() : null;
+    }
+
+    void dispose() {
+        mRange.dispose();
+    }
+
+    static int countTokens(CharSequence text) {
+        return Tokenizer.getInstance().count(text);
+    }
+
+    private static boolean fits(CharSequence text, int tokenBudget) {
+        // no encoding averages this many chars per token, larger texts are not worth tokenizing
+        if (text.length() > tokenBudget * 16L) {
+            return false;
+        }
+        return countTokens(text) <= tokenBudget;
+    }
+
+    /**
+     * must not be called on the edt, the psi is committed and read under a read action
+     * @param anchorLine the line whose enclosing declaration is sent, usually the trigger line
+     */
+    static ContextWindow build(
+            Project project, Document document, int triggerLine, int anchorLine, int tokenBudget, boolean withReferences
+    ) {
+        ContextWindow[] result = new ContextWindow[1];
+        PsiDocumentManager psiDocumentManager = PsiDocumentManager.getInstance(project);
+        psiDocumentManager.commitAndRunReadAction(() -> {
+            PsiFile psiFile = psiDocumentManager.getPsiFile(document);
+            result[0] = build(project, document, psiFile, triggerLine, anchorLine, tokenBudget, withReferences);
+        });
+        return result[0];
+    }
+
+    private static ContextWindow build(
+            Project project,
+            Document document,
+            PsiFile psiFile,
+            int triggerLine,
+            int anchorLine,
+            int tokenBudget,
+            boolean withReferences
+    ) {
+        DocumentSnapshot snapshot = DocumentSnapshot.take(document);
+        int lastLine = Math.max(0, snapshot.getLineCount() - 1);
+        triggerLine = Math.min(triggerLine, lastLine);
+        anchorLine = Math.min(anchorLine, lastLine);
+
+        if (fits(snapshot.getText(), tokenBudget)) {
+            return create(document, snapshot, 0, lastLine, triggerLine, "");
+        }
+
+        int startLine = triggerLine;
+        int endLine = triggerLine;
+        PsiElement declaration = psiFile == null
+                ? null
+                : findDeclaration(snapshot, psiFile, anchorLine, triggerLine, tokenBudget);
+        if (declaration != null) {
+            TextRange range = declaration.getTextRange();
+            startLine = Math.min(triggerLine, snapshot.getLineNumber(range.getStartOffset()));
+            endLine = Math.max(triggerLine, snapshot.getLineNumber(range.getEndOffset()));
+        } else {
+            // no declaration fits, grow the window line by line around the trigger
+            int tokens = 0;
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                if (startLine > 0) {
+                    int lineTokens = countTokens(snapshot.getLine(startLine - 1));
+                    if (tokens + lineTokens <= tokenBudget) {
+                        tokens += lineTokens;
+                        startLine--;
+                        grown = true;
+                    }
+                }
+                if (endLine < lastLine) {
+                    int lineTokens = countTokens(snapshot.getLine(endLine + 1));
+                    if (tokens + lineTokens <= tokenBudget) {
+                        tokens += lineTokens;
+                        endLine++;
+                        grown = true;
+                    }
+                }
+            }
+        }
+
+        String references = "";
+        if (withReferences && declaration != null) {
+            int remaining = tokenBudget - countTokens(snapshot.linesWithoutLine(startLine, endLine, triggerLine));
+            references = collectReferences(project, declaration, remaining);
+        }
+        return create(document, snapshot, startLine, endLine, triggerLine, references);
+    }
+
+    /**
+     * @return the outermost named declaration enclosing the anchor line which still fits the budget
+     */
+    private static PsiElement findDeclaration(
+            DocumentSnapshot snapshot, PsiFile psiFile, int anchorLine, int triggerLine, int tokenBudget
+    ) {
+        CharSequence text = snapshot.getText();
+        int offset = snapshot.getLineStartOffset(anchorLine);
+        int lineEnd = snapshot.getLineEndOffset(anchorLine);
+        while (offset < lineEnd && Character.isWhitespace(text.charAt(offset))) {
+            offset++;
+        }
+
+        PsiElement best = null;
+        PsiElement element = psiFile.findElementAt(offset);
+        while (element != null && !(element instanceof PsiFile)) {
+            TextRange range = element.getTextRange();
+            int startLine = Math.min(triggerLine, snapshot.getLineNumber(range.getStartOffset()));
+            int endLine = Math.max(triggerLine, snapshot.getLineNumber(range.getEndOffset()));
+            int length = snapshot.getLineEndOffset(endLine) - snapshot.getLineStartOffset(startLine);
+            if (length > tokenBudget * 16L
+                    || !fits(snapshot.linesWithoutLine(startLine, endLine, triggerLine), tokenBudget)) {
+                break;
+            }
+            if (element instanceof PsiNameIdentifierOwner) {
+                best = element;
+            }
+            element = element.getParent();
+        }
+        return best;
+    }
+
+    private static String collectReferences(Project project, PsiElement declaration, int tokenBudget) {
+        if (tokenBudget <= 0) {
+            return "";
+        }
+        Set<PsiElement> targets = new LinkedHashSet<>();
+        PsiTreeUtil.processElements(declaration, element -> {
+            for (PsiReference reference : element.getReferences()) {
+                PsiElement target = reference.resolve();
+                if (target != null && isExternalDeclaration(project, declaration, target)) {
+                    targets.add(target);
+                }
+            }
+            return targets.size() < MAX_REFERENCES;
+        });
+
+        List<String> declarations = new ArrayList<>();
+        int tokens = 0;
+        for (PsiElement target : targets) {
+            String targetText = target.getText();
+            if (targetText == null) {
+                continue;
+            }
+            if (tokens + countTokens(targetText) > tokenBudget) {
+                // large declarations are worth their signature line
+                int newLine = targetText.indexOf('\n');
+                if (newLine < 0) {
+                    continue;
+                }
+                targetText = targetText.substring(0, newLine);
+                if (tokens + countTokens(targetText) > tokenBudget) {
+                    continue;
+                }
+            }
+            tokens += countTokens(targetText);
+            declarations.add(targetText);
+        }
+        return String.join("\n\n", declarations);
+    }
+
+    private static boolean isExternalDeclaration(Project project, PsiElement declaration, PsiElement target) {
+        if (!(target instanceof PsiNameIdentifierOwner) || target instanceof PsiCompiledElement) {
+            return false;
+        }
+        if (PsiTreeUtil.isAncestor(declaration, target, false) || PsiTreeUtil.isAncestor(target, declaration, false)) {
+            return false;
+        }
+        PsiFile file = target.getContainingFile();
+        VirtualFile virtualFile = file == null ? null : file.getVirtualFile();
+        return virtualFile != null && ProjectFileIndex.getInstance(project).isInContent(virtualFile);
+    }
+
+    private static ContextWindow create(
+            Document document, DocumentSnapshot snapshot, int startLine, int endLine, int triggerLine, String references
+    ) {
+        RangeMarker range = document.createRangeMarker(
+                snapshot.getLineStartOffset(startLine),
+                snapshot.getLineEndOffset(endLine)
+        );
+        boolean wholeDocument = startLine == 0 && endLine == Math.max(0, snapshot.getLineCount() - 1);
+        return new ContextWindow(
+                range,
+                startLine,
+                endLine,
+                triggerLine,
+                wholeDocument,
+                snapshot,
+                snapshot.linesWithoutLine(startLine, endLine, triggerLine),
+                references
+        );
+    }
+}
@@ -0,0 +1,374 @@
+package com.igio90.intellij.openai.processors;
+
+import com.igio90.intellij.openai.utils.Prefs;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * append only store of response texts addressed by the sha-256 of their request.
+ * records live in a data file, an open addressing table in a memory mapped index file points at them,
+ * so opening the store costs a mapping and a lookup costs one probe and one positional read
+ */
+class DiskResponseStore {
+    private static final Logger LOG = Logger.getInstance(DiskResponseStore.class);
+
+    private static final int DATA_MAGIC = 0x4f414952;
+    private static final int INDEX_MAGIC = 0x4f414949;
+    private static final int VERSION = 1;
+
+    private static final int KEY_BYTES = 32;
+    // key, length, created at
+    private static final int RECORD_HEADER = KEY_BYTES + 4 + 8;
+    private static final int DATA_HEADER = 8;
+
+    // magic, version, capacity, count
+    private static final int INDEX_HEADER = 16;
+    // key prefix, record offset. offset 0 is the data header and marks an empty slot
+    private static final int SLOT_BYTES = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Path mDirectory;
+    private FileChannel mData;
+    private FileChannel mIndexChannel;
+    private MappedByteBuffer mIndex;
+    private int mCapacity;
+    private int mCount;
+
+    DiskResponseStore(Path directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @return the response stored for key, or null if there is none or it outlived the response cache ttl
+     */
+    synchronized Record get(String key) {
+        if (Prefs.DISK_CACHE_MAX_BYTES.getLong() <= 0 || !ensureOpen()) {
+            return null;
+        }
+        byte[] keyBytes = toBytes(key);
+        long prefix = prefixOf(keyBytes);
+        try {
+            for (int slot = slotOf(prefix), i = 0; i < mCapacity; slot = (slot + 1) & (mCapacity - 1), i++) {
+                long offset = mIndex.getLong(slotPosition(slot) + 8);
+                if (offset == 0) {
+                    return null;
+                }
+                if (mIndex.getLong(slotPosition(slot)) == prefix) {
+                    Record record = readRecord(offset, keyBytes);
+                    if (record != null) {
+                        return ResponseCache.isExpired(record.mCreatedAt) ? null : record;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("failed to read the response cache", e);
+        }
+        return null;
+    }
+
+    synchronized void put(String key, String content) {
+        long maxBytes = Prefs.DISK_CACHE_MAX_BYTES.getLong();
+        if (maxBytes <= 0 || !ensureOpen()) {
+            return;
+        }
+        byte[] keyBytes = toBytes(key);
+        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
+        if (RECORD_HEADER + contentBytes.length > maxBytes) {
+            return;
+        }
+
+        try {
+            long offset = mData.size();
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + contentBytes.length);
+            record.put(keyBytes).putInt(contentBytes.length).putLong(System.currentTimeMillis()).put(contentBytes);
+            record.flip();
+            while (record.hasRemaining()) {
+                mData.write(record, offset + record.position());
+            }
+
+            insert(prefixOf(keyBytes), offset);
+
+            if (mData.size() > maxBytes) {
+                compact(maxBytes * 3 / 4);
+            }
+        } catch (IOException e) {
+            LOG.warn("failed to write the response cache", e);
+        }
+    }
+
+    private boolean ensureOpen() {
+        if (mIndex != null) {
+            return true;
+        }
+        try {
+            Files.createDirectories(mDirectory);
+            mData = FileChannel.open(
+                    mDirectory.resolve("data.bin"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+            );
+            mIndexChannel = FileChannel.open(
+                    mDirectory.resolve("index.bin"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+            );
+
+            if (!isValidData() || !mapIndex()) {
+                // unknown format or a torn write, start over
+                mData.truncate(0);
+                writeDataHeader(mData);
+                mIndexChannel.truncate(0);
+                createIndex(INITIAL_CAPACITY);
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.warn("failed to open the response cache in " + mDirectory, e);
+            close();
+            return false;
+        }
+    }
+
+    private boolean isValidData() throws IOException {
+        if (mData.size() < DATA_HEADER) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER);
+        mData.read(header, 0);
+        header.flip();
+        return header.getInt() == DATA_MAGIC && header.getInt() == VERSION;
+    }
+
+    /**
+     * maps the index once its header checks out, so a rejected file is never mapped and can be truncated
+     */
+    private boolean mapIndex() throws IOException {
+        long size = mIndexChannel.size();
+        if (size < INDEX_HEADER) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+        while (header.hasRemaining()) {
+            if (mIndexChannel.read(header, header.position()) < 0) {
+                return false;
+            }
+        }
+        header.flip();
+        int magic = header.getInt();
+        int version = header.getInt();
+        int capacity = header.getInt();
+        int count = header.getInt();
+        if (magic != INDEX_MAGIC || version != VERSION || Integer.bitCount(capacity) != 1
+                || count < 0 || count > capacity || size != INDEX_HEADER + (long) capacity * SLOT_BYTES) {
+            return false;
+        }
+        mIndex = mIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mCapacity = capacity;
+        mCount = count;
+        return true;
+    }
+
+    private void createIndex(int capacity) throws IOException {
+        mIndex = mIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) capacity * SLOT_BYTES);
+        for (int position = 0; position < mIndex.capacity(); position += 8) {
+            mIndex.putLong(position, 0);
+        }
+        mIndex.putInt(0, INDEX_MAGIC);
+        mIndex.putInt(4, VERSION);
+        mIndex.putInt(8, capacity);
+        mIndex.putInt(12, 0);
+        mCapacity = capacity;
+        mCount = 0;
+    }
+
+    private void insert(long prefix, long offset) throws IOException {
+        if ((mCount + 1) * 10L > mCapacity * 7L) {
+            long[][] slots = readSlots();
+            createIndex(mCapacity * 2);
+            for (int i = 0; i < slots[0].length; i++) {
+                insertSlot(slots[0][i], slots[1][i]);
+            }
+        }
+        insertSlot(prefix, offset);
+    }
+
+    private void insertSlot(long prefix, long offset) {
+        int slot = slotOf(prefix);
+        while (true) {
+            int position = slotPosition(slot);
+            long current = mIndex.getLong(position + 8);
+            if (current == 0 || mIndex.getLong(position) == prefix) {
+                // same key prefix: the newer record replaces the older one, which becomes garbage for compaction
+                if (current == 0) {
+                    mCount++;
+                    mIndex.putInt(12, mCount);
+                }
+                mIndex.putLong(position, prefix);
+                mIndex.putLong(position + 8, offset);
+                return;
+            }
+            slot = (slot + 1) & (mCapacity - 1);
+        }
+    }
+
+    /**
+     * @return prefixes and offsets of the live records
+     */
+    private long[][] readSlots() {
+        long[] prefixes = new long[mCount];
+        long[] offsets = new long[mCount];
+        int count = 0;
+        for (int slot = 0; slot < mCapacity && count < mCount; slot++) {
+            long offset = mIndex.getLong(slotPosition(slot) + 8);
+            if (offset != 0) {
+                prefixes[count] = mIndex.getLong(slotPosition(slot));
+                offsets[count] = offset;
+                count++;
+            }
+        }
+        return new long[][]{Arrays.copyOf(prefixes, count), Arrays.copyOf(offsets, count)};
+    }
+
+    /**
+     * rewrites the live records, newest first, until targetBytes is reached. superseded, expired and the oldest
+     * records are dropped
+     */
+    private void compact(long targetBytes) throws IOException {
+        long[][] slots = readSlots();
+        List<long[]> records = new ArrayList<>(slots[0].length);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        for (int i = 0; i < slots[0].length; i++) {
+            header.clear();
+            mData.read(header, slots[1][i]);
+            header.flip();
+            header.position(KEY_BYTES);
+            int length = header.getInt();
+            long createdAt = header.getLong();
+            if (ResponseCache.isExpired(createdAt)) {
+                continue;
+            }
+            records.add(new long[]{slots[0][i], slots[1][i], length, createdAt});
+        }
+        records.sort((a, b) -> Long.compare(b[3], a[3]));
+
+        Path compactedPath = mDirectory.resolve("data.compact");
+        long[][] kept;
+        try (FileChannel compacted = FileChannel.open(
+                compactedPath,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+        )) {
+            writeDataHeader(compacted);
+            compacted.position(DATA_HEADER);
+            List<long[]> keptRecords = new ArrayList<>();
+            long position = DATA_HEADER;
+            for (long[] record : records) {
+                long size = RECORD_HEADER + record[2];
+                if (position + size > targetBytes) {
+                    break;
+                }
+                for (long copied = 0; copied < size; ) {
+                    copied += mData.transferTo(record[1] + copied, size - copied, compacted);
+                }
+                keptRecords.add(new long[]{record[0], position});
+                position += size;
+            }
+            kept = keptRecords.toArray(new long[0][]);
+            compacted.force(false);
+        }
+
+        mData.close();
+        Files.move(compactedPath, mDirectory.resolve("data.bin"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        mData = FileChannel.open(mDirectory.resolve("data.bin"), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        createIndex(mCapacity);
+        for (long[] record : kept) {
+            insertSlot(record[0], record[1]);
+        }
+    }
+
+    private Record readRecord(long offset, byte[] keyBytes) throws IOException {
+        long dataSize = mData.size();
+        if (offset + RECORD_HEADER > dataSize) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        mData.read(header, offset);
+        header.flip();
+        byte[] recordKey = new byte[KEY_BYTES];
+        header.get(recordKey);
+        int length = header.getInt();
+        long createdAt = header.getLong();
+        if (!Arrays.equals(recordKey, keyBytes) || length < 0 || offset + RECORD_HEADER + length > dataSize) {
+            return null;
+        }
+        ByteBuffer content = ByteBuffer.allocate(length);
+        while (content.hasRemaining()) {
+            if (mData.read(content, offset + RECORD_HEADER + content.position()) < 0) {
+                return null;
+            }
+        }
+        return new Record(new String(content.array(), StandardCharsets.UTF_8), createdAt);
+    }
+
+    private static void writeDataHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(DATA_HEADER);
+        header.putInt(DATA_MAGIC).putInt(VERSION);
+        header.flip();
+        channel.write(header, 0);
+    }
+
+    private void close() {
+        try {
+            if (mData != null) {
+                mData.close();
+            }
+            if (mIndexChannel != null) {
+                mIndexChannel.close();
+            }
+        } catch (IOException ignored) {
+        }
+        mData = null;
+        mIndexChannel = null;
+        mIndex = null;
+    }
+
+    private int slotOf(long prefix) {
+        return (int) (prefix ^ (prefix >>> 32)) & (mCapacity - 1);
+    }
+
+    private static int slotPosition(int slot) {
+        return INDEX_HEADER + slot * SLOT_BYTES;
+    }
+
+    private static long prefixOf(byte[] keyBytes) {
+        return ByteBuffer.wrap(keyBytes).getLong();
+    }
+
+    private static byte[] toBytes(String hexKey) {
+        byte[] bytes = new byte[KEY_BYTES];
+        for (int i = 0; i < KEY_BYTES; i++) {
+            bytes[i] = (byte) Integer.parseInt(hexKey.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    static class Record {
+        final String mContent;
+        // wall clock millis of the put
+        final long mCreatedAt;
+
+        Record(String content, long createdAt) {
+            mContent = content;
+            mCreatedAt = createdAt;
+        }
+    }
+}
@@ -5,8 +5,13 @@ import com.intellij.openapi.editor.Document;
 import org.json.JSONObject;
 
 class DocProcessor extends BaseProcessor {
-    DocProcessor(Document document, int lineNum, Processors.OnProcessFinished onProcessFinished) {
-        super(document, lineNum, onProcessFinished);
+    DocProcessor(Document document, int lineNum) {
+        super(document, lineNum);
+    }
+
+    @Override
+    int getPriority() {
+        return ProcessorExecutor.PRIORITY_DOC;
     }
 
     @Override
@@ -14,21 +19,37 @@ class DocProcessor extends BaseProcessor {
         return "https://api.openai.com/v1/completions";
     }
 
+    @Override
+    protected int getContextAnchorLine(int triggerLine) {
+        // the documented code follows the trigger
+        return triggerLine + 1;
+    }
+
     @Override
     protected JSONObject getRequestObject() {
         JSONObject object = new JSONObject();
-        String documentText = getDocumentTextWithoutTriggerLine();
+        ContextWindow window = getContextWindow();
+        String prompt = "```" + window.getText() + "```\n\n" +
+                "generate documentation for the code at line: " + window.getTriggerLine() + " " +
+                "and output only the documentation as a code comment";
+        int maxTokens = -1;
+        if (!window.getReferences().isEmpty()) {
+            String withReferences = "declarations used by the code:\n```" + window.getReferences() + "```\n\n" + prompt;
+            maxTokens = Models.getCompletionBudget(Models.COMPLETION, withReferences);
+            if (maxTokens >= 0) {
+                prompt = withReferences;
+            }
+        }
+        if (maxTokens < 0) {
+            // the references are the first to go
+            maxTokens = Models.requireCompletionBudget(Models.COMPLETION, prompt);
+        }
 
-        object.put(
-                "prompt",
-                "```" + documentText + "```\n\n" +
-                        "generate documentation for the code at line: " + getLineNum() + " " +
-                        "and output only the documentation as a code comment"
-        );
+        object.put("prompt", prompt);
         object.put("stream", false);
         object.put("temperature", 0.2);
-        object.put("max_tokens", 2048);
-        object.put("model", "text-davinci-003");
+        object.put("max_tokens", maxTokens);
+        object.put("model", Models.COMPLETION);
         object.put("n", 1);
         return object;
     }
@@ -49,9 +70,11 @@ class DocProcessor extends BaseProcessor {
         }
         DocumentUtils.replaceTextAtLine(
                 getDocument(),
-                getLineNum(),
+                this::claimTriggerLine,
                 content,
-                "doc gen"
+                "doc gen",
+                true,
+                this::markWritten
         );
     }
 }
@@ -0,0 +1,164 @@
+package com.igio90.intellij.openai.processors;
+
+import com.intellij.openapi.editor.Document;
+
+import java.util.Arrays;
+
+/**
+ * immutable view of a document at a given modification stamp. text without one line is exposed as a view over the
+ * snapshot, which is copied at most once when a string is really needed
+ */
+final class DocumentSnapshot {
+    private final CharSequence mText;
+    private final long mModificationStamp;
+    private int[] mLineStarts;
+    private int mLineCount;
+
+    private DocumentSnapshot(CharSequence text, long modificationStamp) {
+        mText = text;
+        mModificationStamp = modificationStamp;
+    }
+
+    /**
+     * must be called with read access
+     */
+    static DocumentSnapshot take(Document document) {
+        return new DocumentSnapshot(document.getImmutableCharSequence(), document.getModificationStamp());
+    }
+
+    CharSequence getText() {
+        return mText;
+    }
+
+    long getModificationStamp() {
+        return mModificationStamp;
+    }
+
+    /**
+     * @return whether document has not changed since the snapshot was taken
+     */
+    boolean isCurrent(Document document) {
+        return document.getModificationStamp() == mModificationStamp;
+    }
+
+    synchronized int getLineCount() {
+        ensureLines();
+        return mLineCount;
+    }
+
+    synchronized int getLineStartOffset(int line) {
+        ensureLines();
+        return mLineStarts[line];
+    }
+
+    synchronized int getLineEndOffset(int line) {
+        ensureLines();
+        return line + 1 < mLineCount ? mLineStarts[line + 1] - 1 : mText.length();
+    }
+
+    CharSequence getLine(int line) {
+        return mText.subSequence(getLineStartOffset(line), getLineEndOffset(line));
+    }
+
+    /**
+     * @return the text from startLine to the end of endLine, without skippedLine and its line break
+     */
+    CharSequence linesWithoutLine(int startLine, int endLine, int skippedLine) {
+        int start = getLineStartOffset(startLine);
+        int end = getLineEndOffset(endLine);
+        int skipStart = end;
+        int skipEnd = end;
+        if (skippedLine >= startLine && skippedLine <= endLine) {
+            if (startLine == endLine) {
+                skipStart = start;
+            } else if (skippedLine == endLine) {
+                // the line break before the last line goes with it
+                skipStart = getLineEndOffset(skippedLine - 1);
+            } else {
+                skipStart = getLineStartOffset(skippedLine);
+                skipEnd = getLineStartOffset(skippedLine + 1);
+            }
+        }
+        return new SkippingSequence(mText, start, end, skipStart, skipEnd);
+    }
+
+    synchronized int getLineNumber(int offset) {
+        ensureLines();
+        int line = Arrays.binarySearch(mLineStarts, 0, mLineCount, offset);
+        return line >= 0 ? line : -line - 2;
+    }
+
+    private void ensureLines() {
+        if (mLineStarts != null) {
+            return;
+        }
+        int[] lineStarts = new int[Math.max(16, mText.length() / 32)];
+        int count = 1;
+        for (int i = 0, length = mText.length(); i < length; i++) {
+            if (mText.charAt(i) == '\n') {
+                if (count == lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, count * 2);
+                }
+                lineStarts[count++] = i + 1;
+            }
+        }
+        mLineStarts = lineStarts;
+        mLineCount = count;
+    }
+
+    /**
+     * text[start, end) with text[skipStart, skipEnd) left out
+     */
+    private static final class SkippingSequence implements CharSequence {
+        private final CharSequence mText;
+        private final int mStart;
+        private final int mEnd;
+        private final int mSkipStart;
+        private final int mSkipEnd;
+        private String mString;
+
+        SkippingSequence(CharSequence text, int start, int end, int skipStart, int skipEnd) {
+            mText = text;
+            mStart = start;
+            mEnd = end;
+            mSkipStart = skipStart;
+            mSkipEnd = skipEnd;
+        }
+
+        @Override
+        public int length() {
+            return mEnd - mStart - (mSkipEnd - mSkipStart);
+        }
+
+        @Override
+        public char charAt(int index) {
+            int offset = mStart + index;
+            return mText.charAt(offset < mSkipStart ? offset : offset + mSkipEnd - mSkipStart);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            int from = mStart + start;
+            int to = mStart + end;
+            if (to <= mSkipStart) {
+                return mText.subSequence(from, to);
+            }
+            int skipped = mSkipEnd - mSkipStart;
+            if (from >= mSkipStart) {
+                return mText.subSequence(from + skipped, to + skipped);
+            }
+            return new SkippingSequence(mText, from, to + skipped, mSkipStart, mSkipEnd);
+        }
+
+        @Override
+        public String toString() {
+            if (mString == null) {
+                mString = new StringBuilder(length())
+                        .append(mText, mStart, mSkipStart)
+                        .append(mText, mSkipEnd, mEnd)
+                        .toString();
+            }
+            return mString;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.igio90.intellij.openai.processors;
+
+import com.igio90.intellij.openai.utils.DocumentUtils;
+import com.igio90.intellij.openai.utils.Prefs;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.CaretEvent;
+import com.intellij.openapi.editor.event.CaretListener;
+import com.intellij.openapi.editor.event.EditorFactoryEvent;
+import com.intellij.openapi.editor.event.EditorFactoryListener;
+import com.intellij.openapi.editor.markup.HighlighterLayer;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.UserDataHolderEx;
+import com.intellij.ui.JBColor;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the highlights of generated code in a project, at most one set per document. contiguous lines and touching tokens
+ * share a highlighter, and a set goes away with the first caret move after its document was edited, seen by a single
+ * caret listener, or after the configured timeout. a set is also dropped with the last editor of its document, so
+ * closed documents are not held. only the modification stamp of the document is kept
+ */
+final class HighlightManager {
+    private static final Key<HighlightManager> KEY = Key.create("openai.highlight.manager");
+
+    private final Project mProject;
+    // only touched on the edt
+    private final Map<Document, Highlights> mHighlights = new HashMap<>();
+    private boolean mMovingCaret;
+
+    private final CaretListener mCaretListener = new CaretListener() {
+        @Override
+        public void caretPositionChanged(@NotNull CaretEvent event) {
+            if (mMovingCaret || event.getEditor().getProject() != mProject) {
+                return;
+            }
+            Document document = event.getEditor().getDocument();
+            Highlights highlights = mHighlights.get(document);
+            if (highlights != null && document.getModificationStamp() != highlights.mModificationStamp) {
+                clear(document);
+            }
+        }
+    };
+
+    private final EditorFactoryListener mEditorListener = new EditorFactoryListener() {
+        @Override
+        public void editorReleased(@NotNull EditorFactoryEvent event) {
+            Document document = event.getEditor().getDocument();
+            if (!mHighlights.containsKey(document)) {
+                return;
+            }
+            for (Editor editor : EditorFactory.getInstance().getEditors(document, mProject)) {
+                if (editor != event.getEditor()) {
+                    return;
+                }
+            }
+            clear(document);
+        }
+    };
+
+    private HighlightManager(Project project) {
+        mProject = project;
+        EditorFactory.getInstance().getEventMulticaster().addCaretListener(mCaretListener, project);
+        EditorFactory.getInstance().addEditorFactoryListener(mEditorListener, project);
+    }
+
+    static HighlightManager forProject(Project project) {
+        HighlightManager manager = project.getUserData(KEY);
+        if (manager == null) {
+            manager = ((UserDataHolderEx) project).putUserDataIfAbsent(KEY, new HighlightManager(project));
+        }
+        return manager;
+    }
+
+    /**
+     * replaces the highlights of document and moves the caret to the first changed line, must be called on the edt
+     * @param changedLines lines relative to firstLine
+     * @param changedTokens ranges relative to the start of firstLine, in order
+     */
+    void highlight(Document document, BitSet changedLines, List<int[]> changedTokens, int firstLine) {
+        clear(document);
+        int lineCount = document.getLineCount();
+        if (firstLine >= lineCount) {
+            return;
+        }
+
+        Highlights highlights = new Highlights(document.getModificationStamp());
+        JBColor lineColor = UIUtil.isUnderDarcula() ? DocumentUtils.DARK_GREEN : JBColor.GREEN;
+        for (int i = changedLines.nextSetBit(0); i >= 0 && firstLine + i < lineCount; ) {
+            int end = Math.min(changedLines.nextClearBit(i), lineCount - firstLine);
+            int startLine = firstLine + i;
+            if (highlights.mHighlighters.isEmpty()) {
+                mMovingCaret = true;
+                try {
+                    DocumentUtils.moveCaret(startLine, document.getLineStartOffset(startLine));
+                } finally {
+                    mMovingCaret = false;
+                }
+            }
+            highlights.mHighlighters.add(DocumentUtils.highlightRange(
+                    document,
+                    document.getLineStartOffset(startLine),
+                    document.getLineEndOffset(firstLine + end - 1),
+                    lineColor
+            ));
+            i = changedLines.nextSetBit(end);
+        }
+
+        int start = document.getLineStartOffset(firstLine);
+        int textLength = document.getTextLength();
+        for (int i = 0; i < changedTokens.size(); ) {
+            int tokenStart = changedTokens.get(i)[0];
+            int tokenEnd = changedTokens.get(i)[1];
+            for (i++; i < changedTokens.size() && changedTokens.get(i)[0] <= tokenEnd; i++) {
+                tokenEnd = Math.max(tokenEnd, changedTokens.get(i)[1]);
+            }
+            if (start + tokenEnd > textLength) {
+                break;
+            }
+            highlights.mHighlighters.add(DocumentUtils.highlightRange(
+                    document, start + tokenStart, start + tokenEnd, DocumentUtils.TOKEN_GREEN,
+                    HighlighterLayer.SELECTION + 1
+            ));
+        }
+        if (highlights.mHighlighters.isEmpty()) {
+            return;
+        }
+
+        mHighlights.put(document, highlights);
+        long timeout = Prefs.HIGHLIGHT_TIMEOUT_MS.getLong();
+        if (timeout > 0) {
+            highlights.mTimeout = AppExecutorUtil.getAppScheduledExecutorService().schedule(
+                    () -> ApplicationManager.getApplication().invokeLater(() -> {
+                        // a newer set replaced this one in the meantime
+                        if (!mProject.isDisposed() && mHighlights.get(document) == highlights) {
+                            clear(document);
+                        }
+                    }),
+                    timeout,
+                    TimeUnit.MILLISECONDS
+            );
+        }
+    }
+
+    boolean isHighlighted(Document document) {
+        return mHighlights.containsKey(document);
+    }
+
+    private void clear(Document document) {
+        Highlights highlights = mHighlights.remove(document);
+        if (highlights == null) {
+            return;
+        }
+        if (highlights.mTimeout != null) {
+            highlights.mTimeout.cancel(false);
+        }
+        for (RangeHighlighter highlighter : highlights.mHighlighters) {
+            DocumentUtils.clearHighlightRange(document, highlighter);
+        }
+    }
+
+    private static final class Highlights {
+        private final long mModificationStamp;
+        private final List<RangeHighlighter> mHighlighters = new ArrayList<>();
+        private Future<?> mTimeout;
+
+        private Highlights(long modificationStamp) {
+            mModificationStamp = modificationStamp;
+        }
+    }
+}
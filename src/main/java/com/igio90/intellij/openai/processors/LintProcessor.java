@@ -1,12 +1,16 @@
 package com.igio90.intellij.openai.processors;
 
-import com.igio90.intellij.openai.utils.DocumentUtils;
 import com.intellij.openapi.editor.Document;
 import org.json.JSONObject;
 
 class LintProcessor extends BaseProcessor {
-    LintProcessor(Document document, int lineNum, Processors.OnProcessFinished onProcessFinished) {
-        super(document, lineNum, onProcessFinished);
+    LintProcessor(Document document, int lineNum) {
+        super(document, lineNum);
+    }
+
+    @Override
+    int getPriority() {
+        return ProcessorExecutor.PRIORITY_LINT;
     }
 
     @Override
@@ -14,28 +18,29 @@ class LintProcessor extends BaseProcessor {
         return "https://api.openai.com/v1/edits";
     }
 
+    @Override
+    protected boolean needsReferences() {
+        return false;
+    }
+
     @Override
     protected JSONObject getRequestObject() {
         JSONObject object = new JSONObject();
-        String documentText = getDocumentTextWithoutTriggerLine();
+        String input = getContextWindow().getText().toString();
+        String instruction =
+                "apply lint, correct empty lines between variables and functions, indents using 4 spaces and stylus fixes";
+        Models.requireEdit(Models.EDIT, input, instruction);
 
-        object.put("input", documentText);
-        object.put(
-                "instruction",
-                "apply lint, correct empty lines between variables and functions, indents using 4 spaces and stylus fixes"
-        );
+        object.put("input", input);
+        object.put("instruction", instruction);
         object.put("temperature", 0.1);
-        object.put("model", "code-davinci-edit-001");
+        object.put("model", Models.EDIT);
         object.put("n", 1);
         return object;
     }
 
     @Override
     protected void onResponse(String content) {
-        DocumentUtils.replaceAllText(
-                getDocument(),
-                content,
-                "lint gen"
-        );
+        replaceContextWindow(content, "lint gen");
     }
 }
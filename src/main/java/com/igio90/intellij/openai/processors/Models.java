@@ -0,0 +1,75 @@
+package com.igio90.intellij.openai.processors;
+
+/**
+ * models in use and the token budgets derived from their context limits
+ */
+final class Models {
+    static final String COMPLETION = "text-davinci-003";
+    static final String EDIT = "code-davinci-edit-001";
+
+    // the largest completion ever asked for
+    static final int MAX_COMPLETION_TOKENS = 2048;
+    // below this a completion is not worth a round trip
+    private static final int MIN_COMPLETION_TOKENS = 64;
+
+    private Models() {
+    }
+
+    static int getContextLimit(String model) {
+        switch (model) {
+            case COMPLETION:
+                return 4097;
+            case EDIT:
+                return 8001;
+            default:
+                return 2049;
+        }
+    }
+
+    /**
+     * @return the max_tokens to ask for with prompt, or -1 if the prompt is not known to leave room for a completion
+     */
+    static int getCompletionBudget(String model, String prompt) {
+        int budget = Math.min(MAX_COMPLETION_TOKENS, getContextLimit(model) - Tokenizer.getInstance().count(prompt));
+        return budget < MIN_COMPLETION_TOKENS ? -1 : budget;
+    }
+
+    /**
+     * like getCompletionBudget, but a prompt leaving too little room is only rejected when its count is exact.
+     * upper bounds fall back to the smallest budget and leave the verdict to the api
+     */
+    static int requireCompletionBudget(String model, String prompt) {
+        int budget = getCompletionBudget(model, prompt);
+        if (budget >= 0) {
+            return budget;
+        }
+        if (Tokenizer.getInstance().isExact()) {
+            throw promptTooLong(model);
+        }
+        return MIN_COMPLETION_TOKENS;
+    }
+
+    /**
+     * the edit output replaces the input, so input and output have to fit the context together
+     * @return whether they are known to fit
+     */
+    static boolean fitsEdit(String model, CharSequence input, String instruction) {
+        Tokenizer tokenizer = Tokenizer.getInstance();
+        return 2 * tokenizer.count(input) + tokenizer.count(instruction) <= getContextLimit(model);
+    }
+
+    /**
+     * rejects an edit which does not fit, when the counts are exact
+     */
+    static void requireEdit(String model, CharSequence input, String instruction) {
+        if (!fitsEdit(model, input, instruction) && Tokenizer.getInstance().isExact()) {
+            throw promptTooLong(model);
+        }
+    }
+
+    private static IllegalArgumentException promptTooLong(String model) {
+        return new IllegalArgumentException(
+                "prompt too long for " + model + " (" + getContextLimit(model) + " tokens)"
+        );
+    }
+}
@@ -0,0 +1,125 @@
+package com.igio90.intellij.openai.processors;
+
+import com.igio90.intellij.openai.utils.Prefs;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * runs processors on a bounded pool, interactive requests first. workers are virtual threads when the jvm has them
+ */
+class ProcessorExecutor {
+    static final int PRIORITY_CODE = 0;
+    static final int PRIORITY_DOC = 1;
+    static final int PRIORITY_LINT = 2;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+
+    ProcessorExecutor() {
+        int concurrency = getConfiguredConcurrency();
+        mExecutor = new ThreadPoolExecutor(
+                concurrency,
+                concurrency,
+                30,
+                TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(),
+                createThreadFactory()
+        );
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    void execute(BaseProcessor processor) {
+        updateConcurrency();
+        // a free worker takes the request right away, so only requests left waiting count against the limit
+        boolean busy = mExecutor.getActiveCount() + mExecutor.getQueue().size() >= mExecutor.getMaximumPoolSize();
+        if (busy && mExecutor.getQueue().size() >= Math.max(0, Prefs.MAX_QUEUED_REQUESTS.getInt())) {
+            mRejected.incrementAndGet();
+            throw new RejectedExecutionException("too many pending requests");
+        }
+        mExecutor.execute(new PrioritizedTask(processor, mSequence.getAndIncrement()));
+    }
+
+    /**
+     * @return whether processor was still queued, it will not run then
+     */
+    boolean remove(BaseProcessor processor) {
+        return mExecutor.getQueue().removeIf(task -> ((PrioritizedTask) task).mProcessor == processor);
+    }
+
+    int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    private void updateConcurrency() {
+        int concurrency = getConfiguredConcurrency();
+        if (concurrency == mExecutor.getMaximumPoolSize()) {
+            return;
+        }
+        synchronized (mExecutor) {
+            if (concurrency > mExecutor.getMaximumPoolSize()) {
+                mExecutor.setMaximumPoolSize(concurrency);
+                mExecutor.setCorePoolSize(concurrency);
+            } else {
+                mExecutor.setCorePoolSize(concurrency);
+                mExecutor.setMaximumPoolSize(concurrency);
+            }
+        }
+    }
+
+    private static int getConfiguredConcurrency() {
+        return Math.max(1, Prefs.MAX_CONCURRENT_REQUESTS.getInt());
+    }
+
+    private static ThreadFactory createThreadFactory() {
+        try {
+            // Thread.ofVirtual().name(...).factory(), looked up reflectively as we build against java 11
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "openai-processor-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            AtomicInteger count = new AtomicInteger();
+            return runnable -> {
+                Thread thread = new Thread(runnable, "openai-processor-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final BaseProcessor mProcessor;
+        private final long mSequence;
+
+        PrioritizedTask(BaseProcessor processor, long sequence) {
+            mProcessor = processor;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            mProcessor.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            int priority = Integer.compare(mProcessor.getPriority(), other.mProcessor.getPriority());
+            return priority != 0 ? priority : Long.compare(mSequence, other.mSequence);
+        }
+    }
+}
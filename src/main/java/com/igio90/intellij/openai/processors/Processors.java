@@ -1,17 +1,28 @@
 package com.igio90.intellij.openai.processors;
 
 import com.igio90.intellij.openai.utils.DocumentUtils;
-import com.intellij.ide.util.PropertiesComponent;
+import com.igio90.intellij.openai.utils.Prefs;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.util.Computable;
 import okhttp3.OkHttpClient;
 
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Processors {
     private static Processors sInstance;
 
     private final OkHttpClient mClient;
+    private final ProcessorExecutor mExecutor;
+    private final ResponseCache mResponseCache = new ResponseCache(
+            new DiskResponseStore(Paths.get(PathManager.getSystemPath(), "openai", "responses"))
+    );
+    private final SimilarityCache mSimilarityCache = new SimilarityCache();
+    private final AtomicInteger mPendingTriggerCount = new AtomicInteger();
 
     public static Processors getInstance() {
         if (sInstance == null) {
@@ -26,18 +37,69 @@ public class Processors {
                 .callTimeout(2, TimeUnit.MINUTES)
                 .readTimeout(2, TimeUnit.MINUTES)
                 .build();
+        mExecutor = new ProcessorExecutor();
     }
 
     protected OkHttpClient getClient() {
         return mClient;
     }
 
+    ProcessorExecutor getExecutor() {
+        return mExecutor;
+    }
+
+    ResponseCache getResponseCache() {
+        return mResponseCache;
+    }
+
+    SimilarityCache getSimilarityCache() {
+        return mSimilarityCache;
+    }
+
+    public long getCacheHitCount() {
+        return mResponseCache.getHitCount();
+    }
+
+    public long getCacheMissCount() {
+        return mResponseCache.getMissCount();
+    }
+
+    public long getCacheEvictionCount() {
+        return mResponseCache.getEvictionCount();
+    }
+
+    public int getActiveRequestCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    public int getQueuedRequestCount() {
+        return mExecutor.getQueuedCount();
+    }
+
+    /**
+     * @return triggers waiting for the user to stop typing, across all documents
+     */
+    public int getPendingTriggerCount() {
+        return mPendingTriggerCount.get();
+    }
+
+    /**
+     * kept up to date by the trigger scheduler as triggers are queued and leave the queue
+     */
+    public void addPendingTriggers(int delta) {
+        mPendingTriggerCount.addAndGet(delta);
+    }
+
+    public long getRejectedRequestCount() {
+        return mExecutor.getRejectedCount();
+    }
+
     protected String getOpenAIApiKey() {
-        return PropertiesComponent.getInstance().getValue("openai_api_key", "");
+        return Prefs.API_KEY.getValue();
     }
 
-    public void processCode(Document document, int lineNum, String query, OnProcessFinished onProcessFinished) {
-        ApplicationManager.getApplication().runReadAction(() -> {
+    public RequestHandle processCode(Document document, int lineNum, String query, String placeholder) {
+        return ApplicationManager.getApplication().runReadAction((Computable<RequestHandle>) () -> {
             String language = DocumentUtils.getLanguage(document);
             if (language == null) {
                 DocumentUtils.replaceTextAtLine(
@@ -46,28 +108,57 @@ public class Processors {
                         "// failed to generate code... no language identified from file",
                         "code gen"
                 );
-                return;
+                return completedRequest();
             }
 
             int currentIndentCount = DocumentUtils.getCurrentIndentCount(
                     document,
                     document.getLineStartOffset(lineNum)
             );
-            new CodeProcessor(
-                    document, lineNum, currentIndentCount, query, language, onProcessFinished
-            ).start();
+            CodeProcessor processor = new CodeProcessor(
+                    document, lineNum, currentIndentCount, query, language
+            );
+            processor.begin(placeholder);
+            return processor;
         });
     }
 
-    public void processDoc(Document document, int lineNum, OnProcessFinished onProcessFinished) {
-        new DocProcessor(document, lineNum, onProcessFinished).start();
+    public RequestHandle processDoc(Document document, int lineNum, String placeholder) {
+        DocProcessor processor = new DocProcessor(document, lineNum);
+        processor.begin(placeholder);
+        return processor;
     }
 
-    public void processLint(Document document, int lineNum, OnProcessFinished onProcessFinished) {
-        new LintProcessor(document, lineNum, onProcessFinished).start();
+    public RequestHandle processLint(Document document, int lineNum, String placeholder) {
+        LintProcessor processor = new LintProcessor(document, lineNum);
+        processor.begin(placeholder);
+        return processor;
     }
 
-    public interface OnProcessFinished {
-        void onProcessFinished();
+    private static RequestHandle completedRequest() {
+        CompletableFuture<Void> completion = CompletableFuture.completedFuture(null);
+        return new RequestHandle() {
+            @Override
+            public void cancel() {
+            }
+
+            @Override
+            public CompletableFuture<Void> getCompletion() {
+                return completion;
+            }
+        };
+    }
+
+    public interface RequestHandle {
+        /**
+         * drops the request, cancelling the http call if it is in flight. the result is never written
+         */
+        void cancel();
+
+        /**
+         * completes on the edt once the result has been written to the document, exceptionally on failure or when
+         * the result could not be written, and cancelled when the request has been dropped
+         */
+        CompletableFuture<Void> getCompletion();
     }
 }
@@ -0,0 +1,189 @@
+package com.igio90.intellij.openai.processors;
+
+import com.igio90.intellij.openai.utils.Prefs;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * size bounded lru of response texts, keyed by a hash of the endpoint and the canonical request payload.
+ * misses fall through to the disk store, which survives restarts
+ */
+class ResponseCache {
+    // rough per entry overhead of the map node, the entry and the two strings
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final DiskResponseStore mDiskStore;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mBytes;
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    ResponseCache(DiskResponseStore diskStore) {
+        mDiskStore = diskStore;
+    }
+
+    static String key(String url, JSONObject requestObject) {
+        StringBuilder builder = new StringBuilder(url).append('\n');
+        canonicalize(requestObject, builder, true);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+                    builder.toString().getBytes(StandardCharsets.UTF_8)
+            );
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    String get(String key) {
+        String content = getFromMemory(key);
+        if (content == null) {
+            DiskResponseStore.Record record = mDiskStore.get(key);
+            if (record != null) {
+                // keeps its age, the ttl counts from the original response
+                putInMemory(key, record.mContent, record.mCreatedAt);
+                content = record.mContent;
+            }
+        }
+        return content;
+    }
+
+    void put(String key, String content) {
+        putInMemory(key, content, System.currentTimeMillis());
+        mDiskStore.put(key, content);
+    }
+
+    private synchronized String getFromMemory(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        if (isExpired(entry.mCreatedAt)) {
+            remove(key);
+            mEvictions++;
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.mContent;
+    }
+
+    private synchronized void putInMemory(String key, String content, long createdAt) {
+        long maxBytes = Prefs.RESPONSE_CACHE_MAX_BYTES.getLong();
+        long size = sizeOf(key, content);
+        if (size > maxBytes) {
+            return;
+        }
+
+        remove(key);
+        mEntries.put(key, new Entry(content, createdAt));
+        mBytes += size;
+
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            mBytes -= sizeOf(eldest.getKey(), eldest.getValue().mContent);
+            iterator.remove();
+            mEvictions++;
+        }
+    }
+
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    private void remove(String key) {
+        Entry removed = mEntries.remove(key);
+        if (removed != null) {
+            mBytes -= sizeOf(key, removed.mContent);
+        }
+    }
+
+    /**
+     * @param createdAt wall clock millis of the response, shared with the disk store
+     */
+    static boolean isExpired(long createdAt) {
+        long ttl = TimeUnit.SECONDS.toMillis(Prefs.RESPONSE_CACHE_TTL_SECONDS.getLong());
+        return ttl > 0 && System.currentTimeMillis() - createdAt > ttl;
+    }
+
+    private static long sizeOf(String key, String content) {
+        return ENTRY_OVERHEAD + 2L * (key.length() + content.length());
+    }
+
+    /**
+     * writes json with sorted keys, so equal payloads hash the same regardless of insertion order.
+     * the stream flag only changes the transport, not the result, and is left out
+     */
+    private static void canonicalize(Object value, StringBuilder out, boolean root) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            List<String> keys = new ArrayList<>(object.keySet());
+            Collections.sort(keys);
+            out.append('{');
+            boolean first = true;
+            for (String key : keys) {
+                if (root && key.equals("stream")) {
+                    continue;
+                }
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.append(JSONObject.quote(key)).append(':');
+                canonicalize(object.get(key), out, false);
+            }
+            out.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            out.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                canonicalize(array.get(i), out, false);
+            }
+            out.append(']');
+        } else if (value instanceof String) {
+            out.append(JSONObject.quote((String) value));
+        } else {
+            out.append(JSONObject.valueToString(value));
+        }
+    }
+
+    private static class Entry {
+        private final String mContent;
+        private final long mCreatedAt;
+
+        Entry(String content, long createdAt) {
+            mContent = content;
+            mCreatedAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.igio90.intellij.openai.processors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * serves completions of prompts which are worded slightly differently from an earlier one.
+ * queries are reduced to a set of normalized terms, signed with minhash and bucketed with lsh,
+ * so a lookup only compares against the few entries sharing a band with it
+ */
+class SimilarityCache {
+    private static final int HASHES = 64;
+    private static final int BANDS = 16;
+    private static final int ROWS = HASHES / BANDS;
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "the", "that", "which", "who", "of", "to", "for", "in", "on", "with", "and", "it", "its",
+            "is", "are", "be", "please", "me", "my", "some"
+    );
+    private static final Map<String, String> NUMBER_WORDS = Map.of(
+            "one", "1", "two", "2", "three", "3", "four", "4", "five", "5",
+            "six", "6", "seven", "7", "eight", "8", "nine", "9", "ten", "10"
+    );
+
+    private static final int[] SEEDS_A = new int[HASHES];
+    private static final int[] SEEDS_B = new int[HASHES];
+
+    static {
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < HASHES; i++) {
+            seed = mix(seed + i);
+            SEEDS_A[i] = (int) seed | 1;
+            SEEDS_B[i] = (int) (seed >>> 32);
+        }
+    }
+
+    private final LinkedHashMap<Query, String> mEntries = new LinkedHashMap<>();
+    private final Map<Long, List<Query>> mBuckets = new HashMap<>();
+
+    static final class Query {
+        private final String mScope;
+        private final String[] mTerms;
+        private final int[] mSignature;
+
+        Query(String query, String language, String model) {
+            mScope = language + '\n' + model;
+            mTerms = terms(query);
+            mSignature = signature(mTerms);
+        }
+
+        private long bandKey(int band) {
+            long hash = mScope.hashCode() * 31L + band;
+            for (int row = band * ROWS; row < (band + 1) * ROWS; row++) {
+                hash = hash * 0x100000001B3L + mSignature[row];
+            }
+            return mix(hash);
+        }
+
+        private double similarity(Query other) {
+            if (!mScope.equals(other.mScope)) {
+                return 0;
+            }
+            // exact jaccard over the sorted terms, the signature only picks the candidates
+            int shared = 0;
+            int i = 0;
+            int j = 0;
+            while (i < mTerms.length && j < other.mTerms.length) {
+                int compare = mTerms[i].compareTo(other.mTerms[j]);
+                if (compare == 0) {
+                    shared++;
+                    i++;
+                    j++;
+                } else if (compare < 0) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            int union = mTerms.length + other.mTerms.length - shared;
+            return union == 0 ? 0 : (double) shared / union;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Query && mScope.equals(((Query) other).mScope)
+                    && Arrays.equals(mTerms, ((Query) other).mTerms);
+        }
+
+        @Override
+        public int hashCode() {
+            return mScope.hashCode() * 31 + Arrays.hashCode(mTerms);
+        }
+    }
+
+    /**
+     * @return the completion of the most similar cached query, if it reaches threshold
+     */
+    synchronized String get(Query query, double threshold) {
+        if (query.mTerms.length == 0) {
+            return null;
+        }
+        Query best = null;
+        double bestSimilarity = threshold;
+        for (int band = 0; band < BANDS; band++) {
+            List<Query> bucket = mBuckets.get(query.bandKey(band));
+            if (bucket == null) {
+                continue;
+            }
+            for (Query candidate : bucket) {
+                double similarity = query.similarity(candidate);
+                if (similarity >= bestSimilarity) {
+                    best = candidate;
+                    bestSimilarity = similarity;
+                }
+            }
+        }
+        return best == null ? null : mEntries.get(best);
+    }
+
+    synchronized void put(Query query, String content) {
+        if (query.mTerms.length == 0 || mEntries.containsKey(query)) {
+            return;
+        }
+        mEntries.put(query, content);
+        for (int band = 0; band < BANDS; band++) {
+            mBuckets.computeIfAbsent(query.bandKey(band), key -> new ArrayList<>(1)).add(query);
+        }
+
+        Iterator<Query> iterator = mEntries.keySet().iterator();
+        while (mEntries.size() > MAX_ENTRIES) {
+            Query eldest = iterator.next();
+            iterator.remove();
+            for (int band = 0; band < BANDS; band++) {
+                long key = eldest.bandKey(band);
+                List<Query> bucket = mBuckets.get(key);
+                bucket.remove(eldest);
+                if (bucket.isEmpty()) {
+                    mBuckets.remove(key);
+                }
+            }
+        }
+    }
+
+    private static String[] terms(String query) {
+        String[] words = query.toLowerCase(Locale.ROOT).split("[^\\p{Alnum}]+");
+        List<String> terms = new ArrayList<>(words.length);
+        for (String word : words) {
+            if (word.isEmpty() || STOP_WORDS.contains(word)) {
+                continue;
+            }
+            String term = NUMBER_WORDS.getOrDefault(word, stem(word));
+            if (!terms.contains(term)) {
+                terms.add(term);
+            }
+        }
+        String[] sorted = terms.toArray(new String[0]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // crude suffix stripping, enough to fold "sums", "summing" and "summed" together
+    private static String stem(String word) {
+        String[] suffixes = {"ing", "ed", "es", "s"};
+        for (String suffix : suffixes) {
+            if (word.length() > suffix.length() + 2 && word.endsWith(suffix)) {
+                word = word.substring(0, word.length() - suffix.length());
+                break;
+            }
+        }
+        int length = word.length();
+        if (length > 3 && word.charAt(length - 1) == word.charAt(length - 2)) {
+            word = word.substring(0, length - 1);
+        }
+        return word;
+    }
+
+    private static int[] signature(String[] terms) {
+        int[] signature = new int[HASHES];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (String term : terms) {
+            int hash = (int) mix(term.hashCode());
+            for (int i = 0; i < HASHES; i++) {
+                int value = (SEEDS_A[i] * hash + SEEDS_B[i]) >>> 1;
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        return signature;
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+}
@@ -0,0 +1,285 @@
+package com.igio90.intellij.openai.processors;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * byte level bpe token counter of the gpt-2 family encodings. the merge ranks are read once from the tiktoken rank
+ * file bundled as a resource. without it nothing is guessed: the utf-8 length is returned, which no token count
+ * exceeds, and isExact() tells callers not to reject prompts on it
+ */
+final class Tokenizer {
+    private static final Logger LOG = Logger.getInstance(Tokenizer.class);
+
+    static final String RANKS_RESOURCE = "/tokenizers/p50k_base.tiktoken";
+
+    private static final Pattern PRE_TOKENIZER = Pattern.compile(
+            "'s|'t|'re|'ve|'m|'ll|'d| ?\\p{L}+| ?\\p{N}+| ?[^\\s\\p{L}\\p{N}]+|\\s+(?!\\S)|\\s+"
+    );
+
+    private static final ThreadLocal<Scratch> sScratch = ThreadLocal.withInitial(Scratch::new);
+
+    private final RankTable mRanks;
+
+    private Tokenizer(RankTable ranks) {
+        mRanks = ranks;
+    }
+
+    private static class Holder {
+        private static final Tokenizer INSTANCE = load(RANKS_RESOURCE);
+    }
+
+    static Tokenizer getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * @param resource tiktoken rank file, one base64 token and its rank per line
+     */
+    static Tokenizer load(String resource) {
+        try (InputStream stream = Tokenizer.class.getResourceAsStream(resource)) {
+            if (stream == null) {
+                LOG.warn(resource + " is not bundled, token counts are upper bounds");
+                return new Tokenizer(null);
+            }
+            return new Tokenizer(RankTable.read(stream));
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.warn("failed to read " + resource, e);
+            return new Tokenizer(null);
+        }
+    }
+
+    /**
+     * @return whether counts are exact, otherwise they are the utf-8 length of the text
+     */
+    boolean isExact() {
+        return mRanks != null;
+    }
+
+    int count(CharSequence text) {
+        if (mRanks == null) {
+            return utf8Length(text, 0, text.length());
+        }
+        Scratch scratch = sScratch.get();
+        Matcher matcher = PRE_TOKENIZER.matcher(text);
+        int count = 0;
+        while (matcher.find()) {
+            count += merge(scratch, encode(text, matcher.start(), matcher.end(), scratch));
+        }
+        return count;
+    }
+
+    /**
+     * runs the merges over the first length scratch bytes in rank order, lowest first as tiktoken does
+     * @return the number of tokens left
+     */
+    private int merge(Scratch scratch, int length) {
+        byte[] bytes = scratch.mBytes;
+        if (length <= 1 || mRanks.rank(bytes, 0, length) >= 0) {
+            return 1;
+        }
+
+        // boundaries of the current parts and the rank of merging each part with the next one
+        int[] bounds = scratch.ints(0, length + 1);
+        int[] ranks = scratch.ints(1, length + 1);
+        int parts = length;
+        for (int i = 0; i <= length; i++) {
+            bounds[i] = i;
+        }
+        for (int i = 0; i < parts; i++) {
+            ranks[i] = pairRank(bytes, bounds, parts, i);
+        }
+
+        while (parts > 1) {
+            int min = -1;
+            for (int i = 0; i < parts - 1; i++) {
+                if (ranks[i] != Integer.MAX_VALUE && (min < 0 || ranks[i] < ranks[min])) {
+                    min = i;
+                }
+            }
+            if (min < 0) {
+                break;
+            }
+
+            // part min absorbs part min + 1
+            System.arraycopy(bounds, min + 2, bounds, min + 1, parts - min - 1);
+            System.arraycopy(ranks, min + 2, ranks, min + 1, parts - min - 2);
+            parts--;
+            ranks[min] = pairRank(bytes, bounds, parts, min);
+            if (min > 0) {
+                ranks[min - 1] = pairRank(bytes, bounds, parts, min - 1);
+            }
+        }
+        return parts;
+    }
+
+    private int pairRank(byte[] bytes, int[] bounds, int parts, int part) {
+        if (part + 1 >= parts) {
+            return Integer.MAX_VALUE;
+        }
+        int rank = mRanks.rank(bytes, bounds[part], bounds[part + 2] - bounds[part]);
+        return rank < 0 ? Integer.MAX_VALUE : rank;
+    }
+
+    /**
+     * utf-8 encodes text[start, end) into the scratch bytes, unpaired surrogates as '?' like String.getBytes
+     * @return the encoded length
+     */
+    private static int encode(CharSequence text, int start, int end, Scratch scratch) {
+        byte[] bytes = scratch.bytes((end - start) * 3);
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[length++] = (byte) (0xc0 | (c >> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                bytes[length++] = '?';
+            } else {
+                bytes[length++] = (byte) (0xe0 | (c >> 12));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return length;
+    }
+
+    private static int utf8Length(CharSequence text, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    private static class Scratch {
+        private byte[] mBytes = new byte[1024];
+        private final int[][] mInts = {new int[1025], new int[1025]};
+
+        byte[] bytes(int size) {
+            if (mBytes.length < size) {
+                mBytes = new byte[Math.max(size, mBytes.length * 2)];
+            }
+            return mBytes;
+        }
+
+        int[] ints(int which, int size) {
+            if (mInts[which].length < size) {
+                mInts[which] = new int[Math.max(size, mInts[which].length * 2)];
+            }
+            return mInts[which];
+        }
+    }
+
+    /**
+     * open addressing table from token bytes to rank. the tokens are packed in a single byte pool
+     */
+    private static class RankTable {
+        private final byte[] mPool;
+        private final int[] mOffsets;
+        private final int[] mLengths;
+        private final int[] mRanks;
+        // entry index + 1, 0 is empty
+        private final int[] mSlots;
+
+        private RankTable(byte[] pool, int[] offsets, int[] lengths, int[] ranks, int count) {
+            mPool = pool;
+            mOffsets = offsets;
+            mLengths = lengths;
+            mRanks = ranks;
+            mSlots = new int[Integer.highestOneBit(Math.max(1, count) * 2) * 2];
+            for (int i = 0; i < count; i++) {
+                int slot = hash(mPool, mOffsets[i], mLengths[i]) & (mSlots.length - 1);
+                while (mSlots[slot] != 0) {
+                    slot = (slot + 1) & (mSlots.length - 1);
+                }
+                mSlots[slot] = i + 1;
+            }
+        }
+
+        static RankTable read(InputStream stream) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.US_ASCII));
+            byte[] pool = new byte[1 << 16];
+            int[] offsets = new int[1 << 12];
+            int[] lengths = new int[1 << 12];
+            int[] ranks = new int[1 << 12];
+            int poolSize = 0;
+            int count = 0;
+            Base64.Decoder decoder = Base64.getDecoder();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                int space = line.indexOf(' ');
+                if (space <= 0) {
+                    continue;
+                }
+                byte[] token = decoder.decode(line.substring(0, space));
+                if (poolSize + token.length > pool.length) {
+                    pool = Arrays.copyOf(pool, Math.max(poolSize + token.length, pool.length * 2));
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                    lengths = Arrays.copyOf(lengths, count * 2);
+                    ranks = Arrays.copyOf(ranks, count * 2);
+                }
+                System.arraycopy(token, 0, pool, poolSize, token.length);
+                offsets[count] = poolSize;
+                lengths[count] = token.length;
+                ranks[count] = Integer.parseInt(line.substring(space + 1).trim());
+                poolSize += token.length;
+                count++;
+            }
+            return new RankTable(pool, offsets, lengths, ranks, count);
+        }
+
+        /**
+         * @return the rank of bytes[start, start + length) or -1 if it is not a token
+         */
+        int rank(byte[] bytes, int start, int length) {
+            int slot = hash(bytes, start, length) & (mSlots.length - 1);
+            for (int entry = mSlots[slot]; entry != 0; entry = mSlots[slot]) {
+                int index = entry - 1;
+                if (mLengths[index] == length && Arrays.equals(
+                        mPool, mOffsets[index], mOffsets[index] + length, bytes, start, start + length
+                )) {
+                    return mRanks[index];
+                }
+                slot = (slot + 1) & (mSlots.length - 1);
+            }
+            return -1;
+        }
+
+        private static int hash(byte[] bytes, int start, int length) {
+            int hash = 0x811c9dc5;
+            for (int i = start; i < start + length; i++) {
+                hash = (hash ^ bytes[i]) * 0x01000193;
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
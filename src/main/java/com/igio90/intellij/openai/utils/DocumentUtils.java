@@ -2,6 +2,7 @@ package com.igio90.intellij.openai.utils;
 
 import com.intellij.application.options.CodeStyle;
 import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.command.CommandProcessor;
 import com.intellij.openapi.command.WriteCommandAction;
@@ -12,20 +13,36 @@ import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.fileTypes.LanguageFileType;
+import com.intellij.openapi.fileTypes.SyntaxHighlighter;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterFactory;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.EmptyRunnable;
+import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.wm.StatusBar;
 import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiFile;
 import com.intellij.psi.codeStyle.CodeStyleManager;
 import com.intellij.psi.codeStyle.CommonCodeStyleSettings;
 import com.intellij.ui.JBColor;
 import com.intellij.util.ThrowableRunnable;
+import name.fraser.neil.plaintext.diff_match_patch;
 
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
 
 public class DocumentUtils {
     public static final JBColor DARK_GREEN = new JBColor("darkgreen", JBColor.GREEN.darker().darker());
+    // changed tokens within a highlighted line, stands out of both greens
+    public static final JBColor TOKEN_GREEN = new JBColor(JBColor.GREEN.darker(), JBColor.GREEN.darker());
 
     public static Project getProject() {
         return ProjectManager.getInstance().getOpenProjects()[0];
@@ -62,8 +79,12 @@ public class DocumentUtils {
     }
 
     public static RangeHighlighter highlightRange(Document document, int start, int end, JBColor color) {
+        return highlightRange(document, start, end, color, HighlighterLayer.SELECTION);
+    }
+
+    public static RangeHighlighter highlightRange(Document document, int start, int end, JBColor color, int layer) {
         MarkupModel markupModel = DocumentMarkupModel.forDocument(document, DocumentUtils.getProject(), false);
-        return markupModel.addRangeHighlighter(start, end, HighlighterLayer.SELECTION, new TextAttributes(null, color, null, null, Font.PLAIN), HighlighterTargetArea.EXACT_RANGE);
+        return markupModel.addRangeHighlighter(start, end, layer, new TextAttributes(null, color, null, null, Font.PLAIN), HighlighterTargetArea.EXACT_RANGE);
     }
 
     public static void clearHighlightRange(Document document, RangeHighlighter highlighter) {
@@ -71,6 +92,64 @@ public class DocumentUtils {
         markupModel.removeHighlighter(highlighter);
     }
 
+    /**
+     * splits text into the tokens of the highlighting lexer of the document language, or into words, blanks and
+     * single symbols when there is no lexer for it
+     *
+     * @return end offsets of the consecutive tokens, the last one is the text length
+     */
+    public static int[] tokenize(Document document, String text) {
+        SyntaxHighlighter highlighter = ApplicationManager.getApplication().runReadAction(
+                (Computable<SyntaxHighlighter>) () -> {
+                    PsiFile psiFile = getCurrentFile(document);
+                    if (psiFile == null) {
+                        return null;
+                    }
+                    return SyntaxHighlighterFactory.getSyntaxHighlighter(
+                            psiFile.getFileType(), getProject(), psiFile.getVirtualFile()
+                    );
+                }
+        );
+
+        int[] ends = new int[Math.max(16, text.length() / 4)];
+        int count = 0;
+        if (highlighter != null) {
+            Lexer lexer = highlighter.getHighlightingLexer();
+            lexer.start(text);
+            while (lexer.getTokenType() != null) {
+                if (count == ends.length) {
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                ends[count++] = lexer.getTokenEnd();
+                lexer.advance();
+            }
+        }
+        // plain text lexers give the whole text as one token
+        int start = count > 1 ? ends[count - 1] : 0;
+        if (start == 0) {
+            count = 0;
+        }
+        while (start < text.length()) {
+            char c = text.charAt(start);
+            int end = start + 1;
+            if (Character.isJavaIdentifierPart(c)) {
+                while (end < text.length() && Character.isJavaIdentifierPart(text.charAt(end))) {
+                    end++;
+                }
+            } else if (Character.isWhitespace(c)) {
+                while (end < text.length() && Character.isWhitespace(text.charAt(end))) {
+                    end++;
+                }
+            }
+            if (count == ends.length) {
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            ends[count++] = end;
+            start = end;
+        }
+        return Arrays.copyOf(ends, count);
+    }
+
     public static int getDefaultIndentSize(Document document) {
         Project project = getProject();
         if (project == null) {
@@ -111,27 +190,150 @@ public class DocumentUtils {
     }
 
     public static void replaceAllText(Document document, String text, String actionName) {
+        replaceAllText(document, () -> true, text, actionName);
+    }
+
+    /**
+     * diffs on a pooled thread and writes the changed regions on the edt, diffing again if the document changed
+     * in between
+     * @param proceed evaluated on the edt right before writing, returning false skips the write
+     */
+    public static void replaceAllText(Document document, BooleanSupplier proceed, String text, String actionName) {
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            long[] modificationStamp = new long[1];
+            CharSequence before = ApplicationManager.getApplication().runReadAction((Computable<CharSequence>) () -> {
+                modificationStamp[0] = document.getModificationStamp();
+                return document.getImmutableCharSequence();
+            });
+            replaceRange(
+                    document,
+                    () -> proceed.getAsBoolean() ? new TextRange(0, document.getTextLength()) : null,
+                    computeMinimalEdits(before, text, modificationStamp[0]),
+                    actionName,
+                    () -> replaceAllText(document, proceed, text, actionName),
+                    EmptyRunnable.getInstance()
+            );
+        });
+    }
+
+    /**
+     * writes edits computed off the edt to the claimed range in one command
+     * @param range evaluated on the edt right before writing, null skips the write
+     * @param stale run on the edt instead, with nothing claimed, when the document changed since the edits were
+     *              computed
+     * @param written run on the edt once the edits are written
+     */
+    public static void replaceRange(
+            Document document,
+            Supplier<TextRange> range,
+            Edits edits,
+            String actionName,
+            Runnable stale,
+            Runnable written
+    ) {
         ApplicationManager.getApplication().invokeLater(() -> {
-            try {
-                WriteCommandAction.writeCommandAction(getProject()).run((ThrowableRunnable<Throwable>) () -> {
-                    CommandProcessor.getInstance().executeCommand(
-                            DocumentUtils.getProject(),
-                            () -> {
-                                document.deleteString(0, document.getTextLength());
-                                document.insertString(0, text);
-                                CommandProcessor.getInstance().setCurrentCommandName(actionName);
-                            },
-                            actionName,
-                            actionName,
-                            document
-                    );
-                });
-            } catch (Throwable e) {
-                throw new RuntimeException(e);
+            if (document.getModificationStamp() != edits.mModificationStamp) {
+                stale.run();
+                return;
+            }
+            TextRange textRange = range.get();
+            if (textRange != null) {
+                writeEdits(document, textRange.getStartOffset(), edits, actionName);
+                written.run();
             }
         });
     }
 
+    private static void writeEdits(Document document, int start, Edits edits, String actionName) {
+        try {
+            WriteCommandAction.writeCommandAction(getProject()).run((ThrowableRunnable<Throwable>) () -> {
+                CommandProcessor.getInstance().executeCommand(
+                        DocumentUtils.getProject(),
+                        () -> {
+                            // from the end, so earlier offsets stay valid
+                            for (int i = edits.mReplacements.size() - 1; i >= 0; i--) {
+                                int[] edit = edits.mRanges.get(i);
+                                document.replaceString(start + edit[0], start + edit[1], edits.mReplacements.get(i));
+                            }
+                            CommandProcessor.getInstance().setCurrentCommandName(actionName);
+                        },
+                        actionName,
+                        actionName,
+                        document
+                );
+            });
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * diffs before, a range of a document as of modificationStamp, against text. the result has one replacement per
+     * changed region, so markers, folding, carets and the psi outside of the changes are left alone. touches no
+     * document and may run on any thread, whole file results are split at unique lines and diffed on all cores
+     */
+    public static Edits computeMinimalEdits(CharSequence before, String text, long modificationStamp) {
+        diff_match_patch dmp = new diff_match_patch();
+        dmp.Diff_Pool = ForkJoinPool.commonPool();
+        dmp.Diff_Timeout = Math.max(0, Prefs.DIFF_TIMEOUT_MS.getLong()) / 1000f;
+        dmp.Diff_LineAlgorithm = Prefs.DIFF_ALGORITHM.getEnum(diff_match_patch.LineAlgorithm.class);
+        diff_match_patch.Diffs diffs = dmp.diff_mainCompact(before.toString(), text, true);
+        // a few more characters rewritten beat many tiny edits
+        dmp.diff_cleanupEfficiency(diffs);
+
+        // inserted text of a change is contiguous in text, so it is cut once per change
+        Edits edits = new Edits(modificationStamp);
+        int offset = 0;
+        int textOffset = 0;
+        int changeStart = -1;
+        int insertStart = -1;
+        for (int i = 0; i < diffs.size(); i++) {
+            int length = diffs.length(i);
+            diff_match_patch.Operation operation = diffs.operation(i);
+            if (operation == diff_match_patch.Operation.EQUAL) {
+                if (changeStart >= 0) {
+                    edits.add(changeStart, offset, text.substring(insertStart, textOffset));
+                    changeStart = -1;
+                }
+                offset += length;
+                textOffset += length;
+                continue;
+            }
+            if (changeStart < 0) {
+                changeStart = offset;
+                insertStart = textOffset;
+            }
+            if (operation == diff_match_patch.Operation.DELETE) {
+                offset += length;
+            } else {
+                textOffset += length;
+            }
+        }
+        if (changeStart >= 0) {
+            edits.add(changeStart, offset, text.substring(insertStart, textOffset));
+        }
+        return edits;
+    }
+
+    /**
+     * replacements of a range of a document, offsets relative to the start of the range, valid as long as the
+     * document is at the modification stamp they were computed against
+     */
+    public static final class Edits {
+        private final long mModificationStamp;
+        private final List<int[]> mRanges = new ArrayList<>();
+        private final List<String> mReplacements = new ArrayList<>();
+
+        private Edits(long modificationStamp) {
+            mModificationStamp = modificationStamp;
+        }
+
+        private void add(int start, int end, String replacement) {
+            mRanges.add(new int[]{start, end});
+            mReplacements.add(replacement);
+        }
+    }
+
     public static void replaceTextAtLine(Document document, int lineNum, String text, String actionName) {
         replaceTextAtLine(document, lineNum, text, actionName, true);
     }
@@ -142,13 +344,42 @@ public class DocumentUtils {
             String text,
             String actionName,
             boolean moveCaret
+    ) {
+        replaceTextAtLine(document, () -> lineNum, text, actionName, moveCaret);
+    }
+
+    public static void replaceTextAtLine(
+            Document document,
+            IntSupplier lineNum,
+            String text,
+            String actionName,
+            boolean moveCaret
+    ) {
+        replaceTextAtLine(document, lineNum, text, actionName, moveCaret, EmptyRunnable.getInstance());
+    }
+
+    /**
+     * @param lineNum evaluated on the edt right before writing, a negative line skips the write
+     * @param written run on the edt once the text is written
+     */
+    public static void replaceTextAtLine(
+            Document document,
+            IntSupplier lineNum,
+            String text,
+            String actionName,
+            boolean moveCaret,
+            Runnable written
     ) {
         ApplicationManager.getApplication().invokeLater(() -> {
+            int line = lineNum.getAsInt();
+            if (line < 0) {
+                return;
+            }
             try {
                 WriteCommandAction.writeCommandAction(getProject()).run((ThrowableRunnable<Throwable>) () -> {
                     CommandProcessor.getInstance().executeCommand(
                             DocumentUtils.getProject(),
-                            internalReplaceTextAtLine(document, lineNum, text, actionName, moveCaret),
+                            internalReplaceTextAtLine(document, line, text, actionName, moveCaret),
                             actionName,
                             actionName,
                             document
@@ -157,6 +388,7 @@ public class DocumentUtils {
             } catch (Throwable e) {
                 throw new RuntimeException(e);
             }
+            written.run();
         });
     }
 
@@ -188,6 +420,54 @@ public class DocumentUtils {
         };
     }
 
+    /**
+     * writes a streamed chunk at the end of region, must be called on the edt. the first chunk replaces the
+     * placeholder line held by region. chunks sharing the same groupId are undone together
+     * @return the region covering everything streamed so far
+     */
+    public static RangeMarker writeStreamChunk(
+            Document document,
+            RangeMarker region,
+            String chunk,
+            boolean first,
+            String groupId,
+            String actionName
+    ) {
+        RangeMarker[] result = {region};
+        WriteCommandAction.runWriteCommandAction(getProject(), actionName, groupId, () -> {
+            int lineNum = document.getLineNumber(region.getStartOffset());
+            int lineOffset = document.getLineStartOffset(lineNum);
+            String indent;
+            int offset;
+            if (first) {
+                document.deleteString(lineOffset, document.getLineEndOffset(lineNum));
+                indent = getCurrentIndent(document, lineOffset);
+                offset = lineOffset;
+            } else {
+                CharSequence text = document.getImmutableCharSequence();
+                int indentEnd = lineOffset;
+                while (indentEnd < region.getEndOffset() && (text.charAt(indentEnd) == ' ' || text.charAt(indentEnd) == '\t')) {
+                    indentEnd++;
+                }
+                indent = text.subSequence(lineOffset, indentEnd).toString();
+                offset = region.getEndOffset();
+            }
+
+            String indentedText = (first ? indent : "") + chunk.replace("\n", "\n" + indent);
+            document.insertString(offset, indentedText);
+
+            if (first) {
+                RangeMarker streamed = document.createRangeMarker(lineOffset, lineOffset + indentedText.length());
+                streamed.setGreedyToRight(true);
+                result[0] = streamed;
+            }
+
+            int end = result[0].getEndOffset();
+            moveCaret(document.getLineNumber(end), end);
+        });
+        return result[0];
+    }
+
     public static void moveCaret(int line, int offset) {
         Editor editor = FileEditorManager.getInstance(getProject()).getSelectedTextEditor();
         if (editor != null) {
@@ -196,4 +476,8 @@ public class DocumentUtils {
             editor.getScrollingModel().scrollTo(position, ScrollType.CENTER);
         }
     }
+
+    public static void showStatus(String text) {
+        ApplicationManager.getApplication().invokeLater(() -> StatusBar.Info.set(text, getProject()));
+    }
 }
@@ -0,0 +1,98 @@
+package com.igio90.intellij.openai.utils;
+
+import com.intellij.ide.util.PropertiesComponent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+public class Prefs {
+    private static final List<Entry> sEntries = new ArrayList<>();
+
+    public static final Entry API_KEY = register("openai_api_key", "API Key:", "");
+    public static final Entry DEBOUNCE_MS = register("openai_debounce_ms", "Trigger quiet period (ms):", "300");
+    public static final Entry MAX_CONCURRENT_REQUESTS = register("openai_max_concurrent_requests", "Concurrent requests:", "4");
+    public static final Entry MAX_QUEUED_REQUESTS = register("openai_max_queued_requests", "Queued requests limit:", "32");
+    public static final Entry STREAM_COMPLETIONS = register("openai_stream_completions", "Stream completions (true/false):", "true");
+    public static final Entry STREAM_FLUSH_MS = register("openai_stream_flush_ms", "Stream flush interval (ms):", "100");
+    public static final Entry RESPONSE_CACHE_MAX_BYTES = register("openai_response_cache_max_bytes", "Response cache size (bytes):", "8388608");
+    public static final Entry RESPONSE_CACHE_TTL_SECONDS = register("openai_response_cache_ttl_s", "Response cache ttl (s):", "1800");
+    public static final Entry DISK_CACHE_MAX_BYTES = register("openai_disk_cache_max_bytes", "Disk cache size (bytes, 0 disables):", "67108864");
+    public static final Entry CONTEXT_TOKEN_BUDGET = register("openai_context_token_budget", "Context budget (tokens):", "1500");
+    public static final Entry DIFF_TIMEOUT_MS = register("openai_diff_timeout_ms", "Diff time limit (ms, 0 unlimited):", "1000");
+    public static final Entry DIFF_ALGORITHM = register("openai_diff_algorithm", "Line diff (myers/patience/histogram):", "histogram");
+    public static final Entry SIMILARITY_CACHE = register("openai_similarity_cache", "Serve similar prompts from cache (true/false):", "false");
+    public static final Entry SIMILARITY_THRESHOLD = register("openai_similarity_threshold", "Similar prompt threshold (0-1):", "0.8");
+    public static final Entry HIGHLIGHT_TIMEOUT_MS = register("openai_highlight_timeout_ms", "Highlight timeout (ms, 0 keeps them):", "30000");
+
+    private static Entry register(String key, String label, String defaultValue) {
+        Entry entry = new Entry(key, label, defaultValue);
+        sEntries.add(entry);
+        return entry;
+    }
+
+    public static List<Entry> getEntries() {
+        return Collections.unmodifiableList(sEntries);
+    }
+
+    public static class Entry {
+        private final String mKey;
+        private final String mLabel;
+        private final String mDefaultValue;
+
+        private Entry(String key, String label, String defaultValue) {
+            mKey = key;
+            mLabel = label;
+            mDefaultValue = defaultValue;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        public String getLabel() {
+            return mLabel;
+        }
+
+        public String getValue() {
+            return PropertiesComponent.getInstance().getValue(mKey, mDefaultValue);
+        }
+
+        public void setValue(String value) {
+            PropertiesComponent.getInstance().setValue(mKey, value, mDefaultValue);
+        }
+
+        public int getInt() {
+            return (int) getLong();
+        }
+
+        public long getLong() {
+            try {
+                return Long.parseLong(getValue().trim());
+            } catch (NumberFormatException e) {
+                return Long.parseLong(mDefaultValue);
+            }
+        }
+
+        public double getDouble() {
+            try {
+                return Double.parseDouble(getValue().trim());
+            } catch (NumberFormatException e) {
+                return Double.parseDouble(mDefaultValue);
+            }
+        }
+
+        public boolean getBoolean() {
+            return Boolean.parseBoolean(getValue().trim());
+        }
+
+        public <E extends Enum<E>> E getEnum(Class<E> type) {
+            try {
+                return Enum.valueOf(type, getValue().trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return Enum.valueOf(type, mDefaultValue.toUpperCase(Locale.ROOT));
+            }
+        }
+    }
+}
@@ -21,7 +21,10 @@ package name.fraser.neil.plaintext;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.CharBuffer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -50,6 +53,21 @@ public class diff_match_patch {
      * Cost of an empty edit operation in terms of edit characters.
      */
     public short Diff_EditCost = 4;
+    /**
+     * Pool on which the independent segments of large texts are diffed
+     * concurrently (null to diff on the calling thread only).
+     */
+    public ForkJoinPool Diff_Pool = null;
+    /**
+     * Combined length of the texts from which they are split into segments
+     * for Diff_Pool, and below which a segment is diffed as a whole.
+     */
+    public int Diff_ParallelThreshold = 32 * 1024;
+    /**
+     * Algorithm of the line-level diffs, of the checklines speedup and of
+     * diff_changedLines().
+     */
+    public LineAlgorithm Diff_LineAlgorithm = LineAlgorithm.MYERS;
     /**
      * At what point is no match declared (0.0 = perfection, 1.0 = very loose).
      */
@@ -73,9 +91,11 @@ public class diff_match_patch {
     public short Patch_Margin = 4;
 
     /**
-     * The number of bits in an int.
+     * The longest pattern given to the Bitap algorithm, and so the longest
+     * context a patch is anchored on.  Patterns over 64 characters use
+     * several words of state per position.
      */
-    private short Match_MaxBits = 32;
+    public short Match_MaxBits = 128;
 
     /**
      * Internal class for returning results from diff_linesToChars().
@@ -108,6 +128,33 @@ public class diff_match_patch {
         DELETE, INSERT, EQUAL
     }
 
+    /**
+     * Algorithms for diffing line-encoded texts.
+     * MYERS bisects them like any other text.  PATIENCE splits them at the
+     * lines occurring once in both, HISTOGRAM at the longest common run of
+     * their least frequent lines, and both fall back to MYERS for the
+     * segments left without any.  The latter two are usually faster on
+     * source code and keep braces and blank lines out of the alignment.
+     */
+    public enum LineAlgorithm {
+        MYERS, PATIENCE, HISTOGRAM
+    }
+
+    // Operation ordinals, as stored by Diffs.
+    private static final byte OP_DELETE = 0;
+    private static final byte OP_INSERT = 1;
+    private static final byte OP_EQUAL = 2;
+
+    // Common prefixes and suffixes are compared char by char up to this
+    // length, then copied out in blocks of MISMATCH_BLOCK characters and
+    // compared with the vectorized Arrays.mismatch().
+    private static final int MISMATCH_SCALAR = 16;
+    private static final int MISMATCH_BLOCK = 256;
+    // The blocks are reused by every comparison of a thread, parallel diffs
+    // run on several threads at once.
+    private static final ThreadLocal<char[][]> MISMATCH_BLOCKS =
+            ThreadLocal.withInitial(() -> new char[2][MISMATCH_BLOCK]);
+
     /**
      * Find the differences between two texts.
      * Run a faster, slightly less optimal diff.
@@ -132,66 +179,268 @@ public class diff_match_patch {
      */
     public LinkedList<Diff> diff_main(String text1, String text2,
                                       boolean checklines) {
-        // Set a deadline by which time the diff must be complete.
-        long deadline;
-        if (Diff_Timeout <= 0) {
-            deadline = Long.MAX_VALUE;
-        } else {
-            deadline = System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
-        }
-        return diff_main(text1, text2, checklines, deadline);
+        return diff_mainCompact(text1, text2, checklines).toLinkedList();
     }
 
     /**
-     * Find the differences between two texts.  Simplifies the problem by
-     * stripping any common prefix or suffix off the texts before diffing.
+     * Find the differences between two texts without copying any of them.
+     * Same result as diff_main(), as operations and lengths over the texts.
      * @param text1 Old string to be diffed.
      * @param text2 New string to be diffed.
      * @param checklines Speedup flag.  If false, then don't run a
      *     line-level diff first to identify the changed areas.
      *     If true, then run a faster slightly less optimal diff.
-     * @param deadline Time when the diff should be complete by.  Used
-     *     internally for recursive calls.  Users should set DiffTimeout instead.
-     * @return Linked List of Diff objects.
+     * @return Diffs over text1 and text2.
      */
-    private LinkedList<Diff> diff_main(String text1, String text2,
-                                       boolean checklines, long deadline) {
+    public Diffs diff_mainCompact(String text1, String text2,
+                                  boolean checklines) {
         // Check for null inputs.
         if (text1 == null || text2 == null) {
             throw new IllegalArgumentException("Null inputs. (diff_main)");
         }
+        long deadline = diff_deadline();
+        if (Diff_Pool != null
+                && text1.length() + text2.length() >= Diff_ParallelThreshold) {
+            return diff_mainParallel(text1, text2, checklines, deadline);
+        }
+        return diff_main(text1, 0, text1.length(), text2, 0, text2.length(),
+                checklines, deadline);
+    }
 
-        // Check for equality (speedup).
-        LinkedList<Diff> diffs;
-        if (text1.equals(text2)) {
-            diffs = new LinkedList<Diff>();
-            if (text1.length() != 0) {
-                diffs.add(new Diff(Operation.EQUAL, text1));
+    /**
+     * @return Deadline by which time a diff started now must be complete.
+     */
+    private long diff_deadline() {
+        if (Diff_Timeout <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return System.currentTimeMillis() + (long) (Diff_Timeout * 1000);
+    }
+
+    /**
+     * Find the differences between two large texts on Diff_Pool.
+     * Lines which occur exactly once in each text are matched, and the longest
+     * sequence of them in the same order in both (as in patience diff) splits
+     * the texts into segments which are diffed independently.
+     * @param text1 Old string to be diffed.
+     * @param text2 New string to be diffed.
+     * @param checklines Speedup flag.  If false, then don't run a
+     *     line-level diff first to identify the changed areas.
+     *     If true, then run a faster slightly less optimal diff.
+     * @param deadline Time when the diff should be complete by.
+     * @return Diffs over text1 and text2.
+     */
+    private Diffs diff_mainParallel(String text1, String text2,
+                                    boolean checklines, long deadline) {
+        // Trim off common prefix and suffix, they would only be anchors.
+        int commonprefix = diff_commonPrefix(text1, 0, text1.length(),
+                text2, 0, text2.length());
+        int commonsuffix = diff_commonSuffix(text1, commonprefix, text1.length(),
+                text2, commonprefix, text2.length());
+        int end1 = text1.length() - commonsuffix;
+        int end2 = text2.length() - commonsuffix;
+
+        // Lines occurring once in both middle blocks, in the order of text1.
+        LineCodes lines = diff_linesToCodes(text1, commonprefix, end1,
+                text2, commonprefix, end2);
+        int[] count1 = new int[lines.size];
+        int[] count2 = new int[lines.size];
+        int[] last2 = new int[lines.size];
+        for (int code : lines.codes1) {
+            count1[code]++;
+        }
+        for (int i = 0; i < lines.codes2.length; i++) {
+            count2[lines.codes2[i]]++;
+            last2[lines.codes2[i]] = i;
+        }
+        int count = 0;
+        int[] unique1 = new int[Math.min(lines.codes1.length, lines.codes2.length)];
+        int[] unique2 = new int[unique1.length];
+        int[] uniqueLength = new int[unique1.length];
+        for (int i = 0; i < lines.codes1.length; i++) {
+            int code = lines.codes1[i];
+            if (count1[code] == 1 && count2[code] == 1) {
+                unique1[count] = lines.bounds1[i];
+                unique2[count] = lines.bounds2[last2[code]];
+                uniqueLength[count] = lines.bounds1[i + 1] - lines.bounds1[i];
+                count++;
             }
-            return diffs;
         }
 
+        int[] anchors = diff_increasingRun(unique2, count);
+
+        Diffs diffs = new Diffs(text1, text2, 0, 0);
+        diffs.append(OP_EQUAL, commonprefix);
+        diffs.appendAll(Diff_Pool.invoke(new DiffTask(text1, commonprefix, end1,
+                text2, commonprefix, end2, checklines, deadline,
+                anchors, 0, anchors.length, unique1, unique2, uniqueLength)));
+        diffs.append(OP_EQUAL, commonsuffix);
+        diff_cleanupMerge(diffs);
+        return diffs;
+    }
+
+    /**
+     * Longest increasing subsequence, by patience sorting.
+     * @param values Values of which to find the subsequence.
+     * @param count Number of values to consider.
+     * @return Increasing indices of the values of the subsequence.
+     */
+    private static int[] diff_increasingRun(int[] values, int count) {
+        // piles[k] is the index ending the best subsequence of length k + 1.
+        int[] piles = new int[count];
+        int[] previous = new int[count];
+        int pileCount = 0;
+        for (int i = 0; i < count; i++) {
+            int low = 0;
+            int high = pileCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[piles[mid]] < values[i]) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            previous[i] = low == 0 ? -1 : piles[low - 1];
+            piles[low] = i;
+            if (low == pileCount) {
+                pileCount++;
+            }
+        }
+        int[] run = new int[pileCount];
+        int index = pileCount == 0 ? -1 : piles[pileCount - 1];
+        for (int i = pileCount - 1; i >= 0; i--) {
+            run[i] = index;
+            index = previous[index];
+        }
+        return run;
+    }
+
+    /**
+     * @return End of the line starting at start in text, past its newline.
+     */
+    private static int diff_lineEnd(String text, int start, int end) {
+        int lineEnd = text.indexOf('\n', start);
+        return lineEnd == -1 || lineEnd >= end ? end : lineEnd + 1;
+    }
+
+    /**
+     * Diff of a segment of two texts, split at the middle of its anchors
+     * into two segments diffed concurrently while it is large enough.
+     */
+    private class DiffTask extends RecursiveTask<Diffs> {
+        private static final long serialVersionUID = 1L;
+
+        private final String text1;
+        private final int start1;
+        private final int end1;
+        private final String text2;
+        private final int start2;
+        private final int end2;
+        private final boolean checklines;
+        private final long deadline;
+        // Anchors[from, to) are the indices of the unique lines in the segment.
+        private final int[] anchors;
+        private final int from;
+        private final int to;
+        private final int[] unique1;
+        private final int[] unique2;
+        private final int[] uniqueLength;
+
+        DiffTask(String text1, int start1, int end1,
+                 String text2, int start2, int end2,
+                 boolean checklines, long deadline, int[] anchors, int from, int to,
+                 int[] unique1, int[] unique2, int[] uniqueLength) {
+            this.text1 = text1;
+            this.start1 = start1;
+            this.end1 = end1;
+            this.text2 = text2;
+            this.start2 = start2;
+            this.end2 = end2;
+            this.checklines = checklines;
+            this.deadline = deadline;
+            this.anchors = anchors;
+            this.from = from;
+            this.to = to;
+            this.unique1 = unique1;
+            this.unique2 = unique2;
+            this.uniqueLength = uniqueLength;
+        }
+
+        @Override
+        protected Diffs compute() {
+            if (from == to
+                    || end1 - start1 + end2 - start2 < Diff_ParallelThreshold) {
+                return diff_main(text1, start1, end1, text2, start2, end2,
+                        checklines, deadline);
+            }
+            int middle = (from + to) >>> 1;
+            int line = anchors[middle];
+            int lineEnd1 = unique1[line] + uniqueLength[line];
+            int lineEnd2 = unique2[line] + uniqueLength[line];
+            DiffTask before = new DiffTask(text1, start1, unique1[line],
+                    text2, start2, unique2[line], checklines, deadline,
+                    anchors, from, middle, unique1, unique2, uniqueLength);
+            DiffTask after = new DiffTask(text1, lineEnd1, end1,
+                    text2, lineEnd2, end2, checklines, deadline,
+                    anchors, middle + 1, to, unique1, unique2, uniqueLength);
+            before.fork();
+            Diffs diffs = after.compute();
+            Diffs result = before.join();
+            // Either side may end or start with an equality the anchor joins.
+            result.append(OP_EQUAL, uniqueLength[line]);
+            result.appendAll(diffs);
+            return result;
+        }
+    }
+
+    /**
+     * Find the differences between text1[start1, end1) and
+     * text2[start2, end2).  Simplifies the problem by stripping any common
+     * prefix or suffix off the texts before diffing.
+     * @param text1 Old string to be diffed.
+     * @param start1 Start of the range of text1.
+     * @param end1 End of the range of text1.
+     * @param text2 New string to be diffed.
+     * @param start2 Start of the range of text2.
+     * @param end2 End of the range of text2.
+     * @param checklines Speedup flag.  If false, then don't run a
+     *     line-level diff first to identify the changed areas.
+     *     If true, then run a faster slightly less optimal diff.
+     * @param deadline Time when the diff should be complete by.  Used
+     *     internally for recursive calls.  Users should set DiffTimeout instead.
+     * @return Diffs over the two ranges.
+     */
+    private Diffs diff_main(String text1, int start1, int end1,
+                            String text2, int start2, int end2,
+                            boolean checklines, long deadline) {
+        Diffs diffs = new Diffs(text1, text2, start1, start2);
+
         // Trim off common prefix (speedup).
-        int commonlength = diff_commonPrefix(text1, text2);
-        String commonprefix = text1.substring(0, commonlength);
-        text1 = text1.substring(commonlength);
-        text2 = text2.substring(commonlength);
+        int commonprefix = diff_commonPrefix(text1, start1, end1,
+                text2, start2, end2);
 
+        // Check for equality (speedup).
+        int length1 = end1 - start1;
+        if (length1 == end2 - start2 && commonprefix == length1) {
+            if (length1 != 0) {
+                diffs.add(OP_EQUAL, length1);
+            }
+            return diffs;
+        }
         // Trim off common suffix (speedup).
-        commonlength = diff_commonSuffix(text1, text2);
-        String commonsuffix = text1.substring(text1.length() - commonlength);
-        text1 = text1.substring(0, text1.length() - commonlength);
-        text2 = text2.substring(0, text2.length() - commonlength);
+        int commonsuffix = diff_commonSuffix(text1, start1 + commonprefix, end1,
+                text2, start2 + commonprefix, end2);
 
-        // Compute the diff on the middle block.
-        diffs = diff_compute(text1, text2, checklines, deadline);
-
-        // Restore the prefix and suffix.
-        if (commonprefix.length() != 0) {
-            diffs.addFirst(new Diff(Operation.EQUAL, commonprefix));
+        // Compute the diff on the middle block, between the prefix and suffix.
+        if (commonprefix != 0) {
+            diffs.add(OP_EQUAL, commonprefix);
         }
-        if (commonsuffix.length() != 0) {
-            diffs.addLast(new Diff(Operation.EQUAL, commonsuffix));
+        diff_compute(text1, start1 + commonprefix, end1 - commonsuffix,
+                text2, start2 + commonprefix, end2 - commonsuffix,
+                checklines, deadline, diffs);
+        if (commonsuffix != 0) {
+            diffs.add(OP_EQUAL, commonsuffix);
         }
 
         diff_cleanupMerge(diffs);
@@ -199,151 +448,790 @@ public class diff_match_patch {
     }
 
     /**
-     * Find the differences between two texts.  Assumes that the texts do not
-     * have any common prefix or suffix.
+     * Find the differences between text1[start1, end1) and
+     * text2[start2, end2).  Assumes that the ranges do not have any common
+     * prefix or suffix.
      * @param text1 Old string to be diffed.
+     * @param start1 Start of the range of text1.
+     * @param end1 End of the range of text1.
      * @param text2 New string to be diffed.
+     * @param start2 Start of the range of text2.
+     * @param end2 End of the range of text2.
      * @param checklines Speedup flag.  If false, then don't run a
      *     line-level diff first to identify the changed areas.
      *     If true, then run a faster slightly less optimal diff.
      * @param deadline Time when the diff should be complete by.
-     * @return Linked List of Diff objects.
+     * @param diffs Diffs to append the result to.
      */
-    private LinkedList<Diff> diff_compute(String text1, String text2,
-                                          boolean checklines, long deadline) {
-        LinkedList<Diff> diffs = new LinkedList<Diff>();
+    private void diff_compute(String text1, int start1, int end1,
+                              String text2, int start2, int end2,
+                              boolean checklines, long deadline, Diffs diffs) {
+        int length1 = end1 - start1;
+        int length2 = end2 - start2;
 
-        if (text1.length() == 0) {
+        if (length1 == 0) {
             // Just add some text (speedup).
-            diffs.add(new Diff(Operation.INSERT, text2));
-            return diffs;
+            diffs.add(OP_INSERT, length2);
+            return;
         }
 
-        if (text2.length() == 0) {
+        if (length2 == 0) {
             // Just delete some text (speedup).
-            diffs.add(new Diff(Operation.DELETE, text1));
-            return diffs;
+            diffs.add(OP_DELETE, length1);
+            return;
         }
 
-        String longtext = text1.length() > text2.length() ? text1 : text2;
-        String shorttext = text1.length() > text2.length() ? text2 : text1;
-        int i = longtext.indexOf(shorttext);
+        int i;
+        if (length1 > length2) {
+            i = diff_indexOf(text1, start1, end1, text2, start2, end2, 0);
+        } else {
+            i = diff_indexOf(text2, start2, end2, text1, start1, end1, 0);
+        }
         if (i != -1) {
             // Shorter text is inside the longer text (speedup).
-            Operation op = (text1.length() > text2.length()) ?
-                    Operation.DELETE : Operation.INSERT;
-            diffs.add(new Diff(op, longtext.substring(0, i)));
-            diffs.add(new Diff(Operation.EQUAL, shorttext));
-            diffs.add(new Diff(op, longtext.substring(i + shorttext.length())));
-            return diffs;
+            byte op = length1 > length2 ? OP_DELETE : OP_INSERT;
+            int shortLength = Math.min(length1, length2);
+            diffs.add(op, i);
+            diffs.add(OP_EQUAL, shortLength);
+            diffs.add(op, Math.max(length1, length2) - i - shortLength);
+            return;
         }
 
-        if (shorttext.length() == 1) {
+        if (length1 == 1 || length2 == 1) {
             // Single character string.
             // After the previous speedup, the character can't be an equality.
-            diffs.add(new Diff(Operation.DELETE, text1));
-            diffs.add(new Diff(Operation.INSERT, text2));
-            return diffs;
+            diffs.add(OP_DELETE, length1);
+            diffs.add(OP_INSERT, length2);
+            return;
         }
 
         // Check to see if the problem can be split in two.
-        String[] hm = diff_halfMatch(text1, text2);
+        int[] hm = diff_halfMatch(text1, start1, end1, text2, start2, end2);
         if (hm != null) {
-            // A half-match was found, sort out the return data.
-            String text1_a = hm[0];
-            String text1_b = hm[1];
-            String text2_a = hm[2];
-            String text2_b = hm[3];
-            String mid_common = hm[4];
-            // Send both pairs off for separate processing.
-            LinkedList<Diff> diffs_a = diff_main(text1_a, text2_a,
-                    checklines, deadline);
-            LinkedList<Diff> diffs_b = diff_main(text1_b, text2_b,
-                    checklines, deadline);
-            // Merge the results.
-            diffs = diffs_a;
-            diffs.add(new Diff(Operation.EQUAL, mid_common));
-            diffs.addAll(diffs_b);
-            return diffs;
+            // A half-match was found, send both pairs off for separate processing.
+            int common1 = hm[0];
+            int common2 = hm[1];
+            int commonLength = hm[2];
+            diffs.addAll(diff_main(text1, start1, common1, text2, start2, common2,
+                    checklines, deadline));
+            diffs.add(OP_EQUAL, commonLength);
+            diffs.addAll(diff_main(text1, common1 + commonLength, end1,
+                    text2, common2 + commonLength, end2, checklines, deadline));
+            return;
         }
 
-        if (checklines && text1.length() > 100 && text2.length() > 100) {
-            return diff_lineMode(text1, text2, deadline);
+        if (checklines && length1 > 100 && length2 > 100) {
+            diff_lineMode(text1, start1, end1, text2, start2, end2, deadline, diffs);
+            return;
         }
 
-        return diff_bisect(text1, text2, deadline);
+        diff_bisect(text1, start1, end1, text2, start2, end2, deadline, diffs);
     }
 
     /**
-     * Do a quick line-level diff on both strings, then rediff the parts for
+     * Do a quick line-level diff on both ranges, then rediff the parts for
      * greater accuracy.
      * This speedup can produce non-minimal diffs.
      * @param text1 Old string to be diffed.
+     * @param start1 Start of the range of text1.
+     * @param end1 End of the range of text1.
      * @param text2 New string to be diffed.
+     * @param start2 Start of the range of text2.
+     * @param end2 End of the range of text2.
      * @param deadline Time when the diff should be complete by.
-     * @return Linked List of Diff objects.
+     * @param diffs Diffs to append the result to.
      */
-    private LinkedList<Diff> diff_lineMode(String text1, String text2,
-                                           long deadline) {
+    private void diff_lineMode(String text1, int start1, int end1,
+                               String text2, int start2, int end2,
+                               long deadline, Diffs diffs) {
         // Scan the text on a line-by-line basis first.
-        LinesToCharsResult a = diff_linesToChars(text1, text2);
-        text1 = a.chars1;
-        text2 = a.chars2;
-        List<String> linearray = a.lineArray;
-
-        LinkedList<Diff> diffs = diff_main(text1, text2, false, deadline);
-
-        // Convert the diff back to original text.
-        diff_charsToLines(diffs, linearray);
+        LineCodes lines = diff_linesToCodes(text1, start1, end1, text2, start2, end2);
+        Diffs textDiffs = diff_codesToText(lines, diff_lines(lines, deadline),
+                text1, start1, text2, start2);
         // Eliminate freak matches (e.g. blank lines)
-        diff_cleanupSemantic(diffs);
+        diff_cleanupSemantic(textDiffs);
 
         // Rediff any replacement blocks, this time character-by-character.
-        // Add a dummy entry at the end.
-        diffs.add(new Diff(Operation.EQUAL, ""));
+        // A dummy equality at the end flushes the last block.
         int count_delete = 0;
         int count_insert = 0;
-        String text_delete = "";
-        String text_insert = "";
-        ListIterator<Diff> pointer = diffs.listIterator();
-        Diff thisDiff = pointer.next();
-        while (thisDiff != null) {
-            switch (thisDiff.operation) {
-                case INSERT:
+        int length_delete = 0;
+        int length_insert = 0;
+        int blockStart = 0;
+        int pos1 = start1;
+        int pos2 = start2;
+        for (int i = 0; i <= textDiffs.size; i++) {
+            byte op = i < textDiffs.size ? textDiffs.ops[i] : OP_EQUAL;
+            int length = i < textDiffs.size ? textDiffs.lengths[i] : 0;
+            switch (op) {
+                case OP_INSERT:
                     count_insert++;
-                    text_insert += thisDiff.text;
+                    length_insert += length;
+                    pos2 += length;
                     break;
-                case DELETE:
+                case OP_DELETE:
                     count_delete++;
-                    text_delete += thisDiff.text;
+                    length_delete += length;
+                    pos1 += length;
                     break;
-                case EQUAL:
+                case OP_EQUAL:
                     // Upon reaching an equality, check for prior redundancies.
                     if (count_delete >= 1 && count_insert >= 1) {
-                        // Delete the offending records and add the merged ones.
-                        pointer.previous();
-                        for (int j = 0; j < count_delete + count_insert; j++) {
-                            pointer.previous();
-                            pointer.remove();
-                        }
-                        for (Diff subDiff : diff_main(text_delete, text_insert, false,
-                                deadline)) {
-                            pointer.add(subDiff);
-                        }
+                        // Replace the block with its character diff.
+                        diffs.addAll(diff_main(text1, pos1 - length_delete, pos1,
+                                text2, pos2 - length_insert, pos2, false, deadline));
+                    } else {
+                        diffs.addAll(textDiffs, blockStart, i);
+                    }
+                    if (i < textDiffs.size) {
+                        diffs.add(OP_EQUAL, length);
                     }
                     count_insert = 0;
                     count_delete = 0;
-                    text_delete = "";
-                    text_insert = "";
+                    length_delete = 0;
+                    length_insert = 0;
+                    blockStart = i + 1;
+                    pos1 += length;
+                    pos2 += length;
                     break;
             }
-            thisDiff = pointer.hasNext() ? pointer.next() : null;
         }
-        diffs.removeLast();  // Remove the dummy entry at the end.
+    }
+
+    /**
+     * Diff the line codes of two texts with Diff_LineAlgorithm.
+     * @param lines Line codes of the texts.
+     * @param deadline Time when the diff should be complete by.
+     * @return Diffs of the numbers of lines, without texts.
+     */
+    private Diffs diff_lines(LineCodes lines, long deadline) {
+        int[] codes1 = lines.codes1;
+        int[] codes2 = lines.codes2;
+        Diffs diffs = new Diffs(null, null, 0, 0);
+        if (Diff_LineAlgorithm == LineAlgorithm.MYERS) {
+            diff_mainCodes(codes1, 0, codes1.length, codes2, 0, codes2.length,
+                    deadline, diffs);
+            return diffs;
+        }
+        boolean histogram = Diff_LineAlgorithm == LineAlgorithm.HISTOGRAM;
+        // Per code: occurrences in the segment of codes1, then either the
+        // occurrences in codes2 and last index there (patience) or the last
+        // occurrence in codes1 + 1 (histogram).  Cleared after each segment.
+        int[] count1 = new int[lines.size];
+        int[] count2 = new int[lines.size];
+        int[] last = new int[lines.size];
+
+        // Segments still to diff, as {start1, end1, start2, end2}, or
+        // {-1, length, 0, 0} for an equality.  Popped in text order.
+        IntStack segments = new IntStack();
+        diff_pushSegment(segments, 0, codes1.length, 0, codes2.length);
+        while (!segments.isEmpty()) {
+            int end2 = segments.pop();
+            int start2 = segments.pop();
+            int end1 = segments.pop();
+            int start1 = segments.pop();
+            if (start1 == -1) {
+                diffs.append(OP_EQUAL, end1);
+                continue;
+            }
+            int commonprefix = diff_commonPrefix(codes1, start1, end1,
+                    codes2, start2, end2);
+            diffs.append(OP_EQUAL, commonprefix);
+            start1 += commonprefix;
+            start2 += commonprefix;
+            int commonsuffix = diff_commonSuffix(codes1, start1, end1,
+                    codes2, start2, end2);
+            if (commonsuffix != 0) {
+                diff_pushSegment(segments, -1, commonsuffix, 0, 0);
+                end1 -= commonsuffix;
+                end2 -= commonsuffix;
+            }
+            if (start1 == end1 || start2 == end2) {
+                diffs.append(OP_DELETE, end1 - start1);
+                diffs.append(OP_INSERT, end2 - start2);
+                continue;
+            }
+            boolean split = histogram
+                    ? diff_histogramSplit(codes1, start1, end1, codes2, start2, end2,
+                            count1, last, segments)
+                    : diff_patienceSplit(codes1, start1, end1, codes2, start2, end2,
+                            count1, count2, last, segments);
+            if (!split) {
+                diff_mainCodes(codes1, start1, end1, codes2, start2, end2,
+                        deadline, diffs);
+            }
+        }
+        return diffs;
+    }
+
+    private static void diff_pushSegment(IntStack segments,
+                                         int start1, int end1, int start2, int end2) {
+        segments.push(start1);
+        segments.push(end1);
+        segments.push(start2);
+        segments.push(end2);
+    }
+
+    /**
+     * Split a segment of two line-coded texts at the lines occurring once
+     * in both, in the longest run of them in the same order.
+     * @return True if the segment was split and its parts pushed, false if it
+     *     has no such line.
+     */
+    private static boolean diff_patienceSplit(int[] codes1, int start1, int end1,
+                                              int[] codes2, int start2, int end2,
+                                              int[] count1, int[] count2, int[] last,
+                                              IntStack segments) {
+        for (int i = start1; i < end1; i++) {
+            count1[codes1[i]]++;
+        }
+        for (int i = start2; i < end2; i++) {
+            count2[codes2[i]]++;
+            last[codes2[i]] = i;
+        }
+        int count = 0;
+        int[] unique1 = new int[Math.min(end1 - start1, end2 - start2)];
+        int[] unique2 = new int[unique1.length];
+        for (int i = start1; i < end1; i++) {
+            int code = codes1[i];
+            if (count1[code] == 1 && count2[code] == 1) {
+                unique1[count] = i;
+                unique2[count] = last[code];
+                count++;
+            }
+        }
+        for (int i = start1; i < end1; i++) {
+            count1[codes1[i]] = 0;
+        }
+        for (int i = start2; i < end2; i++) {
+            count2[codes2[i]] = 0;
+        }
+        if (count == 0) {
+            return false;
+        }
+
+        // Push the parts last first, so they pop in order.
+        int[] anchors = diff_increasingRun(unique2, count);
+        int next1 = end1;
+        int next2 = end2;
+        for (int i = anchors.length - 1; i >= 0; i--) {
+            int anchor1 = unique1[anchors[i]];
+            int anchor2 = unique2[anchors[i]];
+            diff_pushSegment(segments, anchor1 + 1, next1, anchor2 + 1, next2);
+            diff_pushSegment(segments, -1, 1, 0, 0);
+            next1 = anchor1;
+            next2 = anchor2;
+        }
+        diff_pushSegment(segments, start1, next1, start2, next2);
+        return true;
+    }
+
+    /**
+     * Split a segment of two line-coded texts around the common run of
+     * lines whose rarest line is the least frequent in codes1, the longest
+     * such run on a tie.  Lines occurring over 64 times are not considered.
+     * @return True if the segment was split and its parts pushed, false if
+     *     there is no such run.
+     */
+    private static boolean diff_histogramSplit(int[] codes1, int start1, int end1,
+                                               int[] codes2, int start2, int end2,
+                                               int[] count1, int[] last,
+                                               IntStack segments) {
+        // Chains of the occurrences of each line in codes1, as index + 1.
+        int[] previous = new int[end1 - start1];
+        for (int i = start1; i < end1; i++) {
+            int code = codes1[i];
+            count1[code]++;
+            previous[i - start1] = last[code];
+            last[code] = i + 1;
+        }
+
+        int maxCount = 64;
+        int bestCount = maxCount + 1;
+        int bestLength = 0;
+        int best1 = 0;
+        int best2 = 0;
+        for (int j = start2; j < end2; ) {
+            int code = codes2[j];
+            int next = j + 1;
+            if (count1[code] != 0 && count1[code] <= bestCount) {
+                for (int occurrence = last[code]; occurrence != 0;
+                        occurrence = previous[occurrence - 1 - start1]) {
+                    // Grow the common run around both occurrences.
+                    int runStart1 = occurrence - 1;
+                    int runStart2 = j;
+                    while (runStart1 > start1 && runStart2 > start2
+                            && codes1[runStart1 - 1] == codes2[runStart2 - 1]) {
+                        runStart1--;
+                        runStart2--;
+                    }
+                    int runEnd1 = occurrence;
+                    int runEnd2 = j + 1;
+                    int runCount = count1[code];
+                    while (runEnd1 < end1 && runEnd2 < end2
+                            && codes1[runEnd1] == codes2[runEnd2]) {
+                        runEnd1++;
+                        runEnd2++;
+                    }
+                    for (int i = runStart1; i < runEnd1; i++) {
+                        runCount = Math.min(runCount, count1[codes1[i]]);
+                    }
+                    int runLength = runEnd1 - runStart1;
+                    if (runCount < bestCount
+                            || (runCount == bestCount && runLength > bestLength)) {
+                        bestCount = runCount;
+                        bestLength = runLength;
+                        best1 = runStart1;
+                        best2 = runStart2;
+                    }
+                    next = Math.max(next, runEnd2);
+                }
+            }
+            j = next;
+        }
+        for (int i = start1; i < end1; i++) {
+            count1[codes1[i]] = 0;
+            last[codes1[i]] = 0;
+        }
+        if (bestLength == 0) {
+            return false;
+        }
+
+        // Push the parts last first, so they pop in order.
+        diff_pushSegment(segments, best1 + bestLength, end1, best2 + bestLength, end2);
+        diff_pushSegment(segments, -1, bestLength, 0, 0);
+        diff_pushSegment(segments, start1, best1, start2, best2);
+        return true;
+    }
+
+    /**
+     * Myers diff of two ranges of line codes, see diff_main() and
+     * diff_bisect() for the same over text.
+     * @param codes1 Old line codes to be diffed.
+     * @param start1 Start of the range of codes1.
+     * @param end1 End of the range of codes1.
+     * @param codes2 New line codes to be diffed.
+     * @param start2 Start of the range of codes2.
+     * @param end2 End of the range of codes2.
+     * @param deadline Time at which to bail if not yet complete.
+     * @param diffs Diffs to append the result to.
+     */
+    private void diff_mainCodes(int[] codes1, int start1, int end1,
+                                int[] codes2, int start2, int end2,
+                                long deadline, Diffs diffs) {
+        int commonprefix = diff_commonPrefix(codes1, start1, end1,
+                codes2, start2, end2);
+        start1 += commonprefix;
+        start2 += commonprefix;
+        int commonsuffix = diff_commonSuffix(codes1, start1, end1,
+                codes2, start2, end2);
+        end1 -= commonsuffix;
+        end2 -= commonsuffix;
+
+        diffs.append(OP_EQUAL, commonprefix);
+        if (start1 == end1 || start2 == end2) {
+            diffs.append(OP_DELETE, end1 - start1);
+            diffs.append(OP_INSERT, end2 - start2);
+        } else if (end1 - start1 == 1 || end2 - start2 == 1) {
+            // A single line is either within the other range or replaced.
+            boolean single1 = end1 - start1 == 1;
+            int code = single1 ? codes1[start1] : codes2[start2];
+            int[] codes = single1 ? codes2 : codes1;
+            int start = single1 ? start2 : start1;
+            int end = single1 ? end2 : end1;
+            byte op = single1 ? OP_INSERT : OP_DELETE;
+            int i = start;
+            while (i < end && codes[i] != code) {
+                i++;
+            }
+            if (i == end) {
+                diffs.append(OP_DELETE, end1 - start1);
+                diffs.append(OP_INSERT, end2 - start2);
+            } else {
+                diffs.append(op, i - start);
+                diffs.append(OP_EQUAL, 1);
+                diffs.append(op, end - i - 1);
+            }
+        } else {
+            diff_bisectCodes(codes1, start1, end1, codes2, start2, end2,
+                    deadline, diffs);
+        }
+        diffs.append(OP_EQUAL, commonsuffix);
+    }
+
+    /**
+     * Find the 'middle snake' of a diff between two ranges of line codes,
+     * split the problem in two and append the recursively constructed diff.
+     * @param codes1 Old line codes to be diffed.
+     * @param start1 Start of the range of codes1.
+     * @param end1 End of the range of codes1.
+     * @param codes2 New line codes to be diffed.
+     * @param start2 Start of the range of codes2.
+     * @param end2 End of the range of codes2.
+     * @param deadline Time at which to bail if not yet complete.
+     * @param diffs Diffs to append the result to.
+     */
+    private void diff_bisectCodes(int[] codes1, int start1, int end1,
+                                  int[] codes2, int start2, int end2,
+                                  long deadline, Diffs diffs) {
+        int length1 = end1 - start1;
+        int length2 = end2 - start2;
+        int max_d = (length1 + length2 + 1) / 2;
+        int v_offset = max_d;
+        int v_length = 2 * max_d;
+        int[] v1 = new int[v_length];
+        int[] v2 = new int[v_length];
+        Arrays.fill(v1, -1);
+        Arrays.fill(v2, -1);
+        v1[v_offset + 1] = 0;
+        v2[v_offset + 1] = 0;
+        int delta = length1 - length2;
+        // If the total number of lines is odd, then the front path will
+        // collide with the reverse path.
+        boolean front = (delta % 2 != 0);
+        // Offsets for start and end of k loop.
+        // Prevents mapping of space beyond the grid.
+        int k1start = 0;
+        int k1end = 0;
+        int k2start = 0;
+        int k2end = 0;
+        for (int d = 0; d < max_d; d++) {
+            // Bail out if deadline is reached.
+            if (System.currentTimeMillis() > deadline) {
+                break;
+            }
+
+            // Walk the front path one step.
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1_offset = v_offset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && v1[k1_offset - 1] < v1[k1_offset + 1])) {
+                    x1 = v1[k1_offset + 1];
+                } else {
+                    x1 = v1[k1_offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < length1 && y1 < length2
+                        && codes1[start1 + x1] == codes2[start2 + y1]) {
+                    x1++;
+                    y1++;
+                }
+                v1[k1_offset] = x1;
+                if (x1 > length1) {
+                    // Ran off the right of the graph.
+                    k1end += 2;
+                } else if (y1 > length2) {
+                    // Ran off the bottom of the graph.
+                    k1start += 2;
+                } else if (front) {
+                    int k2_offset = v_offset + delta - k1;
+                    if (k2_offset >= 0 && k2_offset < v_length && v2[k2_offset] != -1) {
+                        // Mirror x2 onto top-left coordinate system.
+                        int x2 = length1 - v2[k2_offset];
+                        if (x1 >= x2) {
+                            // Overlap detected.
+                            diff_mainCodes(codes1, start1, start1 + x1,
+                                    codes2, start2, start2 + y1, deadline, diffs);
+                            diff_mainCodes(codes1, start1 + x1, end1,
+                                    codes2, start2 + y1, end2, deadline, diffs);
+                            return;
+                        }
+                    }
+                }
+            }
+
+            // Walk the reverse path one step.
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2_offset = v_offset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && v2[k2_offset - 1] < v2[k2_offset + 1])) {
+                    x2 = v2[k2_offset + 1];
+                } else {
+                    x2 = v2[k2_offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < length1 && y2 < length2
+                        && codes1[end1 - x2 - 1] == codes2[end2 - y2 - 1]) {
+                    x2++;
+                    y2++;
+                }
+                v2[k2_offset] = x2;
+                if (x2 > length1) {
+                    // Ran off the left of the graph.
+                    k2end += 2;
+                } else if (y2 > length2) {
+                    // Ran off the top of the graph.
+                    k2start += 2;
+                } else if (!front) {
+                    int k1_offset = v_offset + delta - k2;
+                    if (k1_offset >= 0 && k1_offset < v_length && v1[k1_offset] != -1) {
+                        int x1 = v1[k1_offset];
+                        int y1 = v_offset + x1 - k1_offset;
+                        // Mirror x2 onto top-left coordinate system.
+                        x2 = length1 - x2;
+                        if (x1 >= x2) {
+                            // Overlap detected.
+                            diff_mainCodes(codes1, start1, start1 + x1,
+                                    codes2, start2, start2 + y1, deadline, diffs);
+                            diff_mainCodes(codes1, start1 + x1, end1,
+                                    codes2, start2 + y1, end2, deadline, diffs);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+        // Diff took too long and hit the deadline or
+        // number of diffs equals number of lines, no commonality at all.
+        diffs.append(OP_DELETE, length1);
+        diffs.append(OP_INSERT, length2);
+    }
+
+    /**
+     * @return The number of leading codes common to both ranges.
+     */
+    private static int diff_commonPrefix(int[] codes1, int start1, int end1,
+                                         int[] codes2, int start2, int end2) {
+        int mismatch = Arrays.mismatch(codes1, start1, end1, codes2, start2, end2);
+        return mismatch == -1 ? end1 - start1 : mismatch;
+    }
+
+    /**
+     * @return The number of trailing codes common to both ranges.
+     */
+    private static int diff_commonSuffix(int[] codes1, int start1, int end1,
+                                         int[] codes2, int start2, int end2) {
+        int n = Math.min(end1 - start1, end2 - start2);
+        // Block by block from the end, each block compared in bulk.
+        for (int i = 0; i < n; i += MISMATCH_BLOCK) {
+            int length = Math.min(MISMATCH_BLOCK, n - i);
+            if (!Arrays.equals(codes1, end1 - i - length, end1 - i,
+                    codes2, end2 - i - length, end2 - i)) {
+                // The last mismatch of the block.
+                int j = 1;
+                while (codes1[end1 - i - j] == codes2[end2 - i - j]) {
+                    j++;
+                }
+                return i + j - 1;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Convert a diff of line or token codes back to lengths in the texts.
+     * @param lines Codes and bounds of the texts.
+     * @param codeDiffs Diffs of the numbers of codes.
+     * @param text1 Old string.
+     * @param start1 Start of the coded range of text1.
+     * @param text2 New string.
+     * @param start2 Start of the coded range of text2.
+     * @return Diffs over text1 and text2.
+     */
+    private static Diffs diff_codesToText(LineCodes lines, Diffs codeDiffs,
+                                          String text1, int start1,
+                                          String text2, int start2) {
+        Diffs diffs = new Diffs(text1, text2, start1, start2, codeDiffs.size);
+        int line1 = 0;
+        int line2 = 0;
+        for (int i = 0; i < codeDiffs.size; i++) {
+            byte op = codeDiffs.ops[i];
+            int count = codeDiffs.lengths[i];
+            if (op == OP_INSERT) {
+                diffs.add(op, lines.bounds2[line2 + count] - lines.bounds2[line2]);
+            } else {
+                diffs.add(op, lines.bounds1[line1 + count] - lines.bounds1[line1]);
+            }
+            if (op != OP_INSERT) {
+                line1 += count;
+            }
+            if (op != OP_DELETE) {
+                line2 += count;
+            }
+        }
+        return diffs;
+    }
 
+    /**
+     * Find the differences between two texts split into tokens, comparing
+     * whole tokens only, e.g. as split by a lexer.  Tokens are coded like
+     * lines, the runs of tokens up to a line break are diffed first with
+     * Diff_LineAlgorithm, then the tokens of each replaced run.  So the cost
+     * is that of diffs over line and token counts, and every diff starts and
+     * ends on a token boundary.
+     * @param text1 Old string to be diffed.
+     * @param tokenEnds1 End offsets of the consecutive tokens of text1, the
+     *     last one being the length of text1.
+     * @param text2 New string to be diffed.
+     * @param tokenEnds2 End offsets of the consecutive tokens of text2, the
+     *     last one being the length of text2.
+     * @return Diffs over text1 and text2.
+     */
+    public Diffs diff_mainTokens(String text1, int[] tokenEnds1,
+                                 String text2, int[] tokenEnds2) {
+        // Check for null inputs.
+        if (text1 == null || text2 == null || tokenEnds1 == null || tokenEnds2 == null) {
+            throw new IllegalArgumentException("Null inputs. (diff_mainTokens)");
+        }
+        long deadline = diff_deadline();
+        int[] tokenBounds1 = new int[tokenEnds1.length + 1];
+        int[] tokenBounds2 = new int[tokenEnds2.length + 1];
+        System.arraycopy(tokenEnds1, 0, tokenBounds1, 1, tokenEnds1.length);
+        System.arraycopy(tokenEnds2, 0, tokenBounds2, 1, tokenEnds2.length);
+        // Token index at the start of each run, then past the last one.
+        int[] runTokens1 = diff_tokenRuns(text1, tokenBounds1);
+        int[] runTokens2 = diff_tokenRuns(text2, tokenBounds2);
+        int[] runBounds1 = new int[runTokens1.length];
+        int[] runBounds2 = new int[runTokens2.length];
+        for (int i = 0; i < runTokens1.length; i++) {
+            runBounds1[i] = tokenBounds1[runTokens1[i]];
+        }
+        for (int i = 0; i < runTokens2.length; i++) {
+            runBounds2[i] = tokenBounds2[runTokens2[i]];
+        }
+        LineCodes runs = diff_boundsToCodes(text1, runBounds1, 0, runBounds1.length - 1,
+                text2, runBounds2, 0, runBounds2.length - 1);
+        Diffs runDiffs = diff_lines(runs, deadline);
+
+        // Rediff the tokens of any replacement block.
+        // A dummy equality at the end flushes the last block.
+        Diffs diffs = new Diffs(text1, text2, 0, 0, runDiffs.size);
+        int run1 = 0;
+        int run2 = 0;
+        int blockStart1 = 0;
+        int blockStart2 = 0;
+        for (int i = 0; i <= runDiffs.size; i++) {
+            byte op = i < runDiffs.size ? runDiffs.ops[i] : OP_EQUAL;
+            int count = i < runDiffs.size ? runDiffs.lengths[i] : 0;
+            if (op == OP_DELETE) {
+                run1 += count;
+                continue;
+            }
+            if (op == OP_INSERT) {
+                run2 += count;
+                continue;
+            }
+            if (run1 > blockStart1 && run2 > blockStart2) {
+                LineCodes tokens = diff_boundsToCodes(
+                        text1, tokenBounds1, runTokens1[blockStart1], runTokens1[run1],
+                        text2, tokenBounds2, runTokens2[blockStart2], runTokens2[run2]);
+                Diffs tokenDiffs = diff_codesToText(tokens, diff_lines(tokens, deadline),
+                        text1, runBounds1[blockStart1], text2, runBounds2[blockStart2]);
+                for (int j = 0; j < tokenDiffs.size; j++) {
+                    diffs.append(tokenDiffs.ops[j], tokenDiffs.lengths[j]);
+                }
+            } else {
+                diffs.append(OP_DELETE, runBounds1[run1] - runBounds1[blockStart1]);
+                diffs.append(OP_INSERT, runBounds2[run2] - runBounds2[blockStart2]);
+            }
+            diffs.append(OP_EQUAL, runBounds1[run1 + count] - runBounds1[run1]);
+            run1 += count;
+            run2 += count;
+            blockStart1 = run1;
+            blockStart2 = run2;
+        }
         return diffs;
     }
 
+    /**
+     * Group tokens into runs, each ending with a token holding a line break
+     * or with the last token.
+     * @param text String split into tokens.
+     * @param tokenBounds Token i spans [tokenBounds[i], tokenBounds[i + 1]).
+     * @return Index of the first token of each run, then the token count.
+     */
+    private static int[] diff_tokenRuns(String text, int[] tokenBounds) {
+        int tokenCount = tokenBounds.length - 1;
+        int[] runTokens = new int[16];
+        int runs = 0;
+        if (tokenCount > 0) {
+            runTokens[runs++] = 0;
+        }
+        // First line break at or after the current token.
+        int newline = -1;
+        for (int i = 0; i < tokenCount - 1; i++) {
+            if (newline < tokenBounds[i]) {
+                newline = text.indexOf('\n', tokenBounds[i]);
+                if (newline == -1) {
+                    newline = Integer.MAX_VALUE;
+                }
+            }
+            if (newline < tokenBounds[i + 1]) {
+                if (runs + 1 == runTokens.length) {
+                    runTokens = Arrays.copyOf(runTokens, runTokens.length * 2);
+                }
+                runTokens[runs++] = i + 1;
+            }
+        }
+        runTokens[runs++] = tokenCount;
+        return Arrays.copyOf(runTokens, runs);
+    }
+
+    /**
+     * Code the ranges between consecutive bounds, like diff_linesToCodes().
+     * @param text1 First string.
+     * @param bounds1 Range i of text1 spans [bounds1[i], bounds1[i + 1]).
+     * @param from1 First range of text1 to code.
+     * @param to1 End of the ranges of text1 to code.
+     * @param text2 Second string.
+     * @param bounds2 Range i of text2 spans [bounds2[i], bounds2[i + 1]).
+     * @param from2 First range of text2 to code.
+     * @param to2 End of the ranges of text2 to code.
+     * @return The codes and bounds of both sets of ranges.
+     */
+    private static LineCodes diff_boundsToCodes(String text1, int[] bounds1, int from1, int to1,
+                                                String text2, int[] bounds2, int from2, int to2) {
+        LineHash hash = new LineHash();
+        int[] codes1 = new int[to1 - from1];
+        int[] codes2 = new int[to2 - from2];
+        for (int i = 0; i < codes1.length; i++) {
+            codes1[i] = hash.code(text1, bounds1[from1 + i], bounds1[from1 + i + 1]);
+        }
+        for (int i = 0; i < codes2.length; i++) {
+            codes2[i] = hash.code(text2, bounds2[from2 + i], bounds2[from2 + i + 1]);
+        }
+        return new LineCodes(codes1, codes2, Arrays.copyOfRange(bounds1, from1, to1 + 1),
+                Arrays.copyOfRange(bounds2, from2, to2 + 1), hash.size);
+    }
+
+    /**
+     * Find the lines of text2 which differ from text1, comparing whole lines
+     * only.  The line-encoded texts are diffed without ever converting back
+     * to text, so the cost is that of a diff over the line counts.
+     * A deletion marks the line of text2 right after it.
+     * @param text1 Old string to be diffed.
+     * @param text2 New string to be diffed.
+     * @return Set of the changed line numbers of text2.
+     */
+    public BitSet diff_changedLines(String text1, String text2) {
+        LineCodes lines = diff_linesToCodes(text1, 0, text1.length(),
+                text2, 0, text2.length());
+        Diffs diffs = diff_lines(lines, diff_deadline());
+
+        BitSet changedLines = new BitSet();
+        int lastLine = lines.codes2.length - 1;
+        int line = 0;
+        for (int i = 0; i < diffs.size; i++) {
+            // Lengths are numbers of lines.
+            int count = diffs.lengths[i];
+            switch (diffs.ops[i]) {
+                case OP_INSERT:
+                    changedLines.set(line, line + count);
+                    line += count;
+                    break;
+                case OP_DELETE:
+                    if (lastLine >= 0) {
+                        changedLines.set(Math.min(line, lastLine));
+                    }
+                    break;
+                case OP_EQUAL:
+                    line += count;
+                    break;
+            }
+        }
+        return changedLines;
+    }
+
     /**
      * Find the 'middle snake' of a diff, split the problem in two
      * and return the recursively constructed diff.
@@ -355,9 +1243,31 @@ public class diff_match_patch {
      */
     protected LinkedList<Diff> diff_bisect(String text1, String text2,
                                            long deadline) {
+        Diffs diffs = new Diffs(text1, text2, 0, 0);
+        diff_bisect(text1, 0, text1.length(), text2, 0, text2.length(),
+                deadline, diffs);
+        return diffs.toLinkedList();
+    }
+
+    /**
+     * Find the 'middle snake' of a diff between text1[start1, end1) and
+     * text2[start2, end2), split the problem in two and append the
+     * recursively constructed diff.
+     * @param text1 Old string to be diffed.
+     * @param start1 Start of the range of text1.
+     * @param end1 End of the range of text1.
+     * @param text2 New string to be diffed.
+     * @param start2 Start of the range of text2.
+     * @param end2 End of the range of text2.
+     * @param deadline Time at which to bail if not yet complete.
+     * @param diffs Diffs to append the result to.
+     */
+    private void diff_bisect(String text1, int start1, int end1,
+                             String text2, int start2, int end2,
+                             long deadline, Diffs diffs) {
         // Cache the text lengths to prevent multiple calls.
-        int text1_length = text1.length();
-        int text2_length = text2.length();
+        int text1_length = end1 - start1;
+        int text2_length = end2 - start2;
         int max_d = (text1_length + text2_length + 1) / 2;
         int v_offset = max_d;
         int v_length = 2 * max_d;
@@ -396,7 +1306,7 @@ public class diff_match_patch {
                 }
                 int y1 = x1 - k1;
                 while (x1 < text1_length && y1 < text2_length
-                        && text1.charAt(x1) == text2.charAt(y1)) {
+                        && text1.charAt(start1 + x1) == text2.charAt(start2 + y1)) {
                     x1++;
                     y1++;
                 }
@@ -414,7 +1324,9 @@ public class diff_match_patch {
                         int x2 = text1_length - v2[k2_offset];
                         if (x1 >= x2) {
                             // Overlap detected.
-                            return diff_bisectSplit(text1, text2, x1, y1, deadline);
+                            diff_bisectSplit(text1, start1, end1, text2, start2, end2,
+                                    x1, y1, deadline, diffs);
+                            return;
                         }
                     }
                 }
@@ -431,8 +1343,8 @@ public class diff_match_patch {
                 }
                 int y2 = x2 - k2;
                 while (x2 < text1_length && y2 < text2_length
-                        && text1.charAt(text1_length - x2 - 1)
-                        == text2.charAt(text2_length - y2 - 1)) {
+                        && text1.charAt(end1 - x2 - 1)
+                        == text2.charAt(end2 - y2 - 1)) {
                     x2++;
                     y2++;
                 }
@@ -452,7 +1364,9 @@ public class diff_match_patch {
                         x2 = text1_length - x2;
                         if (x1 >= x2) {
                             // Overlap detected.
-                            return diff_bisectSplit(text1, text2, x1, y1, deadline);
+                            diff_bisectSplit(text1, start1, end1, text2, start2, end2,
+                                    x1, y1, deadline, diffs);
+                            return;
                         }
                     }
                 }
@@ -460,35 +1374,168 @@ public class diff_match_patch {
         }
         // Diff took too long and hit the deadline or
         // number of diffs equals number of characters, no commonality at all.
-        LinkedList<Diff> diffs = new LinkedList<Diff>();
-        diffs.add(new Diff(Operation.DELETE, text1));
-        diffs.add(new Diff(Operation.INSERT, text2));
-        return diffs;
+        diffs.add(OP_DELETE, text1_length);
+        diffs.add(OP_INSERT, text2_length);
     }
 
     /**
      * Given the location of the 'middle snake', split the diff in two parts
      * and recurse.
      * @param text1 Old string to be diffed.
+     * @param start1 Start of the range of text1.
+     * @param end1 End of the range of text1.
      * @param text2 New string to be diffed.
-     * @param x Index of split point in text1.
-     * @param y Index of split point in text2.
+     * @param start2 Start of the range of text2.
+     * @param end2 End of the range of text2.
+     * @param x Index of split point in the range of text1.
+     * @param y Index of split point in the range of text2.
      * @param deadline Time at which to bail if not yet complete.
-     * @return LinkedList of Diff objects.
+     * @param diffs Diffs to append the result to.
      */
-    private LinkedList<Diff> diff_bisectSplit(String text1, String text2,
-                                              int x, int y, long deadline) {
-        String text1a = text1.substring(0, x);
-        String text2a = text2.substring(0, y);
-        String text1b = text1.substring(x);
-        String text2b = text2.substring(y);
-
+    private void diff_bisectSplit(String text1, int start1, int end1,
+                                  String text2, int start2, int end2,
+                                  int x, int y, long deadline, Diffs diffs) {
         // Compute both diffs serially.
-        LinkedList<Diff> diffs = diff_main(text1a, text2a, false, deadline);
-        LinkedList<Diff> diffsb = diff_main(text1b, text2b, false, deadline);
+        diffs.addAll(diff_main(text1, start1, start1 + x, text2, start2, start2 + y,
+                false, deadline));
+        diffs.addAll(diff_main(text1, start1 + x, end1, text2, start2 + y, end2,
+                false, deadline));
+    }
 
-        diffs.addAll(diffsb);
-        return diffs;
+    /**
+     * Split two ranges of text into lines, each coded by an int unique to its
+     * content.  Unlike diff_linesToChars(), the number of distinct lines is
+     * not limited and no line is copied.
+     * @param text1 First string.
+     * @param start1 Start of the range of text1.
+     * @param end1 End of the range of text1.
+     * @param text2 Second string.
+     * @param start2 Start of the range of text2.
+     * @param end2 End of the range of text2.
+     * @return The line codes and bounds of both ranges.
+     */
+    private static LineCodes diff_linesToCodes(String text1, int start1, int end1,
+                                               String text2, int start2, int end2) {
+        LineHash lineHash = new LineHash();
+        int lines1 = diff_lineCount(text1, start1, end1);
+        int lines2 = diff_lineCount(text2, start2, end2);
+        int[] codes1 = new int[lines1];
+        int[] codes2 = new int[lines2];
+        int[] bounds1 = new int[lines1 + 1];
+        int[] bounds2 = new int[lines2 + 1];
+        diff_linesToCodesMunge(text1, start1, end1, lineHash, codes1, bounds1);
+        diff_linesToCodesMunge(text2, start2, end2, lineHash, codes2, bounds2);
+        return new LineCodes(codes1, codes2, bounds1, bounds2, lineHash.size);
+    }
+
+    private static int diff_lineCount(String text, int start, int end) {
+        int count = 0;
+        for (int lineStart = start; lineStart < end; count++) {
+            lineStart = diff_lineEnd(text, lineStart, end);
+        }
+        return count;
+    }
+
+    private static void diff_linesToCodesMunge(String text, int start, int end,
+                                               LineHash lineHash,
+                                               int[] codes, int[] bounds) {
+        int line = 0;
+        bounds[0] = start;
+        for (int lineStart = start; lineStart < end; line++) {
+            int lineEnd = diff_lineEnd(text, lineStart, end);
+            codes[line] = lineHash.code(text, lineStart, lineEnd);
+            bounds[line + 1] = lineEnd;
+            lineStart = lineEnd;
+        }
+    }
+
+    /**
+     * Lines of two ranges of text, as returned by diff_linesToCodes(), or
+     * tokens coded the same way.
+     */
+    private static class LineCodes {
+        // Codes of the lines of each range, in order.
+        final int[] codes1;
+        final int[] codes2;
+        // Line i of a range spans [bounds[i], bounds[i + 1]) of its text.
+        final int[] bounds1;
+        final int[] bounds2;
+        // Number of distinct lines, all codes are below it.
+        final int size;
+
+        LineCodes(int[] codes1, int[] codes2, int[] bounds1, int[] bounds2, int size) {
+            this.codes1 = codes1;
+            this.codes2 = codes2;
+            this.bounds1 = bounds1;
+            this.bounds2 = bounds2;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Open addressing hash from line (or token) contents to consecutive
+     * codes.  A line is kept as the text and range of its first occurrence.
+     */
+    private static class LineHash {
+        // Code + 1 of the line in each slot, 0 when empty.
+        private int[] slots = new int[1024];
+        private int[] hashes = new int[512];
+        private String[] texts = new String[512];
+        private int[] starts = new int[512];
+        private int[] lengths = new int[512];
+        int size;
+
+        /**
+         * @return Code of text[start, end), a new one if not seen before.
+         */
+        int code(String text, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + text.charAt(i);
+            }
+            int length = end - start;
+            int mask = slots.length - 1;
+            int slot = slot(hash, mask);
+            while (slots[slot] != 0) {
+                int code = slots[slot] - 1;
+                if (hashes[code] == hash && lengths[code] == length
+                        && text.regionMatches(start, texts[code], starts[code], length)) {
+                    return code;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+                texts = Arrays.copyOf(texts, size * 2);
+                starts = Arrays.copyOf(starts, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            hashes[size] = hash;
+            texts[size] = text;
+            starts[size] = start;
+            lengths[size] = length;
+            slots[slot] = ++size;
+            if (size * 2 > slots.length) {
+                // Keep the table at most half full.
+                int[] grown = new int[slots.length * 2];
+                mask = grown.length - 1;
+                for (int code = 0; code < size; code++) {
+                    slot = slot(hashes[code], mask);
+                    while (grown[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    grown[slot] = code + 1;
+                }
+                slots = grown;
+            }
+            return size - 1;
+        }
+
+        private static int slot(int hash, int mask) {
+            int mixed = hash * 0x9E3779B1;
+            return (mixed ^ (mixed >>> 16)) & mask;
+        }
     }
 
     /**
@@ -527,17 +1574,35 @@ public class diff_match_patch {
      */
     private String diff_linesToCharsMunge(String text, List<String> lineArray,
                                           Map<String, Integer> lineHash, int maxLines) {
-        int lineStart = 0;
-        int lineEnd = -1;
+        return diff_linesToCharsMunge(text, 0, text.length(), lineArray, lineHash,
+                maxLines);
+    }
+
+    /**
+     * Split text[start, end) into a list of strings.  Reduce the range to a
+     * string of hashes where each Unicode character represents one line.
+     * @param text String to encode.
+     * @param start Start of the range to encode.
+     * @param end End of the range to encode.
+     * @param lineArray List of unique strings.
+     * @param lineHash Map of strings to indices.
+     * @param maxLines Maximum length of lineArray.
+     * @return Encoded string.
+     */
+    private String diff_linesToCharsMunge(String text, int start, int end,
+                                          List<String> lineArray,
+                                          Map<String, Integer> lineHash, int maxLines) {
+        int lineStart = start;
+        int lineEnd = start - 1;
         String line;
         StringBuilder chars = new StringBuilder();
         // Walk the text, pulling out a substring for each line.
         // text.split('\n') would would temporarily double our memory footprint.
         // Modifying text would create many large strings to garbage collect.
-        while (lineEnd < text.length() - 1) {
+        while (lineEnd < end - 1) {
             lineEnd = text.indexOf('\n', lineStart);
-            if (lineEnd == -1) {
-                lineEnd = text.length() - 1;
+            if (lineEnd == -1 || lineEnd >= end) {
+                lineEnd = end - 1;
             }
             line = text.substring(lineStart, lineEnd + 1);
 
@@ -547,8 +1612,8 @@ public class diff_match_patch {
                 if (lineArray.size() == maxLines) {
                     // Bail out at 65535 because
                     // String.valueOf((char) 65536).equals(String.valueOf(((char) 0)))
-                    line = text.substring(lineStart);
-                    lineEnd = text.length();
+                    line = text.substring(lineStart, end);
+                    lineEnd = end;
                 }
                 lineArray.add(line);
                 lineHash.put(line, lineArray.size() - 1);
@@ -584,13 +1649,46 @@ public class diff_match_patch {
      * @return The number of characters common to the start of each string.
      */
     public int diff_commonPrefix(String text1, String text2) {
+        return diff_commonPrefix(text1, 0, text1.length(), text2, 0, text2.length());
+    }
+
+    /**
+     * Determine the common prefix of text1[start1, end1) and text2[start2, end2).
+     * @param text1 First string.
+     * @param start1 Start of the range of text1.
+     * @param end1 End of the range of text1.
+     * @param text2 Second string.
+     * @param start2 Start of the range of text2.
+     * @param end2 End of the range of text2.
+     * @return The number of characters common to the start of each range.
+     */
+    private static int diff_commonPrefix(String text1, int start1, int end1,
+                                         String text2, int start2, int end2) {
         // Performance analysis: https://neil.fraser.name/news/2007/10/09/
-        int n = Math.min(text1.length(), text2.length());
-        for (int i = 0; i < n; i++) {
-            if (text1.charAt(i) != text2.charAt(i)) {
+        int n = Math.min(end1 - start1, end2 - start2);
+        // Most ranges differ early, check the first characters one by one.
+        int scalar = Math.min(n, MISMATCH_SCALAR);
+        for (int i = 0; i < scalar; i++) {
+            if (text1.charAt(start1 + i) != text2.charAt(start2 + i)) {
                 return i;
             }
         }
+        if (scalar == n) {
+            return n;
+        }
+        // Then block by block, compared in bulk.
+        char[][] blocks = MISMATCH_BLOCKS.get();
+        char[] block1 = blocks[0];
+        char[] block2 = blocks[1];
+        for (int i = scalar; i < n; i += MISMATCH_BLOCK) {
+            int length = Math.min(MISMATCH_BLOCK, n - i);
+            text1.getChars(start1 + i, start1 + i + length, block1, 0);
+            text2.getChars(start2 + i, start2 + i + length, block2, 0);
+            int mismatch = Arrays.mismatch(block1, 0, length, block2, 0, length);
+            if (mismatch != -1) {
+                return i + mismatch;
+            }
+        }
         return n;
     }
 
@@ -601,18 +1699,62 @@ public class diff_match_patch {
      * @return The number of characters common to the end of each string.
      */
     public int diff_commonSuffix(String text1, String text2) {
+        return diff_commonSuffix(text1, 0, text1.length(), text2, 0, text2.length());
+    }
+
+    /**
+     * Determine the common suffix of text1[start1, end1) and text2[start2, end2).
+     * @param text1 First string.
+     * @param start1 Start of the range of text1.
+     * @param end1 End of the range of text1.
+     * @param text2 Second string.
+     * @param start2 Start of the range of text2.
+     * @param end2 End of the range of text2.
+     * @return The number of characters common to the end of each range.
+     */
+    private static int diff_commonSuffix(String text1, int start1, int end1,
+                                         String text2, int start2, int end2) {
         // Performance analysis: https://neil.fraser.name/news/2007/10/09/
-        int text1_length = text1.length();
-        int text2_length = text2.length();
-        int n = Math.min(text1_length, text2_length);
-        for (int i = 1; i <= n; i++) {
-            if (text1.charAt(text1_length - i) != text2.charAt(text2_length - i)) {
+        int n = Math.min(end1 - start1, end2 - start2);
+        // As diff_commonPrefix(), from the end.
+        int scalar = Math.min(n, MISMATCH_SCALAR);
+        for (int i = 1; i <= scalar; i++) {
+            if (text1.charAt(end1 - i) != text2.charAt(end2 - i)) {
                 return i - 1;
             }
         }
+        if (scalar == n) {
+            return n;
+        }
+        char[][] blocks = MISMATCH_BLOCKS.get();
+        char[] block1 = blocks[0];
+        char[] block2 = blocks[1];
+        for (int i = scalar; i < n; i += MISMATCH_BLOCK) {
+            int length = Math.min(MISMATCH_BLOCK, n - i);
+            text1.getChars(end1 - i - length, end1 - i, block1, 0);
+            text2.getChars(end2 - i - length, end2 - i, block2, 0);
+            if (!Arrays.equals(block1, 0, length, block2, 0, length)) {
+                // The last mismatch of the block.
+                int j = length - 1;
+                while (block1[j] == block2[j]) {
+                    j--;
+                }
+                return i + length - 1 - j;
+            }
+        }
         return n;
     }
 
+    /**
+     * Are text1[start1, start1 + length) and text2[start2, start2 + length)
+     * equal?  Same as String.regionMatches(), compared in bulk.
+     */
+    private static boolean diff_regionEquals(String text1, int start1,
+                                             String text2, int start2, int length) {
+        return diff_commonPrefix(text1, start1, start1 + length,
+                text2, start2, start2 + length) == length;
+    }
+
     /**
      * Determine if the suffix of one string is the prefix of another.
      * @param text1 First string.
@@ -621,22 +1763,39 @@ public class diff_match_patch {
      *     string and the start of the second string.
      */
     protected int diff_commonOverlap(String text1, String text2) {
+        return diff_commonOverlap(text1, 0, text1.length(), text2, 0, text2.length());
+    }
+
+    /**
+     * Determine if the suffix of text1[start1, end1) is the prefix of
+     * text2[start2, end2).
+     * @param text1 First string.
+     * @param start1 Start of the range of text1.
+     * @param end1 End of the range of text1.
+     * @param text2 Second string.
+     * @param start2 Start of the range of text2.
+     * @param end2 End of the range of text2.
+     * @return The number of characters common to the end of the first
+     *     range and the start of the second range.
+     */
+    private static int diff_commonOverlap(String text1, int start1, int end1,
+                                          String text2, int start2, int end2) {
         // Cache the text lengths to prevent multiple calls.
-        int text1_length = text1.length();
-        int text2_length = text2.length();
+        int text1_length = end1 - start1;
+        int text2_length = end2 - start2;
         // Eliminate the null case.
         if (text1_length == 0 || text2_length == 0) {
             return 0;
         }
-        // Truncate the longer string.
+        // Truncate the longer range.
         if (text1_length > text2_length) {
-            text1 = text1.substring(text1_length - text2_length);
+            start1 = end1 - text2_length;
         } else if (text1_length < text2_length) {
-            text2 = text2.substring(0, text1_length);
+            end2 = start2 + text1_length;
         }
         int text_length = Math.min(text1_length, text2_length);
         // Quick check for the worst case.
-        if (text1.equals(text2)) {
+        if (diff_regionEquals(text1, start1, text2, start2, text_length)) {
             return text_length;
         }
 
@@ -646,20 +1805,61 @@ public class diff_match_patch {
         int best = 0;
         int length = 1;
         while (true) {
-            String pattern = text1.substring(text_length - length);
-            int found = text2.indexOf(pattern);
+            int found = diff_indexOf(text2, start2, end2, text1, end1 - length, end1, 0);
             if (found == -1) {
                 return best;
             }
             length += found;
-            if (found == 0 || text1.substring(text_length - length).equals(
-                    text2.substring(0, length))) {
+            if (found == 0
+                    || diff_regionEquals(text1, end1 - length, text2, start2, length)) {
                 best = length;
                 length++;
             }
         }
     }
 
+    /**
+     * Find pattern[patternStart, patternEnd) within text[start, end).
+     * @param text String to search.
+     * @param start Start of the range of text.
+     * @param end End of the range of text.
+     * @param pattern String to look for.
+     * @param patternStart Start of the range of pattern.
+     * @param patternEnd End of the range of pattern.
+     * @param from Index within the range of text to search from.
+     * @return Index of the first match within the range of text, or -1.
+     */
+    private static int diff_indexOf(String text, int start, int end,
+                                    String pattern, int patternStart, int patternEnd,
+                                    int from) {
+        int length = patternEnd - patternStart;
+        if (length == 0) {
+            return Math.min(from, end - start);
+        }
+        char first = pattern.charAt(patternStart);
+        char lastChar = pattern.charAt(patternEnd - 1);
+        int last = end - length;
+        // The intrinsic String.indexOf() can't be bounded, so it is only used
+        // when the text past the range is no longer than the range.
+        boolean bulk = text.length() - end <= end - start;
+        for (int i = start + from; i <= last; i++) {
+            if (bulk) {
+                i = text.indexOf(first, i);
+                if (i == -1 || i > last) {
+                    return -1;
+                }
+            } else if (text.charAt(i) != first) {
+                continue;
+            }
+            // Both ends first, most candidates fail there.
+            if (text.charAt(i + length - 1) == lastChar
+                    && text.regionMatches(i + 1, pattern, patternStart + 1, length - 1)) {
+                return i - start;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Do the two texts share a substring which is at least half the length of
      * the longer text?
@@ -670,24 +1870,55 @@ public class diff_match_patch {
      *     suffix of text1, the prefix of text2, the suffix of text2 and the
      *     common middle.  Or null if there was no match.
      */
-    protected String[] diff_halfMatch(String text1, String text2) {
+    protected String[] diff_halfMatch(String text1, String text2) {
+        int[] hm = diff_halfMatch(text1, 0, text1.length(), text2, 0, text2.length());
+        if (hm == null) {
+            return null;
+        }
+        return new String[]{text1.substring(0, hm[0]), text1.substring(hm[0] + hm[2]),
+                text2.substring(0, hm[1]), text2.substring(hm[1] + hm[2]),
+                text1.substring(hm[0], hm[0] + hm[2])};
+    }
+
+    /**
+     * Do the two ranges share a substring which is at least half the length of
+     * the longer range?
+     * This speedup can produce non-minimal diffs.
+     * @param text1 First string.
+     * @param start1 Start of the range of text1.
+     * @param end1 End of the range of text1.
+     * @param text2 Second string.
+     * @param start2 Start of the range of text2.
+     * @param end2 End of the range of text2.
+     * @return Three element array, containing the start of the common middle
+     *     in text1, its start in text2 and its length.  Or null if there was
+     *     no match.
+     */
+    private int[] diff_halfMatch(String text1, int start1, int end1,
+                                 String text2, int start2, int end2) {
         if (Diff_Timeout <= 0) {
             // Don't risk returning a non-optimal diff if we have unlimited time.
             return null;
         }
-        String longtext = text1.length() > text2.length() ? text1 : text2;
-        String shorttext = text1.length() > text2.length() ? text2 : text1;
-        if (longtext.length() < 4 || shorttext.length() * 2 < longtext.length()) {
+        boolean text1Longer = end1 - start1 > end2 - start2;
+        String longtext = text1Longer ? text1 : text2;
+        int longStart = text1Longer ? start1 : start2;
+        int longEnd = text1Longer ? end1 : end2;
+        String shorttext = text1Longer ? text2 : text1;
+        int shortStart = text1Longer ? start2 : start1;
+        int shortEnd = text1Longer ? end2 : end1;
+        int longLength = longEnd - longStart;
+        if (longLength < 4 || (shortEnd - shortStart) * 2 < longLength) {
             return null;  // Pointless.
         }
 
         // First check if the second quarter is the seed for a half-match.
-        String[] hm1 = diff_halfMatchI(longtext, shorttext,
-                (longtext.length() + 3) / 4);
+        int[] hm1 = diff_halfMatchI(longtext, longStart, longEnd,
+                shorttext, shortStart, shortEnd, (longLength + 3) / 4);
         // Check again based on the third quarter.
-        String[] hm2 = diff_halfMatchI(longtext, shorttext,
-                (longtext.length() + 1) / 2);
-        String[] hm;
+        int[] hm2 = diff_halfMatchI(longtext, longStart, longEnd,
+                shorttext, shortStart, shortEnd, (longLength + 1) / 2);
+        int[] hm;
         if (hm1 == null && hm2 == null) {
             return null;
         } else if (hm2 == null) {
@@ -696,52 +1927,56 @@ public class diff_match_patch {
             hm = hm2;
         } else {
             // Both matched.  Select the longest.
-            hm = hm1[4].length() > hm2[4].length() ? hm1 : hm2;
+            hm = hm1[2] > hm2[2] ? hm1 : hm2;
         }
 
         // A half-match was found, sort out the return data.
-        if (text1.length() > text2.length()) {
+        if (text1Longer) {
             return hm;
-            //return new String[]{hm[0], hm[1], hm[2], hm[3], hm[4]};
         } else {
-            return new String[]{hm[2], hm[3], hm[0], hm[1], hm[4]};
+            return new int[]{hm[1], hm[0], hm[2]};
         }
     }
 
     /**
-     * Does a substring of shorttext exist within longtext such that the
-     * substring is at least half the length of longtext?
+     * Does a substring of the short range exist within the long range such
+     * that the substring is at least half the length of the long range?
      * @param longtext Longer string.
+     * @param longStart Start of the range of longtext.
+     * @param longEnd End of the range of longtext.
      * @param shorttext Shorter string.
-     * @param i Start index of quarter length substring within longtext.
-     * @return Five element String array, containing the prefix of longtext, the
-     *     suffix of longtext, the prefix of shorttext, the suffix of shorttext
-     *     and the common middle.  Or null if there was no match.
+     * @param shortStart Start of the range of shorttext.
+     * @param shortEnd End of the range of shorttext.
+     * @param i Start index of quarter length substring within the long range.
+     * @return Three element array, containing the start of the common middle
+     *     in longtext, its start in shorttext and its length.  Or null if
+     *     there was no match.
      */
-    private String[] diff_halfMatchI(String longtext, String shorttext, int i) {
+    private static int[] diff_halfMatchI(String longtext, int longStart, int longEnd,
+                                         String shorttext, int shortStart, int shortEnd,
+                                         int i) {
         // Start with a 1/4 length substring at position i as a seed.
-        String seed = longtext.substring(i, i + longtext.length() / 4);
+        int longLength = longEnd - longStart;
+        int seedStart = longStart + i;
+        int seedEnd = seedStart + longLength / 4;
         int j = -1;
-        String best_common = "";
-        String best_longtext_a = "", best_longtext_b = "";
-        String best_shorttext_a = "", best_shorttext_b = "";
-        while ((j = shorttext.indexOf(seed, j + 1)) != -1) {
-            int prefixLength = diff_commonPrefix(longtext.substring(i),
-                    shorttext.substring(j));
-            int suffixLength = diff_commonSuffix(longtext.substring(0, i),
-                    shorttext.substring(0, j));
-            if (best_common.length() < suffixLength + prefixLength) {
-                best_common = shorttext.substring(j - suffixLength, j)
-                        + shorttext.substring(j, j + prefixLength);
-                best_longtext_a = longtext.substring(0, i - suffixLength);
-                best_longtext_b = longtext.substring(i + prefixLength);
-                best_shorttext_a = shorttext.substring(0, j - suffixLength);
-                best_shorttext_b = shorttext.substring(j + prefixLength);
-            }
-        }
-        if (best_common.length() * 2 >= longtext.length()) {
-            return new String[]{best_longtext_a, best_longtext_b,
-                    best_shorttext_a, best_shorttext_b, best_common};
+        int best_common = 0;
+        int best_long = 0;
+        int best_short = 0;
+        while ((j = diff_indexOf(shorttext, shortStart, shortEnd,
+                longtext, seedStart, seedEnd, j + 1)) != -1) {
+            int prefixLength = diff_commonPrefix(longtext, seedStart, longEnd,
+                    shorttext, shortStart + j, shortEnd);
+            int suffixLength = diff_commonSuffix(longtext, longStart, seedStart,
+                    shorttext, shortStart, shortStart + j);
+            if (best_common < suffixLength + prefixLength) {
+                best_common = suffixLength + prefixLength;
+                best_long = seedStart - suffixLength;
+                best_short = shortStart + j - suffixLength;
+            }
+        }
+        if (best_common * 2 >= longLength) {
+            return new int[]{best_long, best_short, best_common};
         } else {
             return null;
         }
@@ -752,81 +1987,74 @@ public class diff_match_patch {
      * @param diffs LinkedList of Diff objects.
      */
     public void diff_cleanupSemantic(LinkedList<Diff> diffs) {
-        if (diffs.isEmpty()) {
+        Diffs compact = Diffs.fromList(diffs);
+        diff_cleanupSemantic(compact);
+        compact.copyTo(diffs);
+    }
+
+    /**
+     * Reduce the number of edits by eliminating semantically trivial equalities.
+     * @param diffs Diffs to clean up in place.
+     */
+    public void diff_cleanupSemantic(Diffs diffs) {
+        if (diffs.size == 0) {
             return;
         }
         boolean changes = false;
-        Deque<Diff> equalities = new ArrayDeque<Diff>();  // Double-ended queue of qualities.
-        String lastEquality = null; // Always equal to equalities.peek().text
-        ListIterator<Diff> pointer = diffs.listIterator();
+        IntStack equalities = new IntStack();  // Stack of indices of equalities.
+        int lastEquality = -1; // Always equal to the length of equalities.peek()
         // Number of characters that changed prior to the equality.
         int length_insertions1 = 0;
         int length_deletions1 = 0;
         // Number of characters that changed after the equality.
         int length_insertions2 = 0;
         int length_deletions2 = 0;
-        Diff thisDiff = pointer.next();
-        while (thisDiff != null) {
-            if (thisDiff.operation == Operation.EQUAL) {
+        int pointer = 0;
+        while (pointer < diffs.size) {
+            byte op = diffs.ops[pointer];
+            int length = diffs.lengths[pointer];
+            if (op == OP_EQUAL) {
                 // Equality found.
-                equalities.push(thisDiff);
+                equalities.push(pointer);
                 length_insertions1 = length_insertions2;
                 length_deletions1 = length_deletions2;
                 length_insertions2 = 0;
                 length_deletions2 = 0;
-                lastEquality = thisDiff.text;
+                lastEquality = length;
             } else {
                 // An insertion or deletion.
-                if (thisDiff.operation == Operation.INSERT) {
-                    length_insertions2 += thisDiff.text.length();
+                if (op == OP_INSERT) {
+                    length_insertions2 += length;
                 } else {
-                    length_deletions2 += thisDiff.text.length();
+                    length_deletions2 += length;
                 }
                 // Eliminate an equality that is smaller or equal to the edits on both
                 // sides of it.
-                if (lastEquality != null && (lastEquality.length()
-                        <= Math.max(length_insertions1, length_deletions1))
-                        && (lastEquality.length()
-                        <= Math.max(length_insertions2, length_deletions2))) {
-                    //System.out.println("Splitting: '" + lastEquality + "'");
-                    // Walk back to offending equality.
-                    while (thisDiff != equalities.peek()) {
-                        thisDiff = pointer.previous();
-                    }
-                    pointer.next();
+                if (lastEquality != -1
+                        && lastEquality <= Math.max(length_insertions1, length_deletions1)
+                        && lastEquality <= Math.max(length_insertions2, length_deletions2)) {
+                    // Replace the offending equality with a delete and an insert.
+                    int equality = equalities.pop();
+                    diffs.ops[equality] = OP_DELETE;
+                    diffs.insert(equality + 1, OP_INSERT, lastEquality);
 
-                    // Replace equality with a delete.
-                    pointer.set(new Diff(Operation.DELETE, lastEquality));
-                    // Insert a corresponding an insert.
-                    pointer.add(new Diff(Operation.INSERT, lastEquality));
-
-                    equalities.pop();  // Throw away the equality we just deleted.
                     if (!equalities.isEmpty()) {
                         // Throw away the previous equality (it needs to be reevaluated).
                         equalities.pop();
                     }
-                    if (equalities.isEmpty()) {
-                        // There are no previous equalities, walk back to the start.
-                        while (pointer.hasPrevious()) {
-                            pointer.previous();
-                        }
-                    } else {
-                        // There is a safe equality we can fall back to.
-                        thisDiff = equalities.peek();
-                        while (thisDiff != pointer.previous()) {
-                            // Intentionally empty loop.
-                        }
-                    }
+                    // Walk back to the safe equality, or to the start if there is none.
+                    pointer = equalities.isEmpty() ? 0 : equalities.peek();
 
                     length_insertions1 = 0;  // Reset the counters.
                     length_insertions2 = 0;
                     length_deletions1 = 0;
                     length_deletions2 = 0;
-                    lastEquality = null;
+                    lastEquality = -1;
                     changes = true;
+                    continue;
                 }
             }
-            thisDiff = pointer.hasNext() ? pointer.next() : null;
+            pointer++;
         }
 
         // Normalize the diff.
@@ -841,56 +2069,48 @@ public class diff_match_patch {
         // e.g: <del>xxxabc</del><ins>defxxx</ins>
         //   -> <ins>def</ins>xxx<del>abc</del>
         // Only extract an overlap if it is as big as the edit ahead or behind it.
-        pointer = diffs.listIterator();
-        Diff prevDiff = null;
-        thisDiff = null;
-        if (pointer.hasNext()) {
-            prevDiff = pointer.next();
-            if (pointer.hasNext()) {
-                thisDiff = pointer.next();
-            }
-        }
-        while (thisDiff != null) {
-            if (prevDiff.operation == Operation.DELETE &&
-                    thisDiff.operation == Operation.INSERT) {
-                String deletion = prevDiff.text;
-                String insertion = thisDiff.text;
-                int overlap_length1 = this.diff_commonOverlap(deletion, insertion);
-                int overlap_length2 = this.diff_commonOverlap(insertion, deletion);
+        String text1 = diffs.text1;
+        String text2 = diffs.text2;
+        int pos1 = diffs.start1;
+        int pos2 = diffs.start2;
+        pointer = 0;
+        while (pointer + 1 < diffs.size) {
+            if (diffs.ops[pointer] == OP_DELETE && diffs.ops[pointer + 1] == OP_INSERT) {
+                // The deletion starts at pos1 and the insertion at pos2.
+                int deletion = diffs.lengths[pointer];
+                int insertion = diffs.lengths[pointer + 1];
+                int overlap_length1 = diff_commonOverlap(text1, pos1, pos1 + deletion,
+                        text2, pos2, pos2 + insertion);
+                int overlap_length2 = diff_commonOverlap(text2, pos2, pos2 + insertion,
+                        text1, pos1, pos1 + deletion);
                 if (overlap_length1 >= overlap_length2) {
-                    if (overlap_length1 >= deletion.length() / 2.0 ||
-                            overlap_length1 >= insertion.length() / 2.0) {
+                    if (overlap_length1 >= deletion / 2.0 ||
+                            overlap_length1 >= insertion / 2.0) {
                         // Overlap found. Insert an equality and trim the surrounding edits.
-                        pointer.previous();
-                        pointer.add(new Diff(Operation.EQUAL,
-                                insertion.substring(0, overlap_length1)));
-                        prevDiff.text =
-                                deletion.substring(0, deletion.length() - overlap_length1);
-                        thisDiff.text = insertion.substring(overlap_length1);
-                        // pointer.add inserts the element before the cursor, so there is
-                        // no need to step past the new element.
+                        diffs.lengths[pointer] = deletion - overlap_length1;
+                        diffs.insert(pointer + 1, OP_EQUAL, overlap_length1);
+                        diffs.lengths[pointer + 2] = insertion - overlap_length1;
                     }
                 } else {
-                    if (overlap_length2 >= deletion.length() / 2.0 ||
-                            overlap_length2 >= insertion.length() / 2.0) {
+                    if (overlap_length2 >= deletion / 2.0 ||
+                            overlap_length2 >= insertion / 2.0) {
                         // Reverse overlap found.
                         // Insert an equality and swap and trim the surrounding edits.
-                        pointer.previous();
-                        pointer.add(new Diff(Operation.EQUAL,
-                                deletion.substring(0, overlap_length2)));
-                        prevDiff.operation = Operation.INSERT;
-                        prevDiff.text =
-                                insertion.substring(0, insertion.length() - overlap_length2);
-                        thisDiff.operation = Operation.DELETE;
-                        thisDiff.text = deletion.substring(overlap_length2);
-                        // pointer.add inserts the element before the cursor, so there is
-                        // no need to step past the new element.
+                        diffs.ops[pointer] = OP_INSERT;
+                        diffs.lengths[pointer] = insertion - overlap_length2;
+                        diffs.insert(pointer + 1, OP_EQUAL, overlap_length2);
+                        diffs.ops[pointer + 2] = OP_DELETE;
+                        diffs.lengths[pointer + 2] = deletion - overlap_length2;
                     }
                 }
-                thisDiff = pointer.hasNext() ? pointer.next() : null;
+                // Step past the edit pair, the equality in between is skipped too.
+                pos1 += diffs.length1(pointer);
+                pos2 += diffs.length2(pointer);
+                pointer++;
             }
-            prevDiff = thisDiff;
-            thisDiff = pointer.hasNext() ? pointer.next() : null;
+            pos1 += diffs.length1(pointer);
+            pos2 += diffs.length2(pointer);
+            pointer++;
         }
     }
 
@@ -901,94 +2121,98 @@ public class diff_match_patch {
      * @param diffs LinkedList of Diff objects.
      */
     public void diff_cleanupSemanticLossless(LinkedList<Diff> diffs) {
-        String equality1, edit, equality2;
-        String commonString;
-        int commonOffset;
-        int score, bestScore;
-        String bestEquality1, bestEdit, bestEquality2;
-        // Create a new iterator at the start.
-        ListIterator<Diff> pointer = diffs.listIterator();
-        Diff prevDiff = pointer.hasNext() ? pointer.next() : null;
-        Diff thisDiff = pointer.hasNext() ? pointer.next() : null;
-        Diff nextDiff = pointer.hasNext() ? pointer.next() : null;
+        Diffs compact = Diffs.fromList(diffs);
+        diff_cleanupSemanticLossless(compact);
+        compact.copyTo(diffs);
+    }
+
+    /**
+     * Look for single edits surrounded on both sides by equalities
+     * which can be shifted sideways to align the edit to a word boundary.
+     * @param diffs Diffs to clean up in place.
+     */
+    public void diff_cleanupSemanticLossless(Diffs diffs) {
+        int pos1 = diffs.start1;
+        int pos2 = diffs.start2;
+        int pointer = 0;
         // Intentionally ignore the first and last element (don't need checking).
-        while (nextDiff != null) {
-            if (prevDiff.operation == Operation.EQUAL &&
-                    nextDiff.operation == Operation.EQUAL) {
+        while (pointer + 2 < diffs.size) {
+            if (diffs.ops[pointer] == OP_EQUAL && diffs.ops[pointer + 2] == OP_EQUAL) {
                 // This is a single edit surrounded by equalities.
-                equality1 = prevDiff.text;
-                edit = thisDiff.text;
-                equality2 = nextDiff.text;
+                // All three are contiguous in the text the edit belongs to.
+                boolean deletion = diffs.ops[pointer + 1] == OP_DELETE;
+                String text = deletion ? diffs.text1 : diffs.text2;
+                int equality1 = deletion ? pos1 : pos2;
+                int edit = equality1 + diffs.lengths[pointer];
+                int equality2 = edit + diffs.lengths[pointer + 1];
+                int end = equality2 + diffs.lengths[pointer + 2];
 
                 // First, shift the edit as far left as possible.
-                commonOffset = diff_commonSuffix(equality1, edit);
-                if (commonOffset != 0) {
-                    commonString = edit.substring(edit.length() - commonOffset);
-                    equality1 = equality1.substring(0, equality1.length() - commonOffset);
-                    edit = commonString + edit.substring(0, edit.length() - commonOffset);
-                    equality2 = commonString + equality2;
-                }
+                int commonOffset = diff_commonSuffix(text, equality1, edit,
+                        text, edit, equality2);
+                edit -= commonOffset;
+                equality2 -= commonOffset;
 
                 // Second, step character by character right, looking for the best fit.
-                bestEquality1 = equality1;
-                bestEdit = edit;
-                bestEquality2 = equality2;
-                bestScore = diff_cleanupSemanticScore(equality1, edit)
-                        + diff_cleanupSemanticScore(edit, equality2);
-                while (edit.length() != 0 && equality2.length() != 0
-                        && edit.charAt(0) == equality2.charAt(0)) {
-                    equality1 += edit.charAt(0);
-                    edit = edit.substring(1) + equality2.charAt(0);
-                    equality2 = equality2.substring(1);
-                    score = diff_cleanupSemanticScore(equality1, edit)
-                            + diff_cleanupSemanticScore(edit, equality2);
+                int bestEdit = edit;
+                int bestEquality2 = equality2;
+                int bestScore = diff_cleanupSemanticScore(text, equality1, edit, equality2)
+                        + diff_cleanupSemanticScore(text, edit, equality2, end);
+                while (edit != equality2 && equality2 != end
+                        && text.charAt(edit) == text.charAt(equality2)) {
+                    edit++;
+                    equality2++;
+                    int score = diff_cleanupSemanticScore(text, equality1, edit, equality2)
+                            + diff_cleanupSemanticScore(text, edit, equality2, end);
                     // The >= encourages trailing rather than leading whitespace on edits.
                     if (score >= bestScore) {
                         bestScore = score;
-                        bestEquality1 = equality1;
                         bestEdit = edit;
                         bestEquality2 = equality2;
                     }
                 }
 
-                if (!prevDiff.text.equals(bestEquality1)) {
+                if (bestEdit != equality1 + diffs.lengths[pointer]) {
                     // We have an improvement, save it back to the diff.
-                    if (bestEquality1.length() != 0) {
-                        prevDiff.text = bestEquality1;
+                    // The edit keeps its length, only the equalities change.
+                    diffs.lengths[pointer + 2] = end - bestEquality2;
+                    int next = pointer + 2;
+                    boolean removed = false;
+                    if (bestEdit != equality1) {
+                        diffs.lengths[pointer] = bestEdit - equality1;
                     } else {
-                        pointer.previous(); // Walk past nextDiff.
-                        pointer.previous(); // Walk past thisDiff.
-                        pointer.previous(); // Walk past prevDiff.
-                        pointer.remove(); // Delete prevDiff.
-                        pointer.next(); // Walk past thisDiff.
-                        pointer.next(); // Walk past nextDiff.
+                        diffs.remove(pointer);
+                        next--;
+                        removed = true;
                     }
-                    thisDiff.text = bestEdit;
-                    if (bestEquality2.length() != 0) {
-                        nextDiff.text = bestEquality2;
-                    } else {
-                        pointer.remove(); // Delete nextDiff.
-                        nextDiff = thisDiff;
-                        thisDiff = prevDiff;
+                    if (diffs.lengths[next] == 0) {
+                        diffs.remove(next);
+                        removed = true;
+                    }
+                    if (removed) {
+                        // Look at the same position again, it holds different diffs.
+                        continue;
                     }
                 }
             }
-            prevDiff = thisDiff;
-            thisDiff = nextDiff;
-            nextDiff = pointer.hasNext() ? pointer.next() : null;
+            pos1 += diffs.length1(pointer);
+            pos2 += diffs.length2(pointer);
+            pointer++;
         }
     }
 
     /**
-     * Given two strings, compute a score representing whether the internal
-     * boundary falls on logical boundaries.
+     * Given text[start, middle) and text[middle, end), compute a score
+     * representing whether the internal boundary falls on logical boundaries.
      * Scores range from 6 (best) to 0 (worst).
-     * @param one First string.
-     * @param two Second string.
+     * @param text String holding both ranges.
+     * @param start Start of the first range.
+     * @param middle End of the first range and start of the second.
+     * @param end End of the second range.
      * @return The score.
      */
-    private int diff_cleanupSemanticScore(String one, String two) {
-        if (one.length() == 0 || two.length() == 0) {
+    private int diff_cleanupSemanticScore(String text, int start, int middle, int end) {
+        if (start == middle || middle == end) {
             // Edges are the best.
             return 6;
         }
@@ -998,8 +2222,8 @@ public class diff_match_patch {
         // 'whitespace'.  Since this function's purpose is largely cosmetic,
         // the choice has been made to use each language's native features
         // rather than force total conformity.
-        char char1 = one.charAt(one.length() - 1);
-        char char2 = two.charAt(0);
+        char char1 = text.charAt(middle - 1);
+        char char2 = text.charAt(middle);
         boolean nonAlphaNumeric1 = !Character.isLetterOrDigit(char1);
         boolean nonAlphaNumeric2 = !Character.isLetterOrDigit(char2);
         boolean whitespace1 = nonAlphaNumeric1 && Character.isWhitespace(char1);
@@ -1008,8 +2232,10 @@ public class diff_match_patch {
                 && Character.getType(char1) == Character.CONTROL;
         boolean lineBreak2 = whitespace2
                 && Character.getType(char2) == Character.CONTROL;
-        boolean blankLine1 = lineBreak1 && BLANKLINEEND.matcher(one).find();
-        boolean blankLine2 = lineBreak2 && BLANKLINESTART.matcher(two).find();
+        boolean blankLine1 = lineBreak1
+                && BLANKLINEEND.matcher(CharBuffer.wrap(text, start, middle)).find();
+        boolean blankLine2 = lineBreak2
+                && BLANKLINESTART.matcher(CharBuffer.wrap(text, middle, end)).find();
 
         if (blankLine1 || blankLine2) {
             // Five points for blank lines.
@@ -1041,13 +2267,22 @@ public class diff_match_patch {
      * @param diffs LinkedList of Diff objects.
      */
     public void diff_cleanupEfficiency(LinkedList<Diff> diffs) {
-        if (diffs.isEmpty()) {
+        Diffs compact = Diffs.fromList(diffs);
+        diff_cleanupEfficiency(compact);
+        compact.copyTo(diffs);
+    }
+
+    /**
+     * Reduce the number of edits by eliminating operationally trivial equalities.
+     * @param diffs Diffs to clean up in place.
+     */
+    public void diff_cleanupEfficiency(Diffs diffs) {
+        if (diffs.size == 0) {
             return;
         }
         boolean changes = false;
-        Deque<Diff> equalities = new ArrayDeque<Diff>();  // Double-ended queue of equalities.
-        String lastEquality = null; // Always equal to equalities.peek().text
-        ListIterator<Diff> pointer = diffs.listIterator();
+        IntStack equalities = new IntStack();  // Stack of indices of equalities.
+        int lastEquality = -1; // Always equal to the length of equalities.peek()
         // Is there an insertion operation before the last equality.
         boolean pre_ins = false;
         // Is there a deletion operation before the last equality.
@@ -1056,27 +2291,28 @@ public class diff_match_patch {
         boolean post_ins = false;
         // Is there a deletion operation after the last equality.
         boolean post_del = false;
-        Diff thisDiff = pointer.next();
-        Diff safeDiff = thisDiff;  // The last Diff that is known to be unsplittable.
-        while (thisDiff != null) {
-            if (thisDiff.operation == Operation.EQUAL) {
+        int pointer = 0;
+        int safeDiff = 0;  // The last diff that is known to be unsplittable.
+        while (pointer < diffs.size) {
+            if (diffs.ops[pointer] == OP_EQUAL) {
                 // Equality found.
-                if (thisDiff.text.length() < Diff_EditCost && (post_ins || post_del)) {
+                int length = diffs.lengths[pointer];
+                if (length < Diff_EditCost && (post_ins || post_del)) {
                     // Candidate found.
-                    equalities.push(thisDiff);
+                    equalities.push(pointer);
                     pre_ins = post_ins;
                     pre_del = post_del;
-                    lastEquality = thisDiff.text;
+                    lastEquality = length;
                 } else {
                     // Not a candidate, and can never become one.
                     equalities.clear();
-                    lastEquality = null;
-                    safeDiff = thisDiff;
+                    lastEquality = -1;
+                    safeDiff = pointer;
                 }
                 post_ins = post_del = false;
             } else {
                 // An insertion or deletion.
-                if (thisDiff.operation == Operation.DELETE) {
+                if (diffs.ops[pointer] == OP_DELETE) {
                     post_del = true;
                 } else {
                     post_ins = true;
@@ -1089,53 +2325,38 @@ public class diff_match_patch {
                  * <ins>A</del>X<ins>C</ins><del>D</del>
                  * <ins>A</ins><del>B</del>X<del>C</del>
                  */
-                if (lastEquality != null
+                if (lastEquality != -1
                         && ((pre_ins && pre_del && post_ins && post_del)
-                        || ((lastEquality.length() < Diff_EditCost / 2)
+                        || ((lastEquality < Diff_EditCost / 2)
                         && ((pre_ins ? 1 : 0) + (pre_del ? 1 : 0)
                         + (post_ins ? 1 : 0) + (post_del ? 1 : 0)) == 3))) {
-                    //System.out.println("Splitting: '" + lastEquality + "'");
-                    // Walk back to offending equality.
-                    while (thisDiff != equalities.peek()) {
-                        thisDiff = pointer.previous();
-                    }
-                    pointer.next();
-
-                    // Replace equality with a delete.
-                    pointer.set(new Diff(Operation.DELETE, lastEquality));
-                    // Insert a corresponding an insert.
-                    pointer.add(thisDiff = new Diff(Operation.INSERT, lastEquality));
-
-                    equalities.pop();  // Throw away the equality we just deleted.
-                    lastEquality = null;
+                    // Replace the offending equality with a delete and an insert.
+                    int equality = equalities.pop();
+                    diffs.ops[equality] = OP_DELETE;
+                    diffs.insert(equality + 1, OP_INSERT, lastEquality);
+                    lastEquality = -1;
                     if (pre_ins && pre_del) {
                         // No changes made which could affect previous entry, keep going.
                         post_ins = post_del = true;
                         equalities.clear();
-                        safeDiff = thisDiff;
+                        safeDiff = equality + 1;
+                        pointer = equality + 2;
                     } else {
                         if (!equalities.isEmpty()) {
                             // Throw away the previous equality (it needs to be reevaluated).
                             equalities.pop();
                         }
-                        if (equalities.isEmpty()) {
-                            // There are no previous questionable equalities,
-                            // walk back to the last known safe diff.
-                            thisDiff = safeDiff;
-                        } else {
-                            // There is an equality we can fall back to.
-                            thisDiff = equalities.peek();
-                        }
-                        while (thisDiff != pointer.previous()) {
-                            // Intentionally empty loop.
-                        }
+                        // Walk back to the equality we can fall back to,
+                        // or to the last known safe diff.
+                        pointer = equalities.isEmpty() ? safeDiff : equalities.peek();
                         post_ins = post_del = false;
                     }
 
                     changes = true;
+                    continue;
                 }
             }
-            thisDiff = pointer.hasNext() ? pointer.next() : null;
+            pointer++;
         }
 
         if (changes) {
@@ -1149,98 +2370,119 @@ public class diff_match_patch {
      * @param diffs LinkedList of Diff objects.
      */
     public void diff_cleanupMerge(LinkedList<Diff> diffs) {
-        diffs.add(new Diff(Operation.EQUAL, ""));  // Add a dummy entry at the end.
-        ListIterator<Diff> pointer = diffs.listIterator();
+        Diffs compact = Diffs.fromList(diffs);
+        diff_cleanupMerge(compact);
+        compact.copyTo(diffs);
+    }
+
+    /**
+     * Reorder and merge like edit sections.  Merge equalities.
+     * Any edit section can move as long as it doesn't cross an equality.
+     * @param diffs Diffs to clean up in place.
+     */
+    public void diff_cleanupMerge(Diffs diffs) {
+        String text1 = diffs.text1;
+        String text2 = diffs.text2;
+        // The merged diffs can outgrow the input by one leading equality.
+        byte[] ops = new byte[diffs.size + 2];
+        int[] lengths = new int[diffs.size + 2];
+        int size = 0;
         int count_delete = 0;
         int count_insert = 0;
-        String text_delete = "";
-        String text_insert = "";
-        Diff thisDiff = pointer.next();
-        Diff prevEqual = null;
+        int length_delete = 0;
+        int length_insert = 0;
+        int editStart = 0;  // Index in the output of the first edit after an equality.
+        int prevEqual = -1;
+        int pos1 = diffs.start1;
+        int pos2 = diffs.start2;
         int commonlength;
-        while (thisDiff != null) {
-            switch (thisDiff.operation) {
-                case INSERT:
-                    count_insert++;
-                    text_insert += thisDiff.text;
-                    prevEqual = null;
-                    break;
-                case DELETE:
-                    count_delete++;
-                    text_delete += thisDiff.text;
-                    prevEqual = null;
+        // A dummy equality at the end.
+        for (int i = 0; i <= diffs.size; i++) {
+            byte op = i < diffs.size ? diffs.ops[i] : OP_EQUAL;
+            int length = i < diffs.size ? diffs.lengths[i] : 0;
+            switch (op) {
+                case OP_INSERT:
+                case OP_DELETE:
+                    if (count_delete + count_insert == 0) {
+                        editStart = size;
+                    }
+                    if (op == OP_INSERT) {
+                        count_insert++;
+                        length_insert += length;
+                        pos2 += length;
+                    } else {
+                        count_delete++;
+                        length_delete += length;
+                        pos1 += length;
+                    }
+                    ops[size] = op;
+                    lengths[size++] = length;
+                    prevEqual = -1;
                     break;
-                case EQUAL:
+                case OP_EQUAL:
                     if (count_delete + count_insert > 1) {
-                        boolean both_types = count_delete != 0 && count_insert != 0;
-                        // Delete the offending records.
-                        pointer.previous();  // Reverse direction.
-                        while (count_delete-- > 0) {
-                            pointer.previous();
-                            pointer.remove();
-                        }
-                        while (count_insert-- > 0) {
-                            pointer.previous();
-                            pointer.remove();
-                        }
-                        if (both_types) {
+                        // Drop the offending records.
+                        size = editStart;
+                        if (count_delete != 0 && count_insert != 0) {
                             // Factor out any common prefixies.
-                            commonlength = diff_commonPrefix(text_insert, text_delete);
+                            // The edits end where this equality starts.
+                            commonlength = diff_commonPrefix(text2, pos2 - length_insert, pos2,
+                                    text1, pos1 - length_delete, pos1);
                             if (commonlength != 0) {
-                                if (pointer.hasPrevious()) {
-                                    thisDiff = pointer.previous();
-                                    assert thisDiff.operation == Operation.EQUAL
-                                            : "Previous diff should have been an equality.";
-                                    thisDiff.text += text_insert.substring(0, commonlength);
-                                    pointer.next();
+                                if (size > 0) {
+                                    // The previous diff is an equality.
+                                    lengths[size - 1] += commonlength;
                                 } else {
-                                    pointer.add(new Diff(Operation.EQUAL,
-                                            text_insert.substring(0, commonlength)));
+                                    ops[size] = OP_EQUAL;
+                                    lengths[size++] = commonlength;
                                 }
-                                text_insert = text_insert.substring(commonlength);
-                                text_delete = text_delete.substring(commonlength);
+                                length_insert -= commonlength;
+                                length_delete -= commonlength;
                             }
                             // Factor out any common suffixies.
-                            commonlength = diff_commonSuffix(text_insert, text_delete);
+                            commonlength = diff_commonSuffix(text2, pos2 - length_insert, pos2,
+                                    text1, pos1 - length_delete, pos1);
                             if (commonlength != 0) {
-                                thisDiff = pointer.next();
-                                thisDiff.text = text_insert.substring(text_insert.length()
-                                        - commonlength) + thisDiff.text;
-                                text_insert = text_insert.substring(0, text_insert.length()
-                                        - commonlength);
-                                text_delete = text_delete.substring(0, text_delete.length()
-                                        - commonlength);
-                                pointer.previous();
+                                length += commonlength;
+                                length_insert -= commonlength;
+                                length_delete -= commonlength;
                             }
                         }
                         // Insert the merged records.
-                        if (text_delete.length() != 0) {
-                            pointer.add(new Diff(Operation.DELETE, text_delete));
+                        if (length_delete != 0) {
+                            ops[size] = OP_DELETE;
+                            lengths[size++] = length_delete;
                         }
-                        if (text_insert.length() != 0) {
-                            pointer.add(new Diff(Operation.INSERT, text_insert));
+                        if (length_insert != 0) {
+                            ops[size] = OP_INSERT;
+                            lengths[size++] = length_insert;
                         }
-                        // Step forward to the equality.
-                        thisDiff = pointer.hasNext() ? pointer.next() : null;
-                    } else if (prevEqual != null) {
+                        ops[size] = OP_EQUAL;
+                        lengths[size] = length;
+                        prevEqual = size++;
+                    } else if (prevEqual != -1) {
                         // Merge this equality with the previous one.
-                        prevEqual.text += thisDiff.text;
-                        pointer.remove();
-                        thisDiff = pointer.previous();
-                        pointer.next();  // Forward direction
+                        lengths[prevEqual] += length;
+                    } else {
+                        ops[size] = OP_EQUAL;
+                        lengths[size] = length;
+                        prevEqual = size++;
                     }
                     count_insert = 0;
                     count_delete = 0;
-                    text_delete = "";
-                    text_insert = "";
-                    prevEqual = thisDiff;
+                    length_delete = 0;
+                    length_insert = 0;
+                    pos1 += i < diffs.size ? diffs.lengths[i] : 0;
+                    pos2 += i < diffs.size ? diffs.lengths[i] : 0;
                     break;
             }
-            thisDiff = pointer.hasNext() ? pointer.next() : null;
         }
-        if (diffs.getLast().text.length() == 0) {
-            diffs.removeLast();  // Remove the dummy entry at the end.
+        if (lengths[size - 1] == 0) {
+            size--;  // Remove the dummy entry at the end.
         }
+        diffs.ops = ops;
+        diffs.lengths = lengths;
+        diffs.size = size;
 
         /*
          * Second pass: look for single edits surrounded on both sides by equalities
@@ -1248,44 +2490,37 @@ public class diff_match_patch {
          * e.g: A<ins>BA</ins>C -> <ins>AB</ins>AC
          */
         boolean changes = false;
-        // Create a new iterator at the start.
-        // (As opposed to walking the current one back.)
-        pointer = diffs.listIterator();
-        Diff prevDiff = pointer.hasNext() ? pointer.next() : null;
-        thisDiff = pointer.hasNext() ? pointer.next() : null;
-        Diff nextDiff = pointer.hasNext() ? pointer.next() : null;
+        pos1 = diffs.start1;
+        pos2 = diffs.start2;
+        int pointer = 0;
         // Intentionally ignore the first and last element (don't need checking).
-        while (nextDiff != null) {
-            if (prevDiff.operation == Operation.EQUAL &&
-                    nextDiff.operation == Operation.EQUAL) {
+        while (pointer + 2 < diffs.size) {
+            if (diffs.ops[pointer] == OP_EQUAL && diffs.ops[pointer + 2] == OP_EQUAL) {
                 // This is a single edit surrounded by equalities.
-                if (thisDiff.text.endsWith(prevDiff.text)) {
+                int prevLength = diffs.lengths[pointer];
+                int editLength = diffs.lengths[pointer + 1];
+                int nextLength = diffs.lengths[pointer + 2];
+                boolean deletion = diffs.ops[pointer + 1] == OP_DELETE;
+                String text = deletion ? text1 : text2;
+                int edit = (deletion ? pos1 : pos2) + prevLength;
+                int next = pos1 + prevLength + diffs.length1(pointer + 1);
+                if (editLength >= prevLength && text.regionMatches(
+                        edit + editLength - prevLength, text1, pos1, prevLength)) {
                     // Shift the edit over the previous equality.
-                    thisDiff.text = prevDiff.text
-                            + thisDiff.text.substring(0, thisDiff.text.length()
-                            - prevDiff.text.length());
-                    nextDiff.text = prevDiff.text + nextDiff.text;
-                    pointer.previous(); // Walk past nextDiff.
-                    pointer.previous(); // Walk past thisDiff.
-                    pointer.previous(); // Walk past prevDiff.
-                    pointer.remove(); // Delete prevDiff.
-                    pointer.next(); // Walk past thisDiff.
-                    thisDiff = pointer.next(); // Walk past nextDiff.
-                    nextDiff = pointer.hasNext() ? pointer.next() : null;
+                    diffs.lengths[pointer + 2] += prevLength;
+                    diffs.remove(pointer);
                     changes = true;
-                } else if (thisDiff.text.startsWith(nextDiff.text)) {
+                } else if (editLength >= nextLength
+                        && text.regionMatches(edit, text1, next, nextLength)) {
                     // Shift the edit over the next equality.
-                    prevDiff.text += nextDiff.text;
-                    thisDiff.text = thisDiff.text.substring(nextDiff.text.length())
-                            + nextDiff.text;
-                    pointer.remove(); // Delete nextDiff.
-                    nextDiff = pointer.hasNext() ? pointer.next() : null;
+                    diffs.lengths[pointer] += nextLength;
+                    diffs.remove(pointer + 2);
                     changes = true;
                 }
             }
-            prevDiff = thisDiff;
-            thisDiff = nextDiff;
-            nextDiff = pointer.hasNext() ? pointer.next() : null;
+            pos1 += diffs.length1(pointer);
+            pos2 += diffs.length2(pointer);
+            pointer++;
         }
         // If shifts were made, the diff needs reordering and another shift sweep.
         if (changes) {
@@ -1573,17 +2808,17 @@ public class diff_match_patch {
     /**
      * Locate the best instance of 'pattern' in 'text' near 'loc' using the
      * Bitap algorithm.  Returns -1 if no match found.
+     * Patterns of any length are matched, with a long of state per 64
+     * characters.
      * @param text The text to search.
      * @param pattern The pattern to search for.
      * @param loc The location to search around.
      * @return Best match index or -1.
      */
     protected int match_bitap(String text, String pattern, int loc) {
-        assert (Match_MaxBits == 0 || pattern.length() <= Match_MaxBits)
-                : "Pattern too long for this application.";
-
         // Initialise the alphabet.
-        Map<Character, Integer> s = match_alphabet(pattern);
+        MatchAlphabet s = new MatchAlphabet(pattern);
+        int words = s.words;
 
         // Highest score beyond which we give up.
         double score_threshold = Match_Threshold;
@@ -1600,14 +2835,20 @@ public class diff_match_patch {
             }
         }
 
-        // Initialise the bit arrays.
-        int matchmask = 1 << (pattern.length() - 1);
+        // Initialise the bit arrays, words consecutive longs per position.
+        // Bit i of the state stands for character (length - i - 1) of the pattern.
+        int matchword = (pattern.length() - 1) >>> 6;
+        long matchmask = 1L << ((pattern.length() - 1) & 63);
         best_loc = -1;
 
         int bin_min, bin_mid;
         int bin_max = pattern.length() + text.length();
-        // Empty initialization added to appease Java compiler.
-        int[] last_rd = new int[0];
+        // The scan range only shrinks, so two buffers are allocated once and swapped.
+        long[] rd = null;
+        long[] last_rd = null;
+        // Offsets in the alphabet of the scanned characters of text.
+        int[] char_offsets = null;
+        int char_start = 0;
         for (int d = 0; d < pattern.length(); d++) {
             // Scan for the best match; each iteration allows for one more error.
             // Run a binary search to determine how far from 'loc' we can stray at
@@ -1628,25 +2869,47 @@ public class diff_match_patch {
             int start = Math.max(1, loc - bin_mid + 1);
             int finish = Math.min(loc + bin_mid, text.length()) + pattern.length();
 
-            int[] rd = new int[finish + 2];
-            rd[finish + 1] = (1 << d) - 1;
-            for (int j = finish; j >= start; j--) {
-                int charMatch;
-                if (text.length() <= j - 1 || !s.containsKey(text.charAt(j - 1))) {
-                    // Out of range.
-                    charMatch = 0;
-                } else {
-                    charMatch = s.get(text.charAt(j - 1));
+            // Passing loc moves start down, but never below this.
+            int lowest = Math.max(1, Math.min(start, 2 * loc - finish + 1));
+            if (rd == null) {
+                rd = new long[(finish + 2) * words];
+                last_rd = new long[(finish + 2) * words];
+                char_start = lowest - 1;
+                char_offsets = new int[Math.max(0, Math.min(finish, text.length()) - char_start)];
+                for (int i = 0; i < char_offsets.length; i++) {
+                    char_offsets[i] = s.offsetOf(text.charAt(char_start + i));
                 }
-                if (d == 0) {
-                    // First pass: exact match.
-                    rd[j] = ((rd[j + 1] << 1) | 1) & charMatch;
-                } else {
-                    // Subsequent passes: fuzzy match.
-                    rd[j] = (((rd[j + 1] << 1) | 1) & charMatch)
-                            | (((last_rd[j + 1] | last_rd[j]) << 1) | 1) | last_rd[j + 1];
+            } else {
+                // Positions left unscanned must read as no match.
+                Arrays.fill(rd, lowest * words, (finish + 2) * words, 0L);
+            }
+            for (int w = 0; w < words; w++) {
+                // The d lowest bits.
+                int bits = d - w * 64;
+                rd[(finish + 1) * words + w] = bits >= 64 ? -1L : bits > 0 ? (1L << bits) - 1 : 0L;
+            }
+            for (int j = finish; j >= start; j--) {
+                int char_offset = text.length() <= j - 1 ? -1 : char_offsets[j - 1 - char_start];
+                int row = j * words;
+                int next = row + words;
+                // Bits carried over from the word below when shifting left.
+                long carry = 1;
+                long last_carry = 1;
+                for (int w = 0; w < words; w++) {
+                    // Out of range or not in the pattern when char_offset is -1.
+                    long charMatch = char_offset < 0 ? 0 : s.masks[char_offset + w];
+                    long shifted = rd[next + w];
+                    long value = ((shifted << 1) | carry) & charMatch;
+                    carry = shifted >>> 63;
+                    if (d != 0) {
+                        // Subsequent passes: fuzzy match.
+                        long last = last_rd[next + w] | last_rd[row + w];
+                        value |= ((last << 1) | last_carry) | last_rd[next + w];
+                        last_carry = last >>> 63;
+                    }
+                    rd[row + w] = value;
                 }
-                if ((rd[j] & matchmask) != 0) {
+                if ((rd[row + matchword] & matchmask) != 0) {
                     double score = match_bitapScore(d, j - 1, loc, pattern);
                     // This match will almost certainly be better than any existing
                     // match.  But check anyway.
@@ -1668,7 +2931,9 @@ public class diff_match_patch {
                 // No hope for a (better) match at greater error levels.
                 break;
             }
+            long[] swap = last_rd;
             last_rd = rd;
+            rd = swap;
         }
         return best_loc;
     }
@@ -1693,23 +2958,80 @@ public class diff_match_patch {
 
     /**
      * Initialise the alphabet for the Bitap algorithm.
-     * @param pattern The text to encode.
+     * @param pattern The text to encode, at most 32 characters.
      * @return Hash of character locations.
+     * @deprecated Use MatchAlphabet, which takes patterns of any length.
      */
+    @Deprecated
     protected Map<Character, Integer> match_alphabet(String pattern) {
         Map<Character, Integer> s = new HashMap<Character, Integer>();
-        char[] char_pattern = pattern.toCharArray();
-        for (char c : char_pattern) {
-            s.put(c, 0);
-        }
-        int i = 0;
-        for (char c : char_pattern) {
-            s.put(c, s.get(c) | (1 << (pattern.length() - i - 1)));
-            i++;
+        MatchAlphabet alphabet = new MatchAlphabet(pattern);
+        for (char c : pattern.toCharArray()) {
+            s.put(c, (int) alphabet.masks[alphabet.offsetOf(c)]);
         }
         return s;
     }
 
+    /**
+     * Alphabet for the Bitap algorithm over primitive arrays: the bit masks of
+     * each distinct character of the pattern, as words consecutive longs.
+     */
+    protected static class MatchAlphabet {
+        /**
+         * Number of longs in a mask.
+         */
+        protected final int words;
+        /**
+         * Masks of the characters, at the offsets given by offsetOf().
+         */
+        protected final long[] masks;
+        // Open addressing from character to its index + 1, 0 when empty.
+        private final char[] keys;
+        private final int[] slots;
+        private int size;
+
+        /**
+         * Initialise the alphabet of a pattern.
+         * @param pattern The text to encode.
+         */
+        protected MatchAlphabet(String pattern) {
+            int length = pattern.length();
+            words = Math.max(1, (length + 63) >>> 6);
+            masks = new long[Math.max(1, length) * words];
+            keys = new char[Integer.highestOneBit(Math.max(1, length)) * 4];
+            slots = new int[keys.length];
+            for (int i = 0; i < length; i++) {
+                char c = pattern.charAt(i);
+                int slot = slot(c);
+                if (slots[slot] == 0) {
+                    keys[slot] = c;
+                    slots[slot] = ++size;
+                }
+                int bit = length - i - 1;
+                masks[(slots[slot] - 1) * words + (bit >>> 6)] |= 1L << (bit & 63);
+            }
+        }
+
+        /**
+         * @param c Character of the text.
+         * @return Offset of the mask of c in masks, or -1 if c is not in the
+         *     pattern.
+         */
+        protected int offsetOf(char c) {
+            int slot = slot(c);
+            return slots[slot] == 0 ? -1 : (slots[slot] - 1) * words;
+        }
+
+        private int slot(char c) {
+            int mask = keys.length - 1;
+            int slot = (c * 0x9E3779B1 >>> 16) & mask;
+            while (slots[slot] != 0 && keys[slot] != c) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
 
     //  PATCH FUNCTIONS
 
@@ -1998,22 +3320,27 @@ public class diff_match_patch {
                         results[x] = false;
                     } else {
                         diff_cleanupSemanticLossless(diffs);
+                        // index1 is a location in text1, which diff_xIndex maps to
+                        // text2.  shift is the length change of the edits applied so
+                        // far, which moved the rest of text2 within text.
                         int index1 = 0;
+                        int shift = 0;
                         for (Diff aDiff : aPatch.diffs) {
-                            if (aDiff.operation != Operation.EQUAL) {
-                                int index2 = diff_xIndex(diffs, index1);
-                                if (aDiff.operation == Operation.INSERT) {
-                                    // Insertion
-                                    text = text.substring(0, start_loc + index2) + aDiff.text
-                                            + text.substring(start_loc + index2);
-                                } else if (aDiff.operation == Operation.DELETE) {
-                                    // Deletion
-                                    text = text.substring(0, start_loc + index2)
-                                            + text.substring(start_loc + diff_xIndex(diffs,
-                                            index1 + aDiff.text.length()));
-                                }
+                            if (aDiff.operation == Operation.INSERT) {
+                                // Insertion
+                                int index2 = start_loc + shift + diff_xIndex(diffs, index1);
+                                text = text.substring(0, index2) + aDiff.text
+                                        + text.substring(index2);
+                                shift += aDiff.text.length();
+                            } else if (aDiff.operation == Operation.DELETE) {
+                                // Deletion
+                                int index2 = start_loc + shift + diff_xIndex(diffs, index1);
+                                int end2 = start_loc + shift + diff_xIndex(diffs,
+                                        index1 + aDiff.text.length());
+                                text = text.substring(0, index2) + text.substring(end2);
+                                shift -= end2 - index2;
                             }
-                            if (aDiff.operation != Operation.DELETE) {
+                            if (aDiff.operation != Operation.INSERT) {
                                 index1 += aDiff.text.length();
                             }
                         }
@@ -2302,6 +3629,143 @@ public class diff_match_patch {
     }
 
 
+    //  MERGE FUNCTIONS
+
+
+    /**
+     * Merge the changes made to a common ancestor in two texts, line by line
+     * like diff3.  Changes to distinct lines of base are all kept.  Changes
+     * to the same lines, or insertions at the same place, are kept once if
+     * identical, otherwise they conflict.
+     * @param base Common ancestor of both texts.
+     * @param text1 First changed version of base.
+     * @param text2 Second changed version of base.
+     * @return LinkedList of Merge objects, no two clean ones in a row.
+     * @throws IllegalArgumentException If any input is null.
+     */
+    public LinkedList<Merge> merge_main(String base, String text1, String text2) {
+        if (base == null || text1 == null || text2 == null) {
+            throw new IllegalArgumentException("Null inputs. (merge_main)");
+        }
+        long deadline = diff_deadline();
+        int[] hunks1 = merge_hunks(base, text1, deadline);
+        int[] hunks2 = merge_hunks(base, text2, deadline);
+
+        LinkedList<Merge> merges = new LinkedList<Merge>();
+        StringBuilder clean = new StringBuilder();
+        int pointer1 = 0;
+        int pointer2 = 0;
+        int base_pos = 0;
+        while (pointer1 < hunks1.length || pointer2 < hunks2.length) {
+            // Start the region with the next hunk in base, then add the hunks
+            // of either text overlapping it or inserting at its start.
+            int region_start = pointer2 == hunks2.length
+                    || (pointer1 < hunks1.length && hunks1[pointer1] <= hunks2[pointer2])
+                    ? hunks1[pointer1] : hunks2[pointer2];
+            int region_end = region_start;
+            int first1 = pointer1;
+            int first2 = pointer2;
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                if (pointer1 < hunks1.length && (hunks1[pointer1] < region_end
+                        || hunks1[pointer1] == region_start)) {
+                    region_end = Math.max(region_end, hunks1[pointer1 + 1]);
+                    pointer1 += 4;
+                    grown = true;
+                }
+                if (pointer2 < hunks2.length && (hunks2[pointer2] < region_end
+                        || hunks2[pointer2] == region_start)) {
+                    region_end = Math.max(region_end, hunks2[pointer2 + 1]);
+                    pointer2 += 4;
+                    grown = true;
+                }
+            }
+
+            clean.append(base, base_pos, region_start);
+            base_pos = region_end;
+            String region1 = merge_regionText(base, region_start, region_end,
+                    text1, hunks1, first1, pointer1);
+            String region2 = merge_regionText(base, region_start, region_end,
+                    text2, hunks2, first2, pointer2);
+            if (first1 == pointer1 || first2 == pointer2 || region1.equals(region2)) {
+                // Changed on one side only, or the same way on both.
+                clean.append(first2 == pointer2 ? region1 : region2);
+                continue;
+            }
+            if (clean.length() != 0) {
+                merges.add(new Merge(clean.toString()));
+                clean.setLength(0);
+            }
+            merges.add(new Merge(base.substring(region_start, region_end), region1, region2));
+        }
+        clean.append(base, base_pos, base.length());
+        if (clean.length() != 0 || merges.isEmpty()) {
+            merges.add(new Merge(clean.toString()));
+        }
+        return merges;
+    }
+
+    /**
+     * Find the blocks of lines of base replaced in text.
+     * @param base Old string.
+     * @param text New string.
+     * @param deadline Time when the diff should be complete by.
+     * @return Offsets of each block, as {base_start, base_end, text_start,
+     *     text_end}, in order.
+     */
+    private int[] merge_hunks(String base, String text, long deadline) {
+        LineCodes lines = diff_linesToCodes(base, 0, base.length(), text, 0, text.length());
+        Diffs diffs = diff_lines(lines, deadline);
+        IntStack hunks = new IntStack();
+        int line1 = 0;
+        int line2 = 0;
+        for (int i = 0; i < diffs.size; i++) {
+            int count = diffs.lengths[i];
+            if (diffs.ops[i] == OP_EQUAL) {
+                line1 += count;
+                line2 += count;
+                continue;
+            }
+            // Deletions come before insertions, a block is one or both.
+            int end1 = line1;
+            int end2 = line2;
+            if (diffs.ops[i] == OP_DELETE) {
+                end1 += count;
+                if (i + 1 < diffs.size && diffs.ops[i + 1] == OP_INSERT) {
+                    end2 += diffs.lengths[++i];
+                }
+            } else {
+                end2 += count;
+            }
+            hunks.push(lines.bounds1[line1]);
+            hunks.push(lines.bounds1[end1]);
+            hunks.push(lines.bounds2[line2]);
+            hunks.push(lines.bounds2[end2]);
+            line1 = end1;
+            line2 = end2;
+        }
+        return hunks.toArray();
+    }
+
+    /**
+     * Text of a region of base as changed in text by some of its hunks.
+     * Outside of the hunks, the region is unchanged.
+     * @param hunks Hunks of text, as returned by merge_hunks().
+     * @param from Index of the first hunk within the region.
+     * @param to Index past the last hunk within the region.
+     */
+    private static String merge_regionText(String base, int region_start, int region_end,
+                                           String text, int[] hunks, int from, int to) {
+        if (from == to) {
+            return base.substring(region_start, region_end);
+        }
+        int start = hunks[from + 2] - (hunks[from] - region_start);
+        int end = hunks[to - 1] + (region_end - hunks[to - 3]);
+        return text.substring(start, end);
+    }
+
+
     /**
      * Class representing one diff operation.
      */
@@ -2378,6 +3842,257 @@ public class diff_match_patch {
             return true;
         }
     }
+    /**
+     * Compact representation of a list of diffs, as parallel arrays of
+     * operations and lengths.  No text is copied: EQUAL and DELETE diffs
+     * walk text1 from start1, EQUAL and INSERT diffs walk text2 from start2,
+     * so the text of a diff follows from the lengths of the diffs before it.
+     */
+    public static class Diffs {
+        private static final Operation[] OPERATIONS = Operation.values();
+
+        final String text1;
+        final String text2;
+        final int start1;
+        final int start2;
+        byte[] ops;
+        int[] lengths;
+        int size;
+
+        Diffs(String text1, String text2, int start1, int start2) {
+            this(text1, text2, start1, start2, 8);
+        }
+
+        Diffs(String text1, String text2, int start1, int start2, int capacity) {
+            this.text1 = text1;
+            this.text2 = text2;
+            this.start1 = start1;
+            this.start2 = start2;
+            this.ops = new byte[Math.max(capacity, 1)];
+            this.lengths = new int[Math.max(capacity, 1)];
+        }
+
+        /**
+         * Build the compact form of a list of Diff objects.
+         * @param diffs List of Diff objects.
+         * @return Diffs over the source and destination texts of the list.
+         */
+        public static Diffs fromList(List<Diff> diffs) {
+            StringBuilder text1 = new StringBuilder();
+            StringBuilder text2 = new StringBuilder();
+            for (Diff aDiff : diffs) {
+                if (aDiff.operation != Operation.INSERT) {
+                    text1.append(aDiff.text);
+                }
+                if (aDiff.operation != Operation.DELETE) {
+                    text2.append(aDiff.text);
+                }
+            }
+            Diffs compact = new Diffs(text1.toString(), text2.toString(), 0, 0,
+                    diffs.size());
+            for (Diff aDiff : diffs) {
+                compact.add((byte) aDiff.operation.ordinal(), aDiff.text.length());
+            }
+            return compact;
+        }
+
+        /**
+         * @return Source text of the diffs.
+         */
+        public String text1() {
+            return text1;
+        }
+
+        /**
+         * @return Destination text of the diffs.
+         */
+        public String text2() {
+            return text2;
+        }
+
+        /**
+         * @return Offset in text1 of the first diff.
+         */
+        public int start1() {
+            return start1;
+        }
+
+        /**
+         * @return Offset in text2 of the first diff.
+         */
+        public int start2() {
+            return start2;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public Operation operation(int index) {
+            return OPERATIONS[ops[index]];
+        }
+
+        public int length(int index) {
+            return lengths[index];
+        }
+
+        /**
+         * @return Number of characters of text1 covered by a diff.
+         */
+        int length1(int index) {
+            return ops[index] != OP_INSERT ? lengths[index] : 0;
+        }
+
+        /**
+         * @return Number of characters of text2 covered by a diff.
+         */
+        int length2(int index) {
+            return ops[index] != OP_DELETE ? lengths[index] : 0;
+        }
+
+        void add(byte op, int length) {
+            insert(size, op, length);
+        }
+
+        /**
+         * Add a diff, merged into the last one of the same operation.
+         * Deletions are kept before the insertions they are next to, and
+         * empty diffs are dropped.
+         */
+        void append(byte op, int length) {
+            if (length == 0) {
+                return;
+            }
+            if (size > 0 && ops[size - 1] == op) {
+                lengths[size - 1] += length;
+            } else if (op == OP_DELETE && size > 0 && ops[size - 1] == OP_INSERT) {
+                if (size > 1 && ops[size - 2] == OP_DELETE) {
+                    lengths[size - 2] += length;
+                } else {
+                    insert(size - 1, op, length);
+                }
+            } else {
+                add(op, length);
+            }
+        }
+
+        void insert(int index, byte op, int length) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            System.arraycopy(ops, index, ops, index + 1, size - index);
+            System.arraycopy(lengths, index, lengths, index + 1, size - index);
+            ops[index] = op;
+            lengths[index] = length;
+            size++;
+        }
+
+        void remove(int index) {
+            System.arraycopy(ops, index + 1, ops, index, size - index - 1);
+            System.arraycopy(lengths, index + 1, lengths, index, size - index - 1);
+            size--;
+        }
+
+        /**
+         * Append diffs which continue where these end.
+         */
+        void addAll(Diffs diffs) {
+            addAll(diffs, 0, diffs.size);
+        }
+
+        /**
+         * Append diffs which continue where these end, merging the diffs up
+         * to their first equality into the last ones as by append().
+         */
+        void appendAll(Diffs diffs) {
+            int from = 0;
+            while (from < diffs.size) {
+                byte op = diffs.ops[from];
+                append(op, diffs.lengths[from++]);
+                if (op == OP_EQUAL) {
+                    break;
+                }
+            }
+            addAll(diffs, from, diffs.size);
+        }
+
+        void addAll(Diffs diffs, int from, int to) {
+            int count = to - from;
+            if (size + count > ops.length) {
+                int capacity = Math.max(size + count, size * 2);
+                ops = Arrays.copyOf(ops, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            System.arraycopy(diffs.ops, from, ops, size, count);
+            System.arraycopy(diffs.lengths, from, lengths, size, count);
+            size += count;
+        }
+
+        /**
+         * Rebuild the list of Diff objects.
+         * @return LinkedList of Diff objects.
+         */
+        public LinkedList<Diff> toLinkedList() {
+            LinkedList<Diff> diffs = new LinkedList<Diff>();
+            copyTo(diffs);
+            return diffs;
+        }
+
+        /**
+         * Replace the content of a list with the Diff objects.
+         * @param diffs List of Diff objects to overwrite.
+         */
+        public void copyTo(List<Diff> diffs) {
+            diffs.clear();
+            int pos1 = start1;
+            int pos2 = start2;
+            for (int i = 0; i < size; i++) {
+                String text = ops[i] == OP_INSERT
+                        ? text2.substring(pos2, pos2 + lengths[i])
+                        : text1.substring(pos1, pos1 + lengths[i]);
+                diffs.add(new Diff(OPERATIONS[ops[i]], text));
+                pos1 += length1(i);
+                pos2 += length2(i);
+            }
+        }
+    }
+
+
+    /**
+     * Growable stack of ints, for the indices of equalities.
+     */
+    private static class IntStack {
+        private int[] items = new int[16];
+        private int size;
+
+        void push(int item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = item;
+        }
+
+        int pop() {
+            return items[--size];
+        }
+
+        int peek() {
+            return items[size - 1];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(items, size);
+        }
+    }
 
 
     /**
@@ -2447,6 +4162,62 @@ public class diff_match_patch {
         }
     }
 
+
+    /**
+     * Class representing one part of a three-way merge.
+     */
+    public static class Merge {
+        /**
+         * The merged text, or the text of the base where the changes conflict.
+         */
+        public String text;
+        /**
+         * The conflicting versions of text1 and text2, null if merged cleanly.
+         */
+        public String text1;
+        public String text2;
+
+        /**
+         * Constructor.  Initializes a cleanly merged part.
+         * @param text The merged text.
+         */
+        public Merge(String text) {
+            this.text = text;
+        }
+
+        /**
+         * Constructor.  Initializes a conflict.
+         * @param text The text of the base.
+         * @param text1 The version of text1.
+         * @param text2 The version of text2.
+         */
+        public Merge(String text, String text1, String text2) {
+            this.text = text;
+            this.text1 = text1;
+            this.text2 = text2;
+        }
+
+        /**
+         * @return True if both texts changed this part differently.
+         */
+        public boolean isConflict() {
+            return text1 != null;
+        }
+
+        /**
+         * Display a human-readable version of this Merge.
+         * @return text version.
+         */
+        public String toString() {
+            if (!isConflict()) {
+                return "Merge(\"" + text.replace('\n', '\u00b6') + "\")";
+            }
+            return "Merge(\"" + text.replace('\n', '\u00b6') + "\", \""
+                    + text1.replace('\n', '\u00b6') + "\", \""
+                    + text2.replace('\n', '\u00b6') + "\")";
+        }
+    }
+
     /**
      * Unescape selected chars for compatability with JavaScript's encodeURI.
      * In speed critical applications this could be dropped since the
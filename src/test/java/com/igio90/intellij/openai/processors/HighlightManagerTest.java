@@ -0,0 +1,27 @@
+package com.igio90.intellij.openai.processors;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.impl.DocumentMarkupModel;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+
+import java.util.BitSet;
+import java.util.Collections;
+
+public class HighlightManagerTest extends BasePlatformTestCase {
+    public void testClosingFileDropsHighlights() {
+        PsiFile file = myFixture.configureByText("Test.java", "class Test {\n    int a;\n    int b;\n}\n");
+        Document document = myFixture.getEditor().getDocument();
+        HighlightManager manager = HighlightManager.forProject(getProject());
+
+        BitSet changedLines = new BitSet();
+        changedLines.set(1, 3);
+        manager.highlight(document, changedLines, Collections.singletonList(new int[]{17, 18}), 0);
+        assertTrue(manager.isHighlighted(document));
+
+        FileEditorManager.getInstance(getProject()).closeFile(file.getVirtualFile());
+        assertFalse(manager.isHighlighted(document));
+        assertEmpty(DocumentMarkupModel.forDocument(document, getProject(), true).getAllHighlighters());
+    }
+}
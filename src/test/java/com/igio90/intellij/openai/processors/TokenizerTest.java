@@ -0,0 +1,53 @@
+package com.igio90.intellij.openai.processors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assume.assumeTrue;
+
+public class TokenizerTest {
+    /**
+     * all single bytes plus "he", "ll", "hell", " w" and "or", in that order
+     */
+    private final Tokenizer mTokenizer = Tokenizer.load("/tokenizers/test.tiktoken");
+
+    @Test
+    public void testMergesInRankOrder() {
+        // he + ll + hell, o is left alone
+        assertEquals(2, mTokenizer.count("hello"));
+        assertEquals(1, mTokenizer.count("hell"));
+        // " w" + "or", l and d are left alone
+        assertEquals(4, mTokenizer.count(" world"));
+        // pieces are merged on their own, "o w" never forms
+        assertEquals(6, mTokenizer.count("hello world"));
+        // only "he" forms, the l on either side of it has no merge
+        assertEquals(3, mTokenizer.count("lhel"));
+    }
+
+    @Test
+    public void testBytes() {
+        // no merges over the two bytes of each letter
+        assertEquals(4, mTokenizer.count("éé"));
+        assertEquals(4, mTokenizer.count("😀"));
+        assertEquals(0, mTokenizer.count(""));
+    }
+
+    @Test
+    public void testMissingRanksCountBytes() {
+        Tokenizer tokenizer = Tokenizer.load("/tokenizers/missing.tiktoken");
+        assertFalse(tokenizer.isExact());
+        assertEquals(7, tokenizer.count("héllo!"));
+    }
+
+    /**
+     * counts of the openai tokenizer, once the rank file is bundled
+     */
+    @Test
+    public void testP50kCounts() {
+        Tokenizer tokenizer = Tokenizer.load(Tokenizer.RANKS_RESOURCE);
+        assumeTrue(tokenizer.isExact());
+        assertEquals(2, tokenizer.count("hello world"));
+        assertEquals(4, tokenizer.count("Hello, world!"));
+    }
+}
@@ -0,0 +1,133 @@
+package name.fraser.neil.plaintext;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class diff_match_patch_test {
+    private final diff_match_patch dmp = new diff_match_patch();
+
+    /**
+     * Patches of many edits to texts of a few hundred characters, applied to
+     * the source and to a drifted copy of it.  Seed 2541 once ran the edits of
+     * a patch anchored on a long context past the end of the text.
+     */
+    @Test
+    public void testPatchApplyLongEdits() {
+        for (int seed = 2500; seed < 2600; seed++) {
+            Random random = new Random(seed);
+            String text1 = randomText(random, 50 + random.nextInt(400));
+            String text2 = randomEdit(random, text1, 1 + random.nextInt(12));
+            String drifted = randomEdit(random, text1, 1 + random.nextInt(6));
+            LinkedList<diff_match_patch.Patch> patches = dmp.patch_make(text1, text2);
+
+            Object[] results = dmp.patch_apply(patches, text1);
+            assertEquals("patch_apply: Seed " + seed + ".", text2, results[0]);
+            dmp.patch_apply(patches, drifted);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testMatchAlphabet() {
+        Map<Character, Integer> bitmask = new HashMap<Character, Integer>();
+        bitmask.put('a', 4);
+        bitmask.put('b', 2);
+        bitmask.put('c', 1);
+        assertEquals("match_alphabet: Unique.", bitmask, dmp.match_alphabet("abc"));
+
+        bitmask = new HashMap<Character, Integer>();
+        bitmask.put('a', 37);
+        bitmask.put('b', 18);
+        bitmask.put('c', 8);
+        assertEquals("match_alphabet: Duplicates.", bitmask, dmp.match_alphabet("abcaba"));
+    }
+
+    @Test
+    public void testMatchMainLongPattern() {
+        String text = randomText(new Random(7), 1000);
+        String pattern = text.substring(400, 520).replace('a', 'b');
+        assertEquals("match_main: Pattern over 64 chars.", 400,
+                dmp.match_main(text, pattern, 420));
+    }
+
+    /**
+     * Texts over the parallel threshold, diffed on a pool and on the calling
+     * thread.  Segments are joined at their anchor lines without empty diffs
+     * or neighbours of the same operation, into diffs as minimal as the
+     * serial ones.
+     */
+    @Test
+    public void testDiffMainParallel() {
+        diff_match_patch serial = new diff_match_patch();
+        serial.Diff_Timeout = 0;
+        diff_match_patch parallel = new diff_match_patch();
+        parallel.Diff_Timeout = 0;
+        parallel.Diff_Pool = ForkJoinPool.commonPool();
+        parallel.Diff_ParallelThreshold = 256;
+        for (int seed = 0; seed < 50; seed++) {
+            Random random = new Random(seed);
+            StringBuilder lines = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                lines.append(i).append(' ').append(randomText(random, 20).replace('\n', ' ')).append('\n');
+            }
+            String text1 = lines.toString();
+            String text2 = randomEdit(random, text1, 1 + random.nextInt(40));
+
+            diff_match_patch.Diffs diffs = parallel.diff_mainCompact(text1, text2, false);
+            for (int i = 0; i < diffs.size(); i++) {
+                assertTrue("diff_main: Empty diff, seed " + seed + ".", diffs.length(i) > 0);
+                assertTrue("diff_main: Unmerged diffs, seed " + seed + ".",
+                        i == 0 || diffs.operation(i) != diffs.operation(i - 1));
+            }
+            // Edits may sit elsewhere in runs of equal characters, keeping as
+            // many characters in common.
+            LinkedList<diff_match_patch.Diff> expected =
+                    serial.diff_mainCompact(text1, text2, false).toLinkedList();
+            LinkedList<diff_match_patch.Diff> actual = diffs.toLinkedList();
+            assertEquals("diff_main: Parallel text1, seed " + seed + ".", text1, dmp.diff_text1(actual));
+            assertEquals("diff_main: Parallel text2, seed " + seed + ".", text2, dmp.diff_text2(actual));
+            assertEquals("diff_main: Parallel common length, seed " + seed + ".",
+                    equalLength(expected), equalLength(actual));
+        }
+    }
+
+    private static int equalLength(LinkedList<diff_match_patch.Diff> diffs) {
+        int length = 0;
+        for (diff_match_patch.Diff aDiff : diffs) {
+            if (aDiff.operation == diff_match_patch.Operation.EQUAL) {
+                length += aDiff.text.length();
+            }
+        }
+        return length;
+    }
+
+    private static String randomText(Random random, int length) {
+        String alphabet = "abcdefgh ij\n";
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return text.toString();
+    }
+
+    private static String randomEdit(Random random, String text, int edits) {
+        StringBuilder edited = new StringBuilder(text);
+        for (int i = 0; i < edits; i++) {
+            int offset = random.nextInt(edited.length() + 1);
+            if (random.nextBoolean() && offset < edited.length()) {
+                edited.delete(offset, Math.min(edited.length(), offset + 1 + random.nextInt(8)));
+            } else {
+                edited.insert(offset, randomText(random, 1 + random.nextInt(8)));
+            }
+        }
+        return edited.toString();
+    }
+}